@@ -0,0 +1,98 @@
+package com.xfltr.hapax;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cold-load time of template files read by {@link
+ * TemplateCache#readFile} against the unbuffered, char-at-a-time FileReader
+ * that TemplateCache used to use.  Each load reads and decodes the whole file,
+ * as a cache miss does before parsing it.  Parsing is left out: it costs the
+ * same whichever reader produced the text.
+ *
+ * This class is in com.xfltr.hapax rather than com.xfltr.hapax.jmh because
+ * readFile is package-private.
+ *
+ * @author dcoker
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TemplateLoadBenchmark {
+
+  /**
+   * Size of the template file, in bytes.
+   */
+  @Param({"10240", "204800", "4194304"})
+  public int size;
+
+  private File dir;
+  private File file;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    dir = File.createTempFile("hapax-jmh", "");
+    dir.delete();
+    dir.mkdir();
+    file = new File(dir, "t" + size + ".tpl");
+    String line = "<tr><td>{{NAME:h}}</td><td>{{VALUE}}</td></tr>\n";
+    Writer out = new FileWriter(file);
+    try {
+      out.write("{{#ROWS}}\n");
+      for (int written = 0; written < size; written += line.length()) {
+        out.write(line);
+      }
+      out.write("{{/ROWS}}\n");
+    } finally {
+      out.close();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    file.delete();
+    dir.delete();
+  }
+
+  @Benchmark
+  public String legacy() throws IOException {
+    Reader in = new FileReader(file);
+    StringBuilder buf = new StringBuilder();
+    try {
+      for (int c = in.read(); -1 != c; c = in.read()) {
+        buf.append((char) c);
+      }
+      return buf.toString();
+    } finally {
+      in.close();
+    }
+  }
+
+  @Benchmark
+  public String nio() throws IOException {
+    return TemplateCache.readFile(file.toPath(), StandardCharsets.UTF_8);
+  }
+}
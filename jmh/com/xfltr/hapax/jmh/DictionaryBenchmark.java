@@ -0,0 +1,72 @@
+package com.xfltr.hapax.jmh;
+
+import com.xfltr.hapax.TemplateDictionary;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link TemplateDictionary} lookups and updates at the bottom of a
+ * chain of parent dictionaries.
+ *
+ * @author dcoker
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DictionaryBenchmark {
+
+  /**
+   * Number of dictionaries between the leaf and the root.
+   */
+  @Param({"0", "4", "16"})
+  public int depth;
+
+  private TemplateDictionary leaf;
+  private int counter = 0;
+
+  @Setup
+  public void setUp() {
+    TemplateDictionary dict = TemplateDictionary.create();
+    dict.put("ROOT_VALUE", "root");
+    for (int i = 0; i < depth; i++) {
+      dict.put("LEVEL", i);
+      dict = dict.addChildDictAndShowSection("CHILD");
+    }
+    dict.put("LEAF_VALUE", "leaf");
+    leaf = dict;
+  }
+
+  @Benchmark
+  public String getLocal() {
+    return leaf.get("LEAF_VALUE");
+  }
+
+  @Benchmark
+  public String getInherited() {
+    return leaf.get("ROOT_VALUE");
+  }
+
+  @Benchmark
+  public boolean containsMissing() {
+    return leaf.contains("MISSING");
+  }
+
+  @Benchmark
+  public void put() {
+    leaf.put("LEAF_VALUE", counter++);
+  }
+}
@@ -0,0 +1,73 @@
+package com.xfltr.hapax.jmh;
+
+import com.xfltr.hapax.Modifiers;
+import com.xfltr.hapax.TemplateException;
+import com.xfltr.hapax.TemplateOutput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures each {@link Modifiers} escaper, alone and chained, on values that
+ * need no escaping and on values full of markup.
+ *
+ * @author dcoker
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModifiersBenchmark {
+
+  /**
+   * The modifier chain, as written after the variable name in a template.
+   */
+  @Param({"h", "x", "j", "u", "b", "h:j"})
+  public String modifiers;
+
+  @Param({"plain", "markup"})
+  public String input;
+
+  private List<Modifiers.FLAGS> flags;
+  private String value;
+  private final StringBuilder sb = new StringBuilder();
+  private TemplateOutput output;
+
+  @Setup
+  public void setUp() {
+    flags = new ArrayList<Modifiers.FLAGS>();
+    for (String flag : modifiers.split(":")) {
+      flags.add(Modifiers.FLAGS.valueOf(flag.toUpperCase()));
+    }
+    value = input.equals("plain")
+        ? "The quick brown fox jumps over the lazy dog 0123456789"
+        : "<a href=\"/q?x=1&y='2'\">caf\u00e9 \u20ac</a>\n<br>\"quoted\"";
+    output = TemplateOutput.forStringBuilder(sb);
+  }
+
+  @Benchmark
+  public String applyModifiers() {
+    return Modifiers.applyModifiers(value, flags);
+  }
+
+  @Benchmark
+  public int writeModified() throws TemplateException {
+    sb.setLength(0);
+    Modifiers.writeModified(value, flags, output);
+    return sb.length();
+  }
+}
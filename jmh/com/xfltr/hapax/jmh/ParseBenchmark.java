@@ -0,0 +1,91 @@
+package com.xfltr.hapax.jmh;
+
+import com.xfltr.hapax.parser.CTemplateParser;
+import com.xfltr.hapax.parser.EztParser;
+import com.xfltr.hapax.parser.TemplateNode;
+import com.xfltr.hapax.parser.TemplateParser;
+import com.xfltr.hapax.parser.TemplateParserException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link CTemplateParser#parse} and {@link EztParser#parse} over
+ * templates of increasing size.  Each template repeats a block of text,
+ * variables, modifiers and a section or conditional.  The eztDirectives
+ * case adds comments, [define], [is] and escaped brackets to the EZT block,
+ * so that every kind of tag the scanner reads is timed.
+ *
+ * @author dcoker
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+
+  /**
+   * Number of times the block is repeated.
+   */
+  @Param({"10", "100", "1000"})
+  public int blocks;
+
+  private TemplateParser ctemplateParser;
+  private TemplateParser eztParser;
+  private String ctemplate;
+  private String ezt;
+  private String eztDirectives;
+
+  @Setup
+  public void setUp() {
+    ctemplateParser = CTemplateParser.create();
+    eztParser = EztParser.create();
+
+    StringBuilder c = new StringBuilder();
+    StringBuilder e = new StringBuilder();
+    StringBuilder d = new StringBuilder();
+    for (int i = 0; i < blocks; i++) {
+      c.append("<tr><td>{{NAME:h}}</td><td>{{VALUE}}</td>")
+          .append("{{#EXTRA}}<td>{{NOTE:j}}</td>{{/EXTRA}}</tr>\n");
+      e.append("<tr><td>[name]</td><td>[value]</td>")
+          .append("[if-any note]<td>[note]</td>[else]<td></td>[end]</tr>\n");
+      d.append("<tr class=\"row\">[# row ").append(i).append(" ]\n")
+          .append("  <td>[name]</td><td>[item.value]</td>\n")
+          .append("  [define label]Row [index][end]\n")
+          .append("  [is kind \"header\"]<th>[label]</th>[end]\n")
+          .append("  [if-any note]<td>[note]</td>[else]<td>[[]none]</td>")
+          .append("[end]\n</tr>\n");
+    }
+    ctemplate = c.toString();
+    ezt = e.toString();
+    eztDirectives = d.toString();
+  }
+
+  @Benchmark
+  public List<TemplateNode> ctemplate() throws TemplateParserException {
+    return ctemplateParser.parse(ctemplate);
+  }
+
+  @Benchmark
+  public List<TemplateNode> ezt() throws TemplateParserException {
+    return eztParser.parse(ezt);
+  }
+
+  @Benchmark
+  public List<TemplateNode> eztDirectives() throws TemplateParserException {
+    return eztParser.parse(eztDirectives);
+  }
+}
@@ -0,0 +1,166 @@
+package com.xfltr.hapax.jmh;
+
+import com.xfltr.hapax.Template;
+import com.xfltr.hapax.TemplateDictionary;
+import com.xfltr.hapax.TemplateException;
+import com.xfltr.hapax.TemplateLoader;
+import com.xfltr.hapax.codegen.BytecodeCompiler;
+import com.xfltr.hapax.parser.CTemplateParser;
+import com.xfltr.hapax.parser.TemplateParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Template#render} over three shapes of page:
+ *
+ * <ul> <li>deep: sections nested 20 levels deep,</li> <li>wide: one section
+ * repeated for 1000 rows,</li> <li>includes: a page made of 40 included
+ * templates.</li> </ul>
+ *
+ * Each shape is rendered interpreted and compiled to bytecode, both to a
+ * String and to UTF-8 bytes.
+ *
+ * @author dcoker
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderBenchmark {
+
+  @Param({"deep", "wide", "includes"})
+  public String shape;
+
+  @Param({"false", "true"})
+  public boolean bytecode;
+
+  private Template template;
+  private TemplateDictionary dict;
+  private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+  @Setup
+  public void setUp() throws TemplateException {
+    dict = TemplateDictionary.create();
+    Map<String, String> includes = new HashMap<String, String>();
+    String page;
+    if (shape.equals("deep")) {
+      page = deep(dict, 20);
+    } else if (shape.equals("wide")) {
+      page = wide(dict, 1000);
+    } else {
+      page = includes(dict, includes, 40);
+    }
+    template = parse(page).withLoader(new PreparsedLoader(includes));
+  }
+
+  @Benchmark
+  public String renderToString() throws TemplateException {
+    return template.renderToString(dict);
+  }
+
+  @Benchmark
+  public int renderToStream() throws TemplateException {
+    bytes.reset();
+    template.render(dict, bytes);
+    return bytes.size();
+  }
+
+  private Template parse(String text) throws TemplateException {
+    TemplateParser parser = CTemplateParser.create();
+    return bytecode
+        ? Template.parse(parser, text, BytecodeCompiler.create())
+        : Template.parse(parser, text);
+  }
+
+  private static String deep(TemplateDictionary dict, int depth) {
+    StringBuilder open = new StringBuilder();
+    StringBuilder close = new StringBuilder();
+    TemplateDictionary level = dict;
+    for (int i = 0; i < depth; i++) {
+      String name = letters(i);
+      open.append("<div class=\"level\">{{NAME_").append(name).append(":h}}")
+          .append("{{#S_").append(name).append("}}");
+      close.insert(0, "{{/S_" + name + "}}</div>");
+      level.put("NAME_" + name, "level <" + i + ">");
+      level = level.addChildDictAndShowSection("S_" + name);
+    }
+    level.put("LEAF", "leaf");
+    return open + "{{LEAF}}" + close;
+  }
+
+  private static String wide(TemplateDictionary dict, int rows) {
+    for (int i = 0; i < rows; i++) {
+      TemplateDictionary row = dict.addChildDictAndShowSection("ROW");
+      row.put("NAME", "name & " + i);
+      row.put("VALUE", i);
+    }
+    return "<table>{{#ROW}}<tr><td>{{NAME:h}}</td><td>{{VALUE}}</td></tr>"
+        + "{{/ROW}}</table>";
+  }
+
+  private String includes(TemplateDictionary dict,
+                          Map<String, String> includes, int count) {
+    StringBuilder page = new StringBuilder("<html><body>");
+    for (int i = 0; i < count; i++) {
+      String name = "part" + i + ".tpl";
+      includes.put(name, "<div id=\"" + i + "\">{{TITLE:h}} " + i + "</div>");
+      page.append("{{>PART_").append(letters(i)).append("}}");
+      dict.put("PART_" + letters(i), name);
+    }
+    dict.put("TITLE", "Title & more");
+    return page.append("</body></html>").toString();
+  }
+
+  /**
+   * Returns a distinct name for i made only of letters, since variable and
+   * section names may not contain digits.
+   */
+  private static String letters(int i) {
+    StringBuilder sb = new StringBuilder();
+    do {
+      sb.append((char) ('A' + i % 26));
+      i /= 26;
+    } while (i > 0);
+    return sb.toString();
+  }
+
+  /**
+   * Serves templates parsed once up front, so that the benchmark measures
+   * rendering and not loading.
+   */
+  private final class PreparsedLoader implements TemplateLoader {
+    private final Map<String, Template> templates_ =
+        new HashMap<String, Template>();
+
+    private PreparsedLoader(Map<String, String> sources)
+        throws TemplateException {
+      for (Map.Entry<String, String> e : sources.entrySet()) {
+        templates_.put(e.getKey(), parse(e.getValue()).withLoader(this));
+      }
+    }
+
+    public Template getTemplate(String filename) {
+      return templates_.get(filename);
+    }
+
+    public Template getTemplate(String filename, String templateDirectory) {
+      return getTemplate(filename);
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package com.xfltr.hapax.jmh;
+
+import com.xfltr.hapax.Template;
+import com.xfltr.hapax.TemplateCache;
+import com.xfltr.hapax.TemplateException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link TemplateCache#getTemplate} from 8 threads at once, for
+ * lookups that hit and for lookups that miss because the cache is much
+ * smaller than the set of templates, under each way of noticing changed
+ * files.
+ *
+ * @author dcoker
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class TemplateCacheBenchmark {
+  private static final int TEMPLATES = 512;
+  private static final int HOT_TEMPLATES = 16;
+
+  /**
+   * poll: check the modification time on every lookup, interval: check at
+   * most once a second, watch: use a WatchService.
+   */
+  @Param({"poll", "interval", "watch"})
+  public String invalidation;
+
+  private File dir;
+  private TemplateCache hitCache;
+  private TemplateCache missCache;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException, TemplateException {
+    dir = File.createTempFile("hapax-jmh", "");
+    dir.delete();
+    dir.mkdir();
+    for (int i = 0; i < TEMPLATES; i++) {
+      Writer out = new FileWriter(new File(dir, "t" + i + ".tpl"));
+      try {
+        out.write("<div>{{#S}}{{NAME:h}} " + i + "{{/S}}</div>\n");
+      } finally {
+        out.close();
+      }
+    }
+    hitCache = configure(TemplateCache.builder(dir.getPath())).build();
+    for (int i = 0; i < HOT_TEMPLATES; i++) {
+      hitCache.getTemplate("t" + i + ".tpl");
+    }
+    missCache = configure(TemplateCache.builder(dir.getPath()))
+        .maximumSize(HOT_TEMPLATES).build();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    hitCache.close();
+    missCache.close();
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  @Benchmark
+  public Template hit() throws TemplateException {
+    int i = ThreadLocalRandom.current().nextInt(HOT_TEMPLATES);
+    return hitCache.getTemplate("t" + i + ".tpl");
+  }
+
+  @Benchmark
+  public Template miss() throws TemplateException {
+    int i = ThreadLocalRandom.current().nextInt(TEMPLATES);
+    return missCache.getTemplate("t" + i + ".tpl");
+  }
+
+  private TemplateCache.Builder configure(TemplateCache.Builder builder) {
+    if (invalidation.equals("interval")) {
+      return builder.checkInterval(1000);
+    } else if (invalidation.equals("watch")) {
+      return builder.watchForChanges(true);
+    }
+    return builder;
+  }
+}
@@ -0,0 +1,190 @@
+package com.xfltr.hapax;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.RecordComponent;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The readable properties of a class, for {@link ObjectDictionary}: record
+ * components, public getX() and isX() getters, and public fields.  Each
+ * property is read through a MethodHandle that is looked up once per class.
+ *
+ * A template name matches a property if they are equal once both are
+ * upper-cased and their underscores removed, so {{FIRST_NAME}} reads
+ * getFirstName(), firstName() or a field named first_name.
+ *
+ * @author dcoker
+ */
+final class BeanAccessors {
+  private static final ClassValue<BeanAccessors> accessors_ =
+      new ClassValue<BeanAccessors>() {
+        @Override
+        protected BeanAccessors computeValue(Class<?> type) {
+          return new BeanAccessors(type);
+        }
+      };
+
+  private static final MethodType GETTER_TYPE =
+      MethodType.methodType(Object.class, Object.class);
+
+  /**
+   * Cached in place of an accessor for a name that the class does not have.
+   */
+  private static final Object NONE = new Object();
+
+  private final Class<?> type_;
+
+  /**
+   * Accessors by folded property name.
+   */
+  private final Map<String, MethodHandle> byName_ =
+      new HashMap<String, MethodHandle>();
+
+  /**
+   * Accessors, or NONE, by the symbols that templates have looked up.  Copied
+   * on write, so that any number of renders can read it.
+   */
+  private volatile SymbolMap<Object> bySymbol_ = new SymbolMap<Object>();
+
+  private BeanAccessors(Class<?> type) {
+    this.type_ = type;
+    MethodHandles.Lookup lookup = MethodHandles.lookup();
+    // Fields first, so that accessor methods of the same name replace them.
+    for (Field field : type.getFields()) {
+      if (!Modifier.isStatic(field.getModifiers()) && accessible(field)) {
+        try {
+          add(field.getName(), lookup.unreflectGetter(field));
+        } catch (IllegalAccessException e) {
+          // Not readable from here; leave it out.
+        }
+      }
+    }
+    if (type.isRecord()) {
+      for (RecordComponent component : type.getRecordComponents()) {
+        addMethod(lookup, component.getName(), component.getAccessor());
+      }
+      return;
+    }
+    for (Method method : type.getMethods()) {
+      if (Modifier.isStatic(method.getModifiers())
+          || method.getParameterTypes().length != 0
+          || method.getReturnType() == void.class
+          || method.getDeclaringClass() == Object.class) {
+        continue;
+      }
+      String name = method.getName();
+      if (name.startsWith("get") && name.length() > 3) {
+        addMethod(lookup, name.substring(3), method);
+      } else if (name.startsWith("is") && name.length() > 2
+          && method.getReturnType() == boolean.class) {
+        addMethod(lookup, name.substring(2), method);
+      }
+    }
+  }
+
+  /**
+   * Returns the accessors for type.
+   */
+  static BeanAccessors forClass(Class<?> type) {
+    return accessors_.get(type);
+  }
+
+  /**
+   * Returns the value of the property of target named by key, or null if
+   * target has no such property.
+   */
+  Object get(Object target, Symbol key) {
+    Object accessor = bySymbol_.get(key);
+    if (accessor == null) {
+      accessor = byName_.get(fold(key.getName()));
+      if (accessor == null) {
+        accessor = NONE;
+      }
+      // A racing render may drop this entry; it is looked up again next time.
+      bySymbol_ = bySymbol_.with(key, accessor);
+    }
+    if (accessor == NONE) {
+      return null;
+    }
+    try {
+      return (Object) ((MethodHandle) accessor).invokeExact(target);
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new IllegalStateException("Unable to read " + key + " from "
+          + type_.getName(), e);
+    }
+  }
+
+  private void addMethod(MethodHandles.Lookup lookup, String name,
+                         Method method) {
+    if (!accessible(method)) {
+      // Such as Map.Entry.getKey() on a private entry class of the JDK.
+      method = publicDeclaration(method.getDeclaringClass(), method.getName());
+      if (method == null) {
+        return;
+      }
+    }
+    try {
+      add(name, lookup.unreflect(method));
+    } catch (IllegalAccessException e) {
+      // Not readable from here; leave it out.
+    }
+  }
+
+  /**
+   * Returns true if member can be read from here.  Public members of classes
+   * that are not public, such as records nested in other classes, are made
+   * accessible.
+   */
+  private static boolean accessible(AccessibleObject member) {
+    Class<?> owner = ((Member) member).getDeclaringClass();
+    return Modifier.isPublic(owner.getModifiers())
+        || member.trySetAccessible();
+  }
+
+  /**
+   * Returns the no-argument method called name that type inherits from a
+   * public class or interface, or null if there is none.
+   */
+  private static Method publicDeclaration(Class<?> type, String name) {
+    if (type == null) {
+      return null;
+    }
+    if (Modifier.isPublic(type.getModifiers())) {
+      try {
+        return type.getMethod(name);
+      } catch (NoSuchMethodException e) {
+        return null;
+      }
+    }
+    for (Class<?> iface : type.getInterfaces()) {
+      Method method = publicDeclaration(iface, name);
+      if (method != null) {
+        return method;
+      }
+    }
+    return publicDeclaration(type.getSuperclass(), name);
+  }
+
+  private void add(String name, MethodHandle handle) {
+    byName_.put(fold(name), handle.asType(GETTER_TYPE));
+  }
+
+  /**
+   * Upper-cases name and removes its underscores.
+   */
+  private static String fold(String name) {
+    return name.replace("_", "").toUpperCase();
+  }
+}
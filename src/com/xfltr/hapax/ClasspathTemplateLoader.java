@@ -0,0 +1,346 @@
+package com.xfltr.hapax;
+
+import com.xfltr.hapax.codegen.BytecodeCompiler;
+import com.xfltr.hapax.parser.CTemplateParser;
+import com.xfltr.hapax.parser.TemplateCompiler;
+import com.xfltr.hapax.parser.TemplateParser;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * ClasspathTemplateLoader serves templates packaged with an application: from
+ * a directory on the classpath, in JAR files or on disk, or from a ZIP or JAR
+ * file.  Unlike {@link TemplateCache}, it never looks for changes, since a
+ * packaged template cannot change while it is being served.
+ *
+ * The templates under the root directory are listed once, when the loader is
+ * built.  Each is read, decompressed and parsed the first time it is asked
+ * for, and then kept; a template that fails to parse keeps failing without
+ * being parsed again.  Like TemplateCache, a template that several threads
+ * ask for at once is only parsed once.
+ *
+ * Templates are named by their path below the root, such as "page.tpl" or
+ * "mail/footer.ezt".  Includes are resolved as TemplateCache resolves them:
+ * against the root, whatever the directory of the including template, so
+ * that the same templates render the same from either loader.
+ *
+ * The loader should be {@link #close() closed} when it is no longer needed,
+ * to close the archives it read.
+ *
+ * @author dcoker
+ */
+public final class ClasspathTemplateLoader
+    implements TemplateLoader, Closeable {
+  private final Map<String, Resource> index_;
+  private final ConcurrentMap<String, FutureTask<Template>> templates_ =
+      new ConcurrentHashMap<String, FutureTask<Template>>();
+  private final TemplateParser parser_;
+  private final BytecodeCompiler compiler_;
+  private final Charset charset_;
+  private final List<Closeable> archives_;
+
+  /**
+   * Returns a Builder for a loader of the templates under root, a directory
+   * such as "templates" on the classpath of classLoader.  If the directory is
+   * in several places on the classpath, the templates in all of them are
+   * served, and the first one found wins when names collide.  The directory
+   * is found with {@link ClassLoader#getResources}, so a JAR must have an
+   * entry for it, as the jar tool and most build tools write.
+   */
+  public static Builder forClasspath(ClassLoader classLoader, String root) {
+    if (PathUtil.makeRelative("/", root).length() == 0) {
+      throw new IllegalArgumentException(
+          "The root of a classpath loader must name a directory");
+    }
+    return new Builder(classLoader, null, root);
+  }
+
+  /**
+   * Returns a Builder for a loader of the templates under root, a directory
+   * in the given ZIP or JAR file.  An empty root serves the whole archive.
+   */
+  public static Builder forArchive(Path archive, String root) {
+    return new Builder(null, archive, root);
+  }
+
+  /**
+   * Configures and creates a ClasspathTemplateLoader.
+   */
+  public static final class Builder {
+    private final ClassLoader classLoader_;
+    private final Path archive_;
+    private final String root_;
+    private TemplateParser parser_ = CTemplateParser.create();
+    private boolean compileToBytecode_ = false;
+    private Charset charset_ = StandardCharsets.UTF_8;
+
+    private Builder(ClassLoader classLoader, Path archive, String root) {
+      this.classLoader_ = classLoader;
+      this.archive_ = archive;
+      this.root_ = PathUtil.makeRelative("/", root);
+    }
+
+    /**
+     * Sets the parser used for templates.  Defaults to CTemplateParser.
+     */
+    public Builder parser(TemplateParser parser) {
+      this.parser_ = parser;
+      return this;
+    }
+
+    /**
+     * If true, templates are compiled to JVM bytecode by a {@link
+     * BytecodeCompiler} owned by the loader.  If false (the default), they
+     * are interpreted.
+     */
+    public Builder compileToBytecode(boolean compile) {
+      this.compileToBytecode_ = compile;
+      return this;
+    }
+
+    /**
+     * Sets the encoding of templates.  Defaults to UTF-8.
+     */
+    public Builder charset(Charset charset) {
+      if (charset == null) {
+        throw new NullPointerException("charset");
+      }
+      this.charset_ = charset;
+      return this;
+    }
+
+    /**
+     * Lists the templates and creates the loader.
+     *
+     * @throws IOException if the archive or the classpath cannot be read.
+     */
+    public ClasspathTemplateLoader build() throws IOException {
+      return new ClasspathTemplateLoader(this);
+    }
+  }
+
+  /**
+   * Reads the source of one template.
+   */
+  private interface Resource {
+    String read(Charset charset) throws IOException;
+  }
+
+  private ClasspathTemplateLoader(Builder builder) throws IOException {
+    this.parser_ = builder.parser_;
+    this.compiler_ =
+        builder.compileToBytecode_ ? BytecodeCompiler.create() : null;
+    this.charset_ = builder.charset_;
+    Map<String, Resource> index = new HashMap<String, Resource>();
+    List<Closeable> archives = new ArrayList<Closeable>();
+    try {
+      if (builder.archive_ != null) {
+        ZipFile zip = new ZipFile(builder.archive_.toFile());
+        archives.add(zip);
+        indexArchive(zip, builder.root_, index);
+      } else {
+        Enumeration<URL> urls =
+            builder.classLoader_.getResources(builder.root_);
+        while (urls.hasMoreElements()) {
+          indexUrl(urls.nextElement(), builder.root_, index, archives);
+        }
+      }
+    } catch (IOException e) {
+      closeAll(archives);
+      throw e;
+    }
+    this.index_ = Collections.unmodifiableMap(index);
+    this.archives_ = archives;
+  }
+
+  /**
+   * Adds the templates under a directory found on the classpath.
+   */
+  private static void indexUrl(URL url, String root,
+                               Map<String, Resource> index,
+                               List<Closeable> archives) throws IOException {
+    if (url.getProtocol().equals("file")) {
+      Path base;
+      try {
+        base = Paths.get(url.toURI());
+      } catch (URISyntaxException e) {
+        throw new IOException("Unable to list " + url, e);
+      }
+      indexDirectory(base, index);
+      return;
+    }
+    URLConnection connection = url.openConnection();
+    if (!(connection instanceof JarURLConnection)) {
+      throw new IOException("Unable to list templates in " + url);
+    }
+    // Not cached, so that the JarFile is ours to close.
+    connection.setUseCaches(false);
+    JarURLConnection jar = (JarURLConnection) connection;
+    ZipFile zip = jar.getJarFile();
+    archives.add(zip);
+    indexArchive(zip, jar.getEntryName() != null ? jar.getEntryName() : root,
+        index);
+  }
+
+  private static void indexDirectory(Path base, Map<String, Resource> index)
+      throws IOException {
+    Stream<Path> walk = Files.walk(base);
+    try {
+      for (Iterator<Path> it = walk.iterator(); it.hasNext(); ) {
+        final Path path = it.next();
+        String name = TemplateSnapshot.nameOf(base, path);
+        if (Files.isRegularFile(path) && !index.containsKey(name)) {
+          index.put(name, new Resource() {
+            public String read(Charset charset) throws IOException {
+              return TemplateCache.readFile(path, charset);
+            }
+          });
+        }
+      }
+    } finally {
+      walk.close();
+    }
+  }
+
+  private static void indexArchive(final ZipFile zip, String root,
+                                   Map<String, Resource> index) {
+    String prefix = PathUtil.makeRelative("/", root);
+    if (prefix.length() > 0) {
+      prefix += "/";
+    }
+    Enumeration<? extends ZipEntry> entries = zip.entries();
+    while (entries.hasMoreElements()) {
+      final ZipEntry entry = entries.nextElement();
+      if (entry.isDirectory() || !entry.getName().startsWith(prefix)) {
+        continue;
+      }
+      String name = entry.getName().substring(prefix.length());
+      if (!index.containsKey(name)) {
+        index.put(name, new Resource() {
+          public String read(Charset charset) throws IOException {
+            InputStream in = zip.getInputStream(entry);
+            try {
+              return new String(in.readAllBytes(), charset);
+            } finally {
+              in.close();
+            }
+          }
+        });
+      }
+    }
+  }
+
+  /**
+   * Returns the names of all templates this loader serves, in order.
+   */
+  public Set<String> getTemplateNames() {
+    return Collections.unmodifiableSet(new TreeSet<String>(index_.keySet()));
+  }
+
+  /**
+   * Returns the template named filename, relative to the root.
+   */
+  public Template getTemplate(String filename) throws TemplateException {
+    final String name = PathUtil.makeRelative("/", filename);
+    FutureTask<Template> task = templates_.get(name);
+    if (task == null) {
+      final Resource resource = index_.get(name);
+      if (resource == null) {
+        throw new TemplateException("No such template: " + filename);
+      }
+      FutureTask<Template> loading = new FutureTask<Template>(
+          new Callable<Template>() {
+            public Template call() throws Exception {
+              return load(name, resource);
+            }
+          });
+      task = templates_.putIfAbsent(name, loading);
+      if (task == null) {
+        task = loading;
+        loading.run();
+      }
+    }
+    try {
+      return task.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof TemplateException) {
+        throw (TemplateException) e.getCause();
+      }
+      throw new TemplateException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new TemplateException(e);
+    }
+  }
+
+  /**
+   * Returns the template named filename, relative to the root, as {@link
+   * TemplateCache#getTemplate(String, String)} does.
+   */
+  public Template getTemplate(String filename, String templateDirectory)
+      throws TemplateException {
+    return getTemplate(filename);
+  }
+
+  private Template load(String name, Resource resource)
+      throws TemplateException {
+    String contents;
+    try {
+      contents = resource.read(charset_);
+    } catch (IOException e) {
+      throw new TemplateException(e);
+    }
+    Template template = Template.fromTree(
+        TemplateCompiler.compile(parser_.parse(contents)), compiler_);
+    int slash = name.lastIndexOf('/');
+    return template.withLoaderContext(new TemplateLoaderContext(this,
+        slash < 0 ? "" : name.substring(0, slash)));
+  }
+
+  /**
+   * Closes the archives that templates are read from.  Templates that have
+   * already been loaded can still be rendered; others can no longer be
+   * loaded.
+   */
+  public void close() {
+    closeAll(archives_);
+  }
+
+  private static void closeAll(List<Closeable> archives) {
+    for (Closeable archive : archives) {
+      try {
+        archive.close();
+      } catch (IOException e) {
+        // Nothing more can be done with it.
+      }
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package com.xfltr.hapax;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches a directory tree with a {@link WatchService} and reports every file
+ * that is created, modified or deleted beneath it.  Directories created after
+ * the watcher starts are watched as well.
+ *
+ * Events are delivered on a single daemon thread owned by the watcher.
+ *
+ * @author dcoker
+ */
+final class DirectoryWatcher {
+  private static final Logger logger =
+      Logger.getLogger(DirectoryWatcher.class.getName());
+
+  /**
+   * Receives the changes seen by a DirectoryWatcher.
+   */
+  interface Listener {
+    /**
+     * Called when the file at path (absolute and normalized) has changed.
+     */
+    void changed(Path path);
+
+    /**
+     * Called when events were lost, so that any file may have changed.
+     */
+    void overflowed();
+  }
+
+  private final WatchService watcher_;
+  private final Listener listener_;
+  private final Thread thread_;
+
+  private DirectoryWatcher(Path root, Listener listener) throws IOException {
+    this.watcher_ = FileSystems.getDefault().newWatchService();
+    this.listener_ = listener;
+    registerTree(root);
+    this.thread_ = new Thread(new Runnable() {
+      public void run() {
+        processEvents();
+      }
+    }, "hapax-watcher-" + root);
+    thread_.setDaemon(true);
+  }
+
+  /**
+   * Starts watching root and everything beneath it.
+   */
+  static DirectoryWatcher start(Path root, Listener listener)
+      throws IOException {
+    DirectoryWatcher watcher =
+        new DirectoryWatcher(root.toAbsolutePath().normalize(), listener);
+    watcher.thread_.start();
+    return watcher;
+  }
+
+  /**
+   * Stops watching.  No events are delivered after this returns.
+   */
+  void close() {
+    try {
+      watcher_.close();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Unable to close WatchService", e);
+    }
+    thread_.interrupt();
+  }
+
+  private void registerTree(Path root) throws IOException {
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir,
+                                               BasicFileAttributes attrs)
+          throws IOException {
+        dir.register(watcher_, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY,
+            StandardWatchEventKinds.ENTRY_DELETE);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  private void processEvents() {
+    while (true) {
+      WatchKey key;
+      try {
+        key = watcher_.take();
+      } catch (InterruptedException e) {
+        return;
+      } catch (ClosedWatchServiceException e) {
+        return;
+      }
+
+      Path dir = (Path) key.watchable();
+      for (WatchEvent<?> event : key.pollEvents()) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+          listener_.overflowed();
+          continue;
+        }
+        Path path = dir.resolve((Path) event.context());
+        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+            && Files.isDirectory(path)) {
+          try {
+            registerTree(path);
+          } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to watch " + path, e);
+          }
+        }
+        listener_.changed(path);
+      }
+      key.reset();
+    }
+  }
+}
@@ -0,0 +1,421 @@
+package com.xfltr.hapax;
+
+import com.xfltr.hapax.parser.EztConditionalBlockNode;
+import com.xfltr.hapax.parser.SectionBlockNode;
+import com.xfltr.hapax.parser.SequenceNode;
+import com.xfltr.hapax.parser.TemplateNode;
+import com.xfltr.hapax.parser.TextNode;
+import com.xfltr.hapax.parser.VariableNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * FragmentCache keeps the rendered output of included templates, such as
+ * headers and footers, so that renders that include them with the same values
+ * copy the output instead of rendering it again.  See {@link
+ * Template#withFragmentCache(FragmentCache)}.
+ *
+ * A fragment is keyed by the template and by the values it reads, which are
+ * found by looking through the template once: the variables it writes or
+ * tests with EZT [if-any]/[is], and for each section, the number of times it
+ * is shown and the values its body reads from each of its dictionaries.
+ * Templates that include other templates or use [define] are always
+ * rendered, though the templates they include are cached in their own right.
+ * So are templates whose sections are shown over rows given to {@link
+ * TemplateDictionary#showSectionForEach} or read from an object, since
+ * building the key would read the rows a second time.
+ *
+ * Fragments are keyed by the parsed template itself, not by its file name.
+ * When {@link TemplateCache} reloads a changed file, the new template never
+ * matches the fragments of the old one.  A TemplateCache given this cache by
+ * {@link TemplateCache.Builder#fragmentCache(FragmentCache)} drops them;
+ * otherwise they are left to be evicted.
+ *
+ * The cache holds at most {@link Builder#maximumSize(int)} fragments, evicting
+ * the least recently used ones beyond that, and can expire fragments a fixed
+ * time after they were rendered.  {@link #stats()} reports hits, misses,
+ * evictions and expirations.  FragmentCache is thread-safe.
+ *
+ * Values are read once to build the key and again if the fragment is
+ * rendered, so lazy values should be cheap to compute twice or be computed
+ * up front.
+ *
+ * @author dcoker
+ */
+public final class FragmentCache {
+  /**
+   * Returned by {@link #keysOf(TemplateNode)} for a template whose output
+   * cannot be cached.
+   */
+  static final Keys NOT_CACHEABLE =
+      new Keys(new Symbol[0], new SectionBlockNode[0], new Keys[0]);
+
+  private static final int DEFAULT_MAXIMUM_SIZE = 10000;
+
+  private final ConcurrentMap<Key, Entry> fragments_ =
+      new ConcurrentHashMap<Key, Entry>();
+
+  private final int maximumSize_;
+
+  /**
+   * How long a fragment may be used after it was rendered, or 0 for as long
+   * as it is cached.
+   */
+  private final long expireAfterNanos_;
+
+  /**
+   * Serializes eviction, so that two threads never pick the same victims.
+   */
+  private final Object evictionLock_ = new Object();
+
+  private final LongAdder hits_ = new LongAdder();
+  private final LongAdder misses_ = new LongAdder();
+  private final LongAdder uncacheable_ = new LongAdder();
+  private final LongAdder evictions_ = new LongAdder();
+  private final LongAdder expirations_ = new LongAdder();
+
+  /**
+   * Creates a FragmentCache with the default bounds.
+   */
+  public static FragmentCache create() {
+    return builder().build();
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Configures and creates a FragmentCache.
+   */
+  public static final class Builder {
+    private int maximumSize_ = DEFAULT_MAXIMUM_SIZE;
+    private long expireAfterWriteMillis_ = 0;
+
+    private Builder() {
+    }
+
+    /**
+     * Caps the number of cached fragments.  Once more than this many are
+     * cached, the least recently used ones are evicted.  Defaults to 10000;
+     * zero means unbounded.
+     */
+    public Builder maximumSize(int entries) {
+      if (entries < 0) {
+        throw new IllegalArgumentException("maximumSize must not be negative");
+      }
+      this.maximumSize_ = entries;
+      return this;
+    }
+
+    /**
+     * Renders each fragment again once this long has passed since it was
+     * last rendered.  Zero (the default) keeps fragments until they are
+     * evicted.
+     */
+    public Builder expireAfterWrite(long millis) {
+      if (millis < 0) {
+        throw new IllegalArgumentException(
+            "expireAfterWrite must not be negative");
+      }
+      this.expireAfterWriteMillis_ = millis;
+      return this;
+    }
+
+    public FragmentCache build() {
+      return new FragmentCache(this);
+    }
+  }
+
+  private FragmentCache(Builder builder) {
+    this.maximumSize_ = builder.maximumSize_;
+    this.expireAfterNanos_ =
+        TimeUnit.MILLISECONDS.toNanos(builder.expireAfterWriteMillis_);
+  }
+
+  /**
+   * Renders template, copying its output from this cache if it has been
+   * rendered with the same values before.
+   *
+   * @return false, having rendered nothing, if the output of template cannot
+   * be cached.
+   */
+  boolean render(Template template, TemplateDictionary dict,
+                 RenderContext context, TemplateOutput output)
+      throws TemplateException {
+    Keys keys = template.getFragmentKeys();
+    List<Object> values = new ArrayList<Object>();
+    if (keys == NOT_CACHEABLE || !keys.collectValues(dict, context, values)) {
+      uncacheable_.increment();
+      return false;
+    }
+    Key key = new Key(template.getRoot(), values.toArray());
+
+    long now = System.nanoTime();
+    Entry entry = fragments_.get(key);
+    if (entry != null) {
+      if (expireAfterNanos_ == 0 || now - entry.written_ < expireAfterNanos_) {
+        hits_.increment();
+        entry.lastAccess_ = now;
+        output.write(entry.text_);
+        return true;
+      }
+      if (fragments_.remove(key, entry)) {
+        expirations_.increment();
+      }
+    }
+
+    misses_.increment();
+    StringBuilder sb = new StringBuilder();
+    boolean rendered = false;
+    try {
+      template.getRoot().evaluate(dict, context,
+          TemplateOutput.forStringBuilder(sb));
+      rendered = true;
+    } finally {
+      if (!rendered) {
+        // Write what was rendered before the failure, as an uncached render
+        // would have.
+        output.write(sb, 0, sb.length());
+      }
+    }
+    String text = sb.toString();
+    fragments_.put(key, new Entry(text, now));
+    if (maximumSize_ > 0 && fragments_.size() > maximumSize_) {
+      evict();
+    }
+    output.write(text);
+    return true;
+  }
+
+  /**
+   * Drops every fragment of template.
+   */
+  public void invalidate(Template template) {
+    TemplateNode root = template.getRoot();
+    for (Key key : fragments_.keySet()) {
+      if (key.root_ == root) {
+        fragments_.remove(key);
+      }
+    }
+  }
+
+  /**
+   * Drops every fragment.
+   */
+  public void invalidateAll() {
+    fragments_.clear();
+  }
+
+  /**
+   * Returns a snapshot of this cache's statistics.
+   */
+  public FragmentCacheStats stats() {
+    return new FragmentCacheStats(hits_.sum(), misses_.sum(),
+        uncacheable_.sum(), evictions_.sum(), expirations_.sum(),
+        fragments_.size());
+  }
+
+  /**
+   * Evicts the least recently used tenth of the fragments, and any that have
+   * expired, so that the cost of sorting them is shared by many misses.
+   */
+  private void evict() {
+    synchronized (evictionLock_) {
+      if (fragments_.size() <= maximumSize_) {
+        return;
+      }
+      long now = System.nanoTime();
+      List<Map.Entry<Key, Entry>> candidates =
+          new ArrayList<Map.Entry<Key, Entry>>();
+      for (Map.Entry<Key, Entry> e : fragments_.entrySet()) {
+        Entry entry = e.getValue();
+        if (expireAfterNanos_ > 0
+            && now - entry.written_ >= expireAfterNanos_) {
+          if (fragments_.remove(e.getKey(), entry)) {
+            expirations_.increment();
+          }
+        } else {
+          candidates.add(e);
+        }
+      }
+      Collections.sort(candidates, new Comparator<Map.Entry<Key, Entry>>() {
+        public int compare(Map.Entry<Key, Entry> a, Map.Entry<Key, Entry> b) {
+          return Long.signum(a.getValue().lastAccess_
+              - b.getValue().lastAccess_);
+        }
+      });
+      int target = maximumSize_ - maximumSize_ / 10;
+      for (Map.Entry<Key, Entry> e : candidates) {
+        if (fragments_.size() <= target) {
+          break;
+        }
+        if (fragments_.remove(e.getKey(), e.getValue())) {
+          evictions_.increment();
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns what the output of program depends on, or NOT_CACHEABLE if its
+   * output depends on anything but dictionary values.
+   */
+  static Keys keysOf(TemplateNode program) {
+    Set<Symbol> variables = new LinkedHashSet<Symbol>();
+    List<SectionBlockNode> sections = new ArrayList<SectionBlockNode>();
+    if (!collectKeys(program, variables, sections)) {
+      return NOT_CACHEABLE;
+    }
+    Keys[] bodies = new Keys[sections.size()];
+    for (int i = 0; i < bodies.length; i++) {
+      bodies[i] = keysOf(sections.get(i).getBody());
+      if (bodies[i] == NOT_CACHEABLE) {
+        return NOT_CACHEABLE;
+      }
+    }
+    return new Keys(variables.toArray(new Symbol[variables.size()]),
+        sections.toArray(new SectionBlockNode[sections.size()]), bodies);
+  }
+
+  private static boolean collectKeys(TemplateNode node, Set<Symbol> variables,
+                                     List<SectionBlockNode> sections) {
+    if (node instanceof TextNode) {
+      return true;
+    } else if (node instanceof VariableNode) {
+      variables.add(((VariableNode) node).getSymbol());
+      return true;
+    } else if (node instanceof EztConditionalBlockNode) {
+      EztConditionalBlockNode block = (EztConditionalBlockNode) node;
+      variables.add(block.getCondition().getSymbol());
+      return collectKeys(block.getTrueBranch(), variables, sections)
+          && collectKeys(block.getFalseBranch(), variables, sections);
+    } else if (node instanceof SectionBlockNode) {
+      // The body is rendered with other dictionaries, so it is keyed on its
+      // own by keysOf.
+      sections.add((SectionBlockNode) node);
+      return true;
+    } else if (node instanceof SequenceNode) {
+      for (TemplateNode child : ((SequenceNode) node).getNodes()) {
+        if (!collectKeys(child, variables, sections)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    // Includes read other templates, and [define] changes the rest of the
+    // render.
+    return false;
+  }
+
+  /**
+   * What the output of a template, or of the body of one of its sections,
+   * depends on: the variables it reads, and the sections it shows, each with
+   * what its body depends on.
+   */
+  static final class Keys {
+    private final Symbol[] variables_;
+    private final SectionBlockNode[] sections_;
+    private final Keys[] bodies_;
+
+    private Keys(Symbol[] variables, SectionBlockNode[] sections,
+                 Keys[] bodies) {
+      this.variables_ = variables;
+      this.sections_ = sections;
+      this.bodies_ = bodies;
+    }
+
+    /**
+     * Adds to values what output rendered with dict depends on.  Each
+     * section adds the number of dictionaries it is shown with before the
+     * values of its body, so the values of different dictionaries never run
+     * together.
+     *
+     * @return false if the output cannot be cached, because a section is
+     * shown over rows that can only be read once per render.
+     */
+    private boolean collectValues(TemplateDictionary dict,
+                                  RenderContext context, List<Object> values) {
+      for (Symbol variable : variables_) {
+        values.add(context.lookup(dict, variable));
+      }
+      for (int i = 0; i < sections_.length; i++) {
+        SectionBlockNode section = sections_[i];
+        if (TemplateDictionary.isRows(
+            dict.getChildDicts(section.getSymbol()))) {
+          return false;
+        }
+        List<TemplateDictionary> dicts = section.dictionariesFor(dict);
+        values.add(dicts.size());
+        for (TemplateDictionary subdict : dicts) {
+          if (!bodies_[i].collectValues(subdict, context, values)) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * A template and the values it reads.
+   */
+  private static final class Key {
+    private final TemplateNode root_;
+    private final Object[] values_;
+    private final int hash_;
+
+    private Key(TemplateNode root, Object[] values) {
+      this.root_ = root;
+      this.values_ = values;
+      this.hash_ = System.identityHashCode(root) * 31
+          + Arrays.hashCode(values);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash_;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return root_ == other.root_ && Arrays.equals(values_,
+          other.values_);
+    }
+  }
+
+  private static final class Entry {
+    private final String text_;
+
+    /**
+     * When the fragment was rendered, as a System.nanoTime() value.
+     */
+    private final long written_;
+
+    /**
+     * When the fragment was last used, as a System.nanoTime() value.
+     */
+    private volatile long lastAccess_;
+
+    private Entry(String text, long written) {
+      this.text_ = text;
+      this.written_ = written;
+      this.lastAccess_ = written;
+    }
+  }
+}
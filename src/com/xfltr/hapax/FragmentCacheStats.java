@@ -0,0 +1,89 @@
+package com.xfltr.hapax;
+
+/**
+ * A snapshot of the counters kept by a {@link FragmentCache}.  Returned by
+ * {@link FragmentCache#stats()}; the counters cover the lifetime of the cache.
+ *
+ * @author dcoker
+ */
+public final class FragmentCacheStats {
+  private final long hitCount_;
+  private final long missCount_;
+  private final long uncacheableCount_;
+  private final long evictionCount_;
+  private final long expirationCount_;
+  private final int size_;
+
+  FragmentCacheStats(long hitCount, long missCount, long uncacheableCount,
+                     long evictionCount, long expirationCount, int size) {
+    this.hitCount_ = hitCount;
+    this.missCount_ = missCount;
+    this.uncacheableCount_ = uncacheableCount;
+    this.evictionCount_ = evictionCount;
+    this.expirationCount_ = expirationCount;
+    this.size_ = size;
+  }
+
+  /**
+   * Returns the number of includes whose output was copied from the cache.
+   */
+  public long getHitCount() {
+    return hitCount_;
+  }
+
+  /**
+   * Returns the number of includes that were rendered and then cached.
+   */
+  public long getMissCount() {
+    return missCount_;
+  }
+
+  /**
+   * Returns the fraction of cacheable includes that were hits, or 0 if there
+   * have been none.
+   */
+  public double getHitRate() {
+    long lookups = hitCount_ + missCount_;
+    return lookups == 0 ? 0 : (double) hitCount_ / lookups;
+  }
+
+  /**
+   * Returns the number of includes that were rendered without the cache,
+   * because the output of the included template cannot be cached.
+   */
+  public long getUncacheableCount() {
+    return uncacheableCount_;
+  }
+
+  /**
+   * Returns the number of fragments evicted to keep the cache within its
+   * bounds.
+   */
+  public long getEvictionCount() {
+    return evictionCount_;
+  }
+
+  /**
+   * Returns the number of fragments dropped because they had expired.
+   */
+  public long getExpirationCount() {
+    return expirationCount_;
+  }
+
+  /**
+   * Returns the number of fragments in the cache.
+   */
+  public int getSize() {
+    return size_;
+  }
+
+  @Override
+  public String toString() {
+    return "FragmentCacheStats{hits=" + hitCount_
+        + ", misses=" + missCount_
+        + ", uncacheable=" + uncacheableCount_
+        + ", evictions=" + evictionCount_
+        + ", expirations=" + expirationCount_
+        + ", size=" + size_ + "}";
+  }
+}
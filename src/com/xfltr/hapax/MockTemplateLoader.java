@@ -29,9 +29,8 @@ class MockTemplateLoader implements TemplateLoader {
   }
 
   public Template getTemplate(String filename) throws TemplateException {
-    Template template = Template.parse(parser_, mock_templates.get(filename));
-    template.setLoader(this);
-    return template;
+    return Template.parse(parser_, mock_templates.get(filename))
+        .withLoader(this);
   }
 
   public Template getTemplate(String filename, String templateDirectory)
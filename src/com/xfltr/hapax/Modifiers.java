@@ -1,9 +1,9 @@
 package com.xfltr.hapax;
 
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.function.Supplier;
 
 /**
  * Static class that implements the methods used by the modifiers.
@@ -15,6 +15,62 @@ public final class Modifiers {
   private Modifiers() {
   }
 
+  /**
+   * Replacements for the chars below 256, indexed by modifier and then by
+   * char.  A null entry means the char is copied unchanged.
+   */
+  private static final String[][] TABLES = new String[FLAGS.values().length][];
+
+  private static final char[] HEX_LOWER = "0123456789abcdef".toCharArray();
+  private static final char[] HEX_UPPER = "0123456789ABCDEF".toCharArray();
+
+  static {
+    for (FLAGS modifier : FLAGS.values()) {
+      String[] table = new String[256];
+      for (char ch = 0; ch < 256; ch++) {
+        table[ch] = latin1Replacement(modifier, ch);
+      }
+      TABLES[modifier.ordinal()] = table;
+    }
+  }
+
+  private static String latin1Replacement(FLAGS modifier, char ch) {
+    boolean letter_or_digit = Character.isLetterOrDigit(ch);
+    switch (modifier) {
+      case H:
+        if (letter_or_digit || ch == ' ' || ch == '\r' || ch == '\n'
+            || ch == '\t') {
+          return null;
+        } else if (ch == '&') {
+          return "&amp;";
+        } else if (ch == '"') {
+          return "&quot;";
+        }
+        return "&#" + (int) ch + ";";
+      case X:
+        return letter_or_digit || ch == ' ' ? null : "&#" + (int) ch + ";";
+      case J:
+        return letter_or_digit || ch == '_' || ch == ' '
+            ? null : "\\x" + Integer.toHexString(ch);
+      case U:
+        if ((ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z')
+            || (ch >= '0' && ch <= '9') || ch == '.' || ch == '-'
+            || ch == '*' || ch == '_') {
+          return null;
+        } else if (ch == ' ') {
+          return "+";
+        } else if (ch < 0x80) {
+          return "%" + HEX_UPPER[ch >> 4] + HEX_UPPER[ch & 0xf];
+        }
+        // Encoded as UTF-8 by urlEncodeWide().
+        return "";
+      case B:
+        return ch == '\n' ? "<br/>" : null;
+      default:
+        throw new AssertionError(modifier);
+    }
+  }
+
   /**
    * Given a string, returns a string suitable for use as a JavaScript string
    * literal.
@@ -24,107 +80,241 @@ public final class Modifiers {
    * @return The escaped string
    */
   public static String jsEscape(String unescaped) {
-    final String also_safe = "_ ";
-    StringBuilder escaped = new StringBuilder();
-    for (int i = 0; i < unescaped.length(); i++) {
-      char ch = unescaped.charAt(i);
-      if (Character.isLetterOrDigit(ch) || also_safe.indexOf(ch) != -1) {
-        escaped.append(ch);
-      } else if (ch < 256) {
-        escaped.append("\\x").append(Integer.toHexString(ch));
-      } else {
-        escaped.append("\\u").append(String.format("%04x", (int) ch));
-      }
+    return applyModifiers(unescaped, Collections.singletonList(FLAGS.J));
+  }
+
+  public static String newlinesToBreaks(String t) {
+    return applyModifiers(t, Collections.singletonList(FLAGS.B));
+  }
+
+  public static String applyModifiers(String input, List<FLAGS> modifiers) {
+    if (modifiers.isEmpty()) {
+      return input;
+    }
+    StringBuilder sb = new StringBuilder(input.length() + 16);
+    try {
+      writeModified(input, modifiers, TemplateOutput.forStringBuilder(sb));
+    } catch (TemplateException e) {
+      // A StringBuilder output never fails.
+      throw new AssertionError(e);
     }
-    return escaped.toString();
+    return sb.toString();
   }
 
   /**
-   * Given a string, returns a string suitable for inclusion as a URL
-   * parameter.
-   *
-   * @param unescaped The value to escape.
+   * Applies modifiers to value, in order, and writes the result to out.
    *
-   * @return The escaped value.
+   * The chars of value are streamed through the whole chain of modifiers
+   * without building an intermediate string for each one: runs of chars that
+   * a modifier leaves unchanged are passed on to the next modifier as ranges
+   * of the original value, and escapes are looked up in precomputed tables.
+   * A value that needs no escaping is written to out in a single call.
    */
-  private static String urlEncode(String unescaped) {
-    try {
-      return URLEncoder.encode(unescaped, "UTF-8");
-    } catch (UnsupportedEncodingException e) {
-      throw new RuntimeException(e);
+  public static void writeModified(String value, List<FLAGS> modifiers,
+                                   TemplateOutput out)
+      throws TemplateException {
+    if (modifiers.isEmpty()) {
+      out.write(value);
+    } else {
+      escape(value, 0, value.length(), modifiers, 0, out);
     }
   }
 
   /**
-   * Given a string, returns a string suitable for use in an XML file.
-   *
-   * @param unescaped The string to escape.
-   *
-   * @return The escaped string.
+   * Like {@link #writeModified(String, List, TemplateOutput)}, for any
+   * CharSequence.
+   */
+  public static void writeModified(CharSequence value, List<FLAGS> modifiers,
+                                   TemplateOutput out)
+      throws TemplateException {
+    if (modifiers.isEmpty()) {
+      out.write(value, 0, value.length());
+    } else {
+      escape(value, 0, value.length(), modifiers, 0, out);
+    }
+  }
+
+  /**
+   * Writes a value from a {@link TemplateDictionary} to out, applying
+   * modifiers.  Suppliers are called, and integers are formatted straight
+   * into out; anything else that is not a CharSequence is written as its
+   * toString().
+   */
+  public static void writeValue(Object value, List<FLAGS> modifiers,
+                                TemplateOutput out)
+      throws TemplateException {
+    if (value instanceof String) {
+      writeModified((String) value, modifiers, out);
+      return;
+    }
+    if (value instanceof Supplier) {
+      value = ((Supplier<?>) value).get();
+      if (value == null) {
+        return;
+      }
+    }
+    if (value instanceof Long || value instanceof Integer) {
+      long n = ((Number) value).longValue();
+      // Digits are left alone by every modifier; only a '-' may be escaped.
+      if (n >= 0 || modifiers.isEmpty()) {
+        out.write(n);
+        return;
+      }
+    }
+    if (value instanceof CharSequence) {
+      writeModified((CharSequence) value, modifiers, out);
+    } else {
+      writeModified(String.valueOf(value), modifiers, out);
+    }
+  }
+
+  /**
+   * Streams s[start, end) through modifiers[index..] into out.
    */
-  private static String xmlEscape(String unescaped) {
-    StringBuilder escaped = new StringBuilder();
-    for (int i = 0; i < unescaped.length(); i++) {
-      char ch = unescaped.charAt(i);
-      if (Character.isLetterOrDigit(ch) || ch == ' ') {
-        escaped.append(ch);
+  private static void escape(CharSequence s, int start, int end,
+                             List<FLAGS> modifiers, int index,
+                             TemplateOutput out) throws TemplateException {
+    if (index == modifiers.size()) {
+      out.write(s, start, end);
+      return;
+    }
+    FLAGS modifier = modifiers.get(index);
+    String[] table = TABLES[modifier.ordinal()];
+    int run = start;
+    for (int i = start; i < end; i++) {
+      char ch = s.charAt(i);
+      if (ch < 256 ? table[ch] == null : isSafeWide(modifier, ch)) {
+        continue;
+      }
+      if (run < i) {
+        escape(s, run, i, modifiers, index + 1, out);
+      }
+      if (modifier == FLAGS.U && ch >= 0x80) {
+        i = urlEncodeWide(s, i, end, modifiers, index + 1, out);
+      } else if (ch < 256) {
+        String replacement = table[ch];
+        escape(replacement, 0, replacement.length(), modifiers, index + 1,
+            out);
       } else {
-        escaped.append("&#").append((int) ch).append(";");
+        escapeWide(modifier, ch, modifiers, index + 1, out);
       }
+      run = i + 1;
+    }
+    if (run < end) {
+      escape(s, run, end, modifiers, index + 1, out);
     }
-    return escaped.toString();
   }
 
   /**
-   * Given a string, returns a string suitable for use in an HTML document.
-   *
-   * @param unescaped The string to escape.
-   *
-   * @return The escaped string.
+   * Streams a single char through modifiers[index..] into out.
    */
-  private static String htmlEscape(String unescaped) {
-    StringBuilder escaped = new StringBuilder();
-    for (int i = 0; i < unescaped.length(); i++) {
-      char ch = unescaped.charAt(i);
-      if (Character.isLetterOrDigit(ch) || ch == ' ') {
-        escaped.append(ch);
-      } else if (ch == '&') {
-        escaped.append("&amp;");
-      } else if (ch == '"') {
-        escaped.append("&quot;");
-      } else if (ch == '\r' || ch == '\n' || ch == '\t') {
-        escaped.append(ch);
+  private static void escape(char ch, List<FLAGS> modifiers, int index,
+                             TemplateOutput out) throws TemplateException {
+    if (index == modifiers.size()) {
+      out.write(ch);
+      return;
+    }
+    FLAGS modifier = modifiers.get(index);
+    if (ch < 256) {
+      String replacement = TABLES[modifier.ordinal()][ch];
+      if (replacement == null) {
+        escape(ch, modifiers, index + 1, out);
+      } else if (modifier == FLAGS.U && ch >= 0x80) {
+        urlEncodeByte(0xc0 | (ch >> 6), modifiers, index + 1, out);
+        urlEncodeByte(0x80 | (ch & 0x3f), modifiers, index + 1, out);
       } else {
-        escaped.append("&#").append((int) ch).append(";");
+        escape(replacement, 0, replacement.length(), modifiers, index + 1,
+            out);
       }
+    } else if (isSafeWide(modifier, ch)) {
+      escape(ch, modifiers, index + 1, out);
+    } else if (modifier == FLAGS.U) {
+      urlEncodeWide(String.valueOf(ch), 0, 1, modifiers, index + 1, out);
+    } else {
+      escapeWide(modifier, ch, modifiers, index + 1, out);
     }
-    return escaped.toString();
   }
 
-  public static String newlinesToBreaks(String t) {
-    return t.replaceAll("\n", "<br/>");
+  /**
+   * Returns true if modifier leaves a char of 256 or above unchanged.
+   */
+  private static boolean isSafeWide(FLAGS modifier, char ch) {
+    switch (modifier) {
+      case B:
+        return true;
+      case U:
+        return false;
+      default:
+        return Character.isLetterOrDigit(ch);
+    }
   }
 
-  public static String applyModifiers(String input, List<FLAGS> modifiers) {
-    for (FLAGS modifier : modifiers) {
-      switch (modifier) {
-        case H:
-          input = htmlEscape(input);
-          break;
-        case X:
-          input = xmlEscape(input);
-          break;
-        case J:
-          input = jsEscape(input);
-          break;
-        case U:
-          input = urlEncode(input);
-          break;
-        case B:
-          input = newlinesToBreaks(input);
+  /**
+   * Writes the escape for a char of 256 or above: &amp;#NNNN; for HTML and
+   * XML, \\uXXXX for JavaScript.
+   */
+  private static void escapeWide(FLAGS modifier, char ch,
+                                 List<FLAGS> modifiers, int index,
+                                 TemplateOutput out) throws TemplateException {
+    if (modifier == FLAGS.J) {
+      escape('\\', modifiers, index, out);
+      escape('u', modifiers, index, out);
+      for (int shift = 12; shift >= 0; shift -= 4) {
+        escape(HEX_LOWER[(ch >> shift) & 0xf], modifiers, index, out);
+      }
+    } else {
+      escape('&', modifiers, index, out);
+      escape('#', modifiers, index, out);
+      int divisor = 10000;
+      while (divisor > ch) {
+        divisor /= 10;
+      }
+      for (; divisor > 0; divisor /= 10) {
+        escape((char) ('0' + (ch / divisor) % 10), modifiers, index, out);
       }
+      escape(';', modifiers, index, out);
     }
-    return input;
+  }
+
+  /**
+   * URL encodes the non-ASCII char at s[i] as %XX escapes of its UTF-8
+   * bytes, as URLEncoder does.  A surrogate pair is encoded as one code
+   * point, and an unpaired surrogate as "?".  Returns the index of the last
+   * char consumed.
+   */
+  private static int urlEncodeWide(CharSequence s, int i, int end,
+                                   List<FLAGS> modifiers, int index,
+                                   TemplateOutput out)
+      throws TemplateException {
+    char ch = s.charAt(i);
+    if (ch < 0x800) {
+      urlEncodeByte(0xc0 | (ch >> 6), modifiers, index, out);
+      urlEncodeByte(0x80 | (ch & 0x3f), modifiers, index, out);
+    } else if (Character.isSurrogate(ch)) {
+      if (Character.isHighSurrogate(ch) && i + 1 < end
+          && Character.isLowSurrogate(s.charAt(i + 1))) {
+        int cp = Character.toCodePoint(ch, s.charAt(i + 1));
+        urlEncodeByte(0xf0 | (cp >> 18), modifiers, index, out);
+        urlEncodeByte(0x80 | ((cp >> 12) & 0x3f), modifiers, index, out);
+        urlEncodeByte(0x80 | ((cp >> 6) & 0x3f), modifiers, index, out);
+        urlEncodeByte(0x80 | (cp & 0x3f), modifiers, index, out);
+        return i + 1;
+      }
+      urlEncodeByte('?', modifiers, index, out);
+    } else {
+      urlEncodeByte(0xe0 | (ch >> 12), modifiers, index, out);
+      urlEncodeByte(0x80 | ((ch >> 6) & 0x3f), modifiers, index, out);
+      urlEncodeByte(0x80 | (ch & 0x3f), modifiers, index, out);
+    }
+    return i;
+  }
+
+  private static void urlEncodeByte(int b, List<FLAGS> modifiers, int index,
+                                    TemplateOutput out)
+      throws TemplateException {
+    escape('%', modifiers, index, out);
+    escape(HEX_UPPER[(b >> 4) & 0xf], modifiers, index, out);
+    escape(HEX_UPPER[b & 0xf], modifiers, index, out);
   }
 
   public static List<FLAGS> parseModifiers(String[] split) {
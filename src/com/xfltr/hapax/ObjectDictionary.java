@@ -0,0 +1,336 @@
+package com.xfltr.hapax;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * A TemplateDictionary that reads values from an object: a record, a bean, a
+ * Map, or the element of a collection that a section iterates over.  See
+ * {@link TemplateDictionary#forObject(Object)}.
+ *
+ * Nothing is copied out of the object.  Each lookup reads the property when
+ * the template refers to it, and a section over a collection wraps each
+ * element as it is reached.
+ *
+ * @author dcoker
+ */
+final class ObjectDictionary extends TemplateDictionary {
+  private final Object target_;
+
+  /**
+   * The section whose collection target_ is an element of, or null.
+   */
+  private final Symbol name_;
+
+  /**
+   * If target_ is a Map, its keys by symbol, built on first lookup.  Values
+   * are always read from the Map itself, so that changes to it show up in
+   * the next render like changes to any other object.
+   */
+  private volatile KeyIndex keys_ = null;
+
+  ObjectDictionary(TemplateDictionary parent, Symbol name, Object target) {
+    super(parent);
+    this.target_ = target;
+    this.name_ = name;
+  }
+
+  @Override
+  Object lookupValue(Symbol key) {
+    Object value = localValue(key);
+    if (value == null) {
+      value = property(key);
+    }
+    return value != null ? value : inheritedValue(key);
+  }
+
+  /**
+   * Objects can change between renders, so their values are not memoized.
+   */
+  @Override
+  Object inherited(Symbol key) {
+    return lookupValue(key);
+  }
+
+  @Override
+  public List<TemplateDictionary> getChildDicts(Symbol key) {
+    List<TemplateDictionary> dicts = super.getChildDicts(key);
+    if (!dicts.isEmpty()) {
+      return dicts;
+    }
+    Object value = property(key);
+    if (value instanceof Iterable) {
+      return elements(this, key, (Iterable<?>) value);
+    } else if (value instanceof Object[]) {
+      return elements(this, key, Arrays.asList((Object[]) value));
+    } else if (value == null || isScalar(value)) {
+      return Collections.emptyList();
+    }
+    return Collections.<TemplateDictionary>singletonList(
+        new ObjectDictionary(this, key, value));
+  }
+
+  @Override
+  public boolean isHiddenSection(String sectionName) {
+    if (!super.isHiddenSection(sectionName)) {
+      return false;
+    }
+    Object value = property(Symbol.of(sectionName));
+    if (value == null) {
+      return true;
+    } else if (value instanceof Boolean) {
+      return !(Boolean) value;
+    } else if (value instanceof Collection) {
+      return ((Collection<?>) value).isEmpty();
+    } else if (value instanceof Iterable) {
+      // Shown, so as not to open it here as well as when it is rendered; a
+      // section over no rows renders nothing anyway.
+      return false;
+    } else if (value instanceof Object[]) {
+      return ((Object[]) value).length == 0;
+    } else if (value instanceof CharSequence) {
+      return ((CharSequence) value).length() == 0;
+    }
+    return false;
+  }
+
+  /**
+   * Returns child dictionaries of parent for the section name, one for each
+   * element of elements.
+   */
+  static List<TemplateDictionary> elements(TemplateDictionary parent,
+                                           Symbol name, Iterable<?> elements) {
+    if (elements instanceof List && elements instanceof RandomAccess) {
+      return new IndexedElementList(parent, name, elements);
+    }
+    return new ElementList(parent, name, elements, null);
+  }
+
+  /**
+   * Returns child dictionaries of parent for the section name, one for each
+   * element left in elements.  The list can only be iterated once.
+   */
+  static List<TemplateDictionary> elements(TemplateDictionary parent,
+                                           Symbol name, Iterator<?> elements) {
+    return new ElementList(parent, name, null, elements);
+  }
+
+  /**
+   * Returns true if dicts was returned by {@link #elements}.
+   */
+  static boolean isElements(List<TemplateDictionary> dicts) {
+    return dicts instanceof ElementList;
+  }
+
+  /**
+   * Returns the elements in dicts, which was returned by {@link #elements},
+   * for one render.  See {@link TemplateDictionary#openRows(List)}.
+   */
+  static List<TemplateDictionary> open(List<TemplateDictionary> dicts) {
+    return ((ElementList) dicts).open();
+  }
+
+  /**
+   * Returns the property of target_ named by key, or null.
+   */
+  private Object property(Symbol key) {
+    Object target = target_;
+    if (target == null) {
+      return null;
+    } else if (target instanceof Map) {
+      return entry((Map<?, ?>) target, key);
+    } else if (isScalar(target)) {
+      return key == name_ ? target : null;
+    }
+    return BeanAccessors.forClass(target.getClass()).get(target, key);
+  }
+
+  /**
+   * Returns the value in map whose key matches key in any case, or null.
+   * The keys are indexed again whenever the size of map has changed, or an
+   * indexed key is no longer in it.
+   */
+  private Object entry(Map<?, ?> map, Symbol key) {
+    KeyIndex index = keys_;
+    if (index == null || index.size_ != map.size()) {
+      index = new KeyIndex(map);
+      keys_ = index;
+    }
+    Object map_key = index.keys_.get(key.getName());
+    if (map_key == null) {
+      return null;
+    }
+    Object value = map.get(map_key);
+    if (value == null && !map.containsKey(map_key)) {
+      index = new KeyIndex(map);
+      keys_ = index;
+      map_key = index.keys_.get(key.getName());
+      return map_key != null ? map.get(map_key) : null;
+    }
+    return value;
+  }
+
+  /**
+   * The keys of a Map by their names folded as a {@link Symbol} folds them,
+   * and the size of the Map when they were read.  The keys of a Map are
+   * data, so they are not made into Symbols, which are never freed.
+   */
+  private static final class KeyIndex {
+    private final Map<String, Object> keys_ = new HashMap<String, Object>();
+    private final int size_;
+
+    private KeyIndex(Map<?, ?> map) {
+      for (Object key : map.keySet()) {
+        if (key != null) {
+          keys_.put(key.toString().toUpperCase(), key);
+        }
+      }
+      this.size_ = map.size();
+    }
+  }
+
+  /**
+   * Returns true for values that have no properties of their own.
+   */
+  private static boolean isScalar(Object value) {
+    return value instanceof CharSequence || value instanceof Number
+        || value instanceof Boolean || value instanceof Character
+        || value instanceof Enum;
+  }
+
+  /**
+   * The elements of a collection or an iterator, each wrapped in an
+   * ObjectDictionary as it is reached.
+   */
+  private static class ElementList
+      extends AbstractList<TemplateDictionary> {
+    private final TemplateDictionary parent_;
+    private final Symbol name_;
+    private final Iterable<?> elements_;
+
+    /**
+     * The elements if they can only be read once, else null.
+     */
+    private final Iterator<?> once_;
+    private boolean started_ = false;
+
+    private ElementList(TemplateDictionary parent, Symbol name,
+                        Iterable<?> elements, Iterator<?> once) {
+      this.parent_ = parent;
+      this.name_ = name;
+      this.elements_ = elements;
+      this.once_ = once;
+    }
+
+    @Override
+    public TemplateDictionary get(int index) {
+      if (elements_ instanceof List) {
+        return wrap(((List<?>) elements_).get(index));
+      }
+      Iterator<?> it = elements();
+      for (int i = 0; i < index; i++) {
+        it.next();
+      }
+      return wrap(it.next());
+    }
+
+    @Override
+    public int size() {
+      if (elements_ instanceof Collection) {
+        return ((Collection<?>) elements_).size();
+      }
+      int size = 0;
+      for (Iterator<?> it = elements(); it.hasNext(); it.next()) {
+        size++;
+      }
+      return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+      if (once_ != null) {
+        checkNotStarted();
+        return !once_.hasNext();
+      }
+      if (elements_ instanceof Collection) {
+        return ((Collection<?>) elements_).isEmpty();
+      }
+      return !elements_.iterator().hasNext();
+    }
+
+    /**
+     * Returns the elements for one render, or an empty list if there are
+     * none.  An Iterable that is not a Collection, such as a database query,
+     * is opened here once, and the iterator that found its first element is
+     * the one that renders them, so that the list itself holds no state
+     * between renders.
+     */
+    private List<TemplateDictionary> open() {
+      if (once_ != null || elements_ instanceof Collection) {
+        return isEmpty() ? Collections.<TemplateDictionary>emptyList() : this;
+      }
+      Iterator<?> it = elements_.iterator();
+      if (!it.hasNext()) {
+        return Collections.emptyList();
+      }
+      return new ElementList(parent_, name_, null, it);
+    }
+
+    @Override
+    public Iterator<TemplateDictionary> iterator() {
+      final Iterator<?> it = elements();
+      return new Iterator<TemplateDictionary>() {
+        public boolean hasNext() {
+          return it.hasNext();
+        }
+
+        public TemplateDictionary next() {
+          return wrap(it.next());
+        }
+
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    private Iterator<?> elements() {
+      if (once_ == null) {
+        return elements_.iterator();
+      }
+      checkNotStarted();
+      started_ = true;
+      return once_;
+    }
+
+    private void checkNotStarted() {
+      if (started_) {
+        throw new IllegalStateException("The rows of section " + name_
+            + " come from an Iterator and have already been rendered");
+      }
+    }
+
+    private TemplateDictionary wrap(Object element) {
+      return new ObjectDictionary(parent_, name_, element);
+    }
+  }
+
+  /**
+   * The elements of a list with fast access by index, such as an ArrayList
+   * or an array, whose rows can be rendered in parallel.
+   */
+  private static final class IndexedElementList extends ElementList
+      implements RandomAccess {
+    private IndexedElementList(TemplateDictionary parent, Symbol name,
+                               Iterable<?> elements) {
+      super(parent, name, elements, null);
+    }
+  }
+}
@@ -0,0 +1,179 @@
+package com.xfltr.hapax;
+
+import com.xfltr.hapax.parser.TemplateNode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Renders the rows of large repeated sections on a {@link ForkJoinPool}.  See
+ * {@link Template#withParallelSections(ParallelSections)}.
+ *
+ * A section with at least threshold rows is split into chunks of consecutive
+ * rows.  Each chunk is rendered into a buffer of its own, and the buffers are
+ * written to the output in order, each as soon as it and those before it are
+ * done.  The output is the same as when the rows are rendered one after
+ * another:
+ *
+ * <ul> <li>If a row assigns a variable with [define], which later rows would
+ * see, the rows from that one on are rendered again in order on the calling
+ * thread.</li> <li>If a row fails, the output of the rows before it is written
+ * before the exception is thrown.</li> </ul>
+ *
+ * Rows are rendered by several threads at once, so values that are computed
+ * while rendering, such as those passed to {@link
+ * TemplateDictionary#putLazy}, must be safe to compute from any thread.
+ * Sections whose rows can only be read once, such as those filled in by
+ * {@link TemplateDictionary#showSectionForEach(String, java.util.Iterator)},
+ * are always rendered in order on the calling thread.
+ *
+ * @author dcoker
+ */
+public final class ParallelSections {
+  /**
+   * How many chunks a section is split into for each thread of the pool, so
+   * that threads that finish early can take work from those that don't.
+   */
+  private static final int CHUNKS_PER_THREAD = 4;
+
+  private final ForkJoinPool pool_;
+  private final int threshold_;
+
+  private ParallelSections(ForkJoinPool pool, int threshold) {
+    this.pool_ = pool;
+    this.threshold_ = threshold;
+  }
+
+  /**
+   * Renders sections with at least threshold rows on the common pool.
+   */
+  public static ParallelSections create(int threshold) {
+    return create(ForkJoinPool.commonPool(), threshold);
+  }
+
+  /**
+   * Renders sections with at least threshold rows on the given pool.
+   */
+  public static ParallelSections create(ForkJoinPool pool, int threshold) {
+    if (threshold < 2) {
+      throw new IllegalArgumentException(
+          "threshold must be at least 2: " + threshold);
+    }
+    return new ParallelSections(pool, threshold);
+  }
+
+  public int getThreshold() {
+    return threshold_;
+  }
+
+  /**
+   * Renders body once for each of dicts, if there are enough of them to be
+   * worth splitting up.
+   *
+   * @return false, having rendered nothing, if the rows should be rendered in
+   * order by the caller.
+   */
+  boolean render(TemplateNode body, List<TemplateDictionary> dicts,
+                 RenderContext context, TemplateOutput collector)
+      throws TemplateException {
+    // Only lists with cheap random access can be split; the size of any other
+    // list may take a pass over its rows to find out.
+    if (!(dicts instanceof RandomAccess) || dicts.size() < threshold_) {
+      return false;
+    }
+    int size = dicts.size();
+    int count = Math.min(size, pool_.getParallelism() * CHUNKS_PER_THREAD);
+    List<Chunk> chunks = new ArrayList<Chunk>(count);
+    Progress progress = new Progress();
+    for (int i = 0; i < count; i++) {
+      Chunk chunk = new Chunk(body, dicts, (int) ((long) size * i / count),
+          (int) ((long) size * (i + 1) / count), context.fork(), progress);
+      chunks.add(chunk);
+      pool_.execute(chunk);
+    }
+    try {
+      for (Chunk chunk : chunks) {
+        chunk.join();
+        collector.write(chunk.buffer_, 0, chunk.written_);
+        if (chunk.error_ != null) {
+          throw chunk.error_;
+        } else if (chunk.failure_ != null) {
+          throw chunk.failure_;
+        } else if (chunk.defined_) {
+          for (TemplateDictionary dict : dicts.subList(chunk.row_, size)) {
+            body.evaluate(dict, context, collector);
+          }
+          return true;
+        }
+      }
+    } finally {
+      progress.stopped_ = true;
+    }
+    return true;
+  }
+
+  /**
+   * Set once the rows of the remaining chunks are no longer needed.
+   */
+  private static final class Progress {
+    private volatile boolean stopped_ = false;
+  }
+
+  /**
+   * Consecutive rows of a section, rendered into a buffer of their own.
+   * Never serialized.
+   */
+  @SuppressWarnings("serial")
+  private static final class Chunk extends RecursiveAction {
+    private final TemplateNode body_;
+    private final List<TemplateDictionary> dicts_;
+    private final int end_;
+    private final RenderContext context_;
+    private final Progress progress_;
+    private final StringBuilder buffer_ = new StringBuilder();
+
+    /**
+     * The row being rendered, and the length of the buffer before it.  Once
+     * the chunk is done, the row it stopped at and the output to keep.
+     */
+    private int row_;
+    private int written_ = 0;
+
+    private TemplateException error_ = null;
+    private RuntimeException failure_ = null;
+    private boolean defined_ = false;
+
+    private Chunk(TemplateNode body, List<TemplateDictionary> dicts, int start,
+                  int end, RenderContext context, Progress progress) {
+      this.body_ = body;
+      this.dicts_ = dicts;
+      this.row_ = start;
+      this.end_ = end;
+      this.context_ = context;
+      this.progress_ = progress;
+    }
+
+    @Override
+    protected void compute() {
+      TemplateOutput output = TemplateOutput.forStringBuilder(buffer_);
+      try {
+        for (; row_ < end_ && !progress_.stopped_; row_++) {
+          body_.evaluate(dicts_.get(row_), context_, output);
+          written_ = buffer_.length();
+        }
+      } catch (TemplateException e) {
+        written_ = buffer_.length();
+        error_ = e;
+      } catch (RenderContext.ForkedDefineException e) {
+        // The rows from this one on are rendered again by the caller.
+        defined_ = true;
+      } catch (RuntimeException e) {
+        written_ = buffer_.length();
+        failure_ = e;
+      }
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package com.xfltr.hapax;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What {@link TemplateCache#preload} did: how long each template took to
+ * read, parse and warm up, and which ones failed.
+ *
+ * @author dcoker
+ */
+public final class PreloadReport {
+  private final List<Result> results_;
+  private final long elapsedNanos_;
+
+  PreloadReport(List<Result> results, long elapsedNanos) {
+    this.results_ = Collections.unmodifiableList(results);
+    this.elapsedNanos_ = elapsedNanos;
+  }
+
+  /**
+   * The outcome of preloading one template.
+   */
+  public static final class Result {
+    private final String name_;
+    private final long readNanos_;
+    private final long parseNanos_;
+    private final long warmUpNanos_;
+    private final int warmUpFailures_;
+    private final TemplateException error_;
+
+    Result(String name, long readNanos, long parseNanos, long warmUpNanos,
+           int warmUpFailures, TemplateException error) {
+      this.name_ = name;
+      this.readNanos_ = readNanos;
+      this.parseNanos_ = parseNanos;
+      this.warmUpNanos_ = warmUpNanos;
+      this.warmUpFailures_ = warmUpFailures;
+      this.error_ = error;
+    }
+
+    /**
+     * Returns the name of the template, relative to the cache's base path.
+     */
+    public String getName() {
+      return name_;
+    }
+
+    /**
+     * Returns the time spent reading the file, in nanoseconds.
+     */
+    public long getReadNanos() {
+      return readNanos_;
+    }
+
+    /**
+     * Returns the time spent parsing and compiling the template, in
+     * nanoseconds.
+     */
+    public long getParseNanos() {
+      return parseNanos_;
+    }
+
+    /**
+     * Returns the time spent in warm-up renders, in nanoseconds.
+     */
+    public long getWarmUpNanos() {
+      return warmUpNanos_;
+    }
+
+    /**
+     * Returns the number of warm-up renders that threw.
+     */
+    public int getWarmUpFailures() {
+      return warmUpFailures_;
+    }
+
+    /**
+     * Returns why the template could not be loaded, or null if it was.
+     * Warm-up renders that fail are not errors; see {@link
+     * #getWarmUpFailures()}.
+     */
+    public TemplateException getError() {
+      return error_;
+    }
+
+    @Override
+    public String toString() {
+      return name_ + ": read " + readNanos_ + "ns, parse " + parseNanos_
+          + "ns, warm-up " + warmUpNanos_ + "ns"
+          + (warmUpFailures_ > 0
+              ? " (" + warmUpFailures_ + " failed)" : "")
+          + (error_ != null ? ", failed: " + error_.getMessage() : "");
+    }
+  }
+
+  /**
+   * Returns the result for every file under the base path, in path order.
+   */
+  public List<Result> getResults() {
+    return results_;
+  }
+
+  /**
+   * Returns the number of templates that could not be loaded.
+   */
+  public int getFailureCount() {
+    int failures = 0;
+    for (Result result : results_) {
+      if (result.error_ != null) {
+        failures++;
+      }
+    }
+    return failures;
+  }
+
+  /**
+   * Returns the number of warm-up renders that threw, over all templates.
+   */
+  public int getWarmUpFailureCount() {
+    int failures = 0;
+    for (Result result : results_) {
+      failures += result.warmUpFailures_;
+    }
+    return failures;
+  }
+
+  /**
+   * Returns true if every template was loaded.
+   */
+  public boolean isComplete() {
+    return getFailureCount() == 0;
+  }
+
+  /**
+   * Returns the wall-clock time the preload took, in nanoseconds.
+   */
+  public long getElapsedNanos() {
+    return elapsedNanos_;
+  }
+
+  @Override
+  public String toString() {
+    return "PreloadReport{templates=" + results_.size()
+        + ", failures=" + getFailureCount()
+        + ", warmUpFailures=" + getWarmUpFailureCount()
+        + ", elapsedNanos=" + elapsedNanos_ + "}";
+  }
+}
@@ -0,0 +1,202 @@
+package com.xfltr.hapax;
+
+import com.xfltr.hapax.parser.CyclicIncludeException;
+import com.xfltr.hapax.parser.TemplateNode;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * RenderContext holds the state of a single call to {@link
+ * Template#render(TemplateDictionary, TemplateOutput)}: the loader
+ * context of the template being rendered, the values assigned by [define], and
+ * the stack of included templates used to detect include cycles.
+ *
+ * A new RenderContext is created for every render, so neither {@link Template}
+ * nor the {@link TemplateDictionary} passed to it is modified while rendering.
+ * That is what allows a single cached Template to be rendered by many threads
+ * at once.
+ *
+ * When the rows of a repeated section are rendered in parallel (see {@link
+ * ParallelSections}), each chunk of rows is rendered with a context of its
+ * own, forked from this one.
+ *
+ * @author dcoker
+ */
+public final class RenderContext {
+  private final TemplateLoaderContext loaderContext_;
+  private final State state_;
+  private final ParallelSections parallel_;
+  private final FragmentCache fragments_;
+
+  /**
+   * The part of the context that is shared with included templates.
+   */
+  private static final class State {
+    private Map<Symbol, String> defines_ = null;
+    private List<String> includes_ = null;
+
+    /**
+     * True if this state belongs to a chunk of rows that is being rendered
+     * alongside others, and so may not assign variables.
+     */
+    private boolean forked_ = false;
+  }
+
+  /**
+   * Thrown by {@link #define} in a forked context.  The rows of the section
+   * are then rendered in order instead.  Never serialized.
+   */
+  @SuppressWarnings("serial")
+  static final class ForkedDefineException extends RuntimeException {
+    private ForkedDefineException() {
+      super(null, null, false, false);
+    }
+  }
+
+  RenderContext(TemplateLoaderContext loaderContext,
+                ParallelSections parallel, FragmentCache fragments) {
+    this(loaderContext, new State(), parallel, fragments);
+  }
+
+  private RenderContext(TemplateLoaderContext loaderContext, State state,
+                        ParallelSections parallel, FragmentCache fragments) {
+    this.loaderContext_ = loaderContext;
+    this.state_ = state;
+    this.parallel_ = parallel;
+    this.fragments_ = fragments;
+  }
+
+  public TemplateLoaderContext getLoaderContext() {
+    return loaderContext_;
+  }
+
+  /**
+   * Returns the cache for the output of included templates, or null.
+   */
+  FragmentCache getFragmentCache() {
+    return fragments_;
+  }
+
+  /**
+   * Returns a context for rendering an included template: it shares this
+   * render's defines and include stack, but has its own loader context.
+   */
+  public RenderContext withLoaderContext(TemplateLoaderContext loaderContext) {
+    if (loaderContext == loaderContext_) {
+      return this;
+    }
+    return new RenderContext(loaderContext, state_, parallel_, fragments_);
+  }
+
+  /**
+   * Returns a context for rendering a chunk of rows on another thread.  It
+   * sees this render's defines, which cannot change while the chunk is being
+   * rendered, and has a copy of the include stack.
+   */
+  RenderContext fork() {
+    State state = new State();
+    state.defines_ = state_.defines_;
+    if (state_.includes_ != null) {
+      state.includes_ = new ArrayList<String>(state_.includes_);
+    }
+    state.forked_ = true;
+    return new RenderContext(loaderContext_, state, parallel_, fragments_);
+  }
+
+  /**
+   * Renders body once for each of dicts, in parallel if this render was asked
+   * to and there are enough of them.
+   *
+   * @return false, having rendered nothing, if the rows should be rendered in
+   * order by the caller.
+   */
+  public boolean renderInParallel(TemplateNode body,
+                                  List<TemplateDictionary> dicts,
+                                  TemplateOutput collector)
+      throws TemplateException {
+    return parallel_ != null
+        && parallel_.render(body, dicts, this, collector);
+  }
+
+  /**
+   * Returns true if the variable has been set by [define] during this render,
+   * or is present in the dictionary.
+   */
+  public boolean contains(TemplateDictionary dict, Symbol key) {
+    return lookupValue(dict, key) != null;
+  }
+
+  /**
+   * Returns the value assigned to the variable by [define] during this render,
+   * or else its value in the dictionary.
+   */
+  public String get(TemplateDictionary dict, Symbol key) {
+    String value = lookup(dict, key);
+    return value != null ? value : dict.get(key);
+  }
+
+  /**
+   * Returns the value assigned to the variable by [define] during this render,
+   * or else its value in the dictionary, or null if it has neither.  This is
+   * {@link #contains} and {@link #get} in a single lookup.
+   */
+  public String lookup(TemplateDictionary dict, Symbol key) {
+    return TemplateDictionary.toString(lookupValue(dict, key));
+  }
+
+  /**
+   * Like {@link #lookup}, but returns dictionary values as they were put,
+   * without formatting them.  Render them with {@link Modifiers#writeValue}.
+   */
+  public Object lookupValue(TemplateDictionary dict, Symbol key) {
+    if (state_.defines_ != null) {
+      String defined = state_.defines_.get(key);
+      if (defined != null) {
+        return defined;
+      }
+    }
+    return dict.lookupValue(key);
+  }
+
+  /**
+   * Assigns a variable for the rest of this render.  Values defined this way
+   * take precedence over the dictionary.
+   */
+  public void define(Symbol key, String value) {
+    if (state_.forked_) {
+      throw new ForkedDefineException();
+    }
+    if (state_.defines_ == null) {
+      state_.defines_ = new HashMap<Symbol, String>();
+    }
+    state_.defines_.put(key, value);
+  }
+
+  /**
+   * Records that the given template is being included.
+   *
+   * @throws CyclicIncludeException if the template is already being rendered
+   * further up the include stack.
+   */
+  public void enterInclude(String path) throws CyclicIncludeException {
+    if (state_.includes_ == null) {
+      state_.includes_ = new ArrayList<String>();
+    }
+    if (state_.includes_.contains(path)) {
+      throw new CyclicIncludeException(
+          "Cyclic include loop detected: " + path
+          + " includes itself via " + state_.includes_);
+    }
+    state_.includes_.add(path);
+  }
+
+  /**
+   * Records that the most recently entered include has finished rendering.
+   */
+  public void exitInclude() {
+    state_.includes_.remove(state_.includes_.size() - 1);
+  }
+}
@@ -0,0 +1,89 @@
+package com.xfltr.hapax;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An interned, case-folded name of a dictionary key.  Dictionary keys are case
+ * insensitive; a Symbol does the case folding once, when it is created, so
+ * that {@link TemplateDictionary} can look keys up by identity.
+ *
+ * Templates resolve the names they refer to into Symbols when they are
+ * parsed.  Keys passed as Strings to {@link TemplateDictionary} are resolved
+ * with {@link #of(String)}, which only folds a spelling the first time it sees
+ * it.
+ *
+ * Symbols are never freed, so there should be a bounded number of distinct
+ * keys: the names used by templates and by the code that fills dictionaries
+ * in, rather than, say, one per row of data.
+ *
+ * @author dcoker
+ */
+public final class Symbol {
+
+  /**
+   * Every Symbol, under its folded name and under each other spelling that
+   * has been looked up.
+   */
+  private static final ConcurrentMap<String, Symbol> symbols_ =
+      new ConcurrentHashMap<String, Symbol>();
+
+  private static final AtomicInteger nextId_ = new AtomicInteger();
+
+  private final String name_;
+  private final int id_;
+
+  private Symbol(String name, int id) {
+    this.name_ = name;
+    this.id_ = id;
+  }
+
+  /**
+   * Returns the Symbol for key, in any case.
+   */
+  public static Symbol of(String key) {
+    Symbol symbol = symbols_.get(key);
+    if (symbol != null) {
+      return symbol;
+    }
+    String folded = key.toUpperCase();
+    symbol = symbols_.get(folded);
+    if (symbol == null) {
+      Symbol created = new Symbol(folded, nextId_.getAndIncrement());
+      symbol = symbols_.putIfAbsent(folded, created);
+      if (symbol == null) {
+        symbol = created;
+      }
+    }
+    if (!folded.equals(key)) {
+      symbols_.putIfAbsent(key, symbol);
+    }
+    return symbol;
+  }
+
+  /**
+   * Returns the upper-case name of this symbol.
+   */
+  public String getName() {
+    return name_;
+  }
+
+  /**
+   * Returns a small integer that is unique to this symbol.  Ids are handed out
+   * in creation order, starting at 0.
+   */
+  public int getId() {
+    return id_;
+  }
+
+  @Override
+  public int hashCode() {
+    return id_;
+  }
+
+  @Override
+  public String toString() {
+    return name_;
+  }
+}
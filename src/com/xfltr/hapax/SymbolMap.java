@@ -0,0 +1,103 @@
+package com.xfltr.hapax;
+
+/**
+ * A compact map from {@link Symbol} to values, for {@link TemplateDictionary}.
+ * Keys and values are held in two parallel open-addressed arrays, probed
+ * linearly from the symbol's id.  Symbols are interned, so keys are compared
+ * by identity.  Null values cannot be stored: get() returns null for a missing
+ * key.
+ *
+ * SymbolMap is not synchronized.  It may be read by many threads once it is
+ * no longer modified.
+ *
+ * @author dcoker
+ */
+final class SymbolMap<V> {
+  private static final int INITIAL_CAPACITY = 4;
+
+  private Symbol[] keys_;
+  private Object[] values_;
+  private int size_ = 0;
+
+  SymbolMap() {
+    this(INITIAL_CAPACITY);
+  }
+
+  private SymbolMap(int capacity) {
+    this.keys_ = new Symbol[capacity];
+    this.values_ = new Object[capacity];
+  }
+
+  @SuppressWarnings("unchecked")
+  V get(Symbol key) {
+    Symbol[] keys = keys_;
+    int mask = keys.length - 1;
+    for (int i = key.getId() & mask; ; i = (i + 1) & mask) {
+      Symbol k = keys[i];
+      if (k == key) {
+        return (V) values_[i];
+      }
+      if (k == null) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Maps key to value, and returns the value it replaced, or null.
+   */
+  @SuppressWarnings("unchecked")
+  V put(Symbol key, V value) {
+    int mask = keys_.length - 1;
+    int i = key.getId() & mask;
+    for (; keys_[i] != null; i = (i + 1) & mask) {
+      if (keys_[i] == key) {
+        V previous = (V) values_[i];
+        values_[i] = value;
+        return previous;
+      }
+    }
+    keys_[i] = key;
+    values_[i] = value;
+    // Keep at least half of the slots empty, so that probes stay short.
+    if (++size_ * 2 > keys_.length) {
+      resize(keys_.length * 2);
+    }
+    return null;
+  }
+
+  int size() {
+    return size_;
+  }
+
+  /**
+   * Returns a copy of this map with key mapped to value.  This map is not
+   * changed.
+   */
+  SymbolMap<V> with(Symbol key, V value) {
+    SymbolMap<V> copy = new SymbolMap<V>(keys_.length);
+    System.arraycopy(keys_, 0, copy.keys_, 0, keys_.length);
+    System.arraycopy(values_, 0, copy.values_, 0, values_.length);
+    copy.size_ = size_;
+    copy.put(key, value);
+    return copy;
+  }
+
+  private void resize(int capacity) {
+    Symbol[] keys = keys_;
+    Object[] values = values_;
+    keys_ = new Symbol[capacity];
+    values_ = new Object[capacity];
+    int mask = capacity - 1;
+    for (int j = 0; j < keys.length; j++) {
+      if (keys[j] != null) {
+        int i = keys[j].getId() & mask;
+        while (keys_[i] != null) {
+          i = (i + 1) & mask;
+        }
+        keys_[i] = keys[j];
+        values_[i] = values[j];
+      }
+    }
+  }
+}
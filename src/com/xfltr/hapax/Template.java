@@ -1,30 +1,71 @@
 package com.xfltr.hapax;
 
+import com.xfltr.hapax.codegen.BytecodeCompiler;
 import com.xfltr.hapax.parser.*;
 
+import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.text.MessageFormat;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
 import java.util.List;
-import java.util.logging.Logger;
 
 /**
- * Template executes the program defined by the tmpl_ list.  The list itself is
- * constructed by implementations of {@link TemplateParser}.
+ * Template executes the program defined by the tmpl_ tree.  The tree is
+ * constructed by {@link TemplateCompiler} from the tokens returned by
+ * implementations of {@link TemplateParser}.
  *
  * Instead of constructing a Template directly, use an implementation of {@link
  * TemplateLoader} such as {@link TemplateCache}.
  *
+ * Templates are immutable.  All state that changes while rendering lives in a
+ * {@link RenderContext} created for each render, so a single Template may be
+ * rendered by any number of threads at once.
+ *
+ * Templates can be rendered to a String, a Writer, or directly to UTF-8 bytes
+ * on an OutputStream or WritableByteChannel.  When rendering to bytes, literal
+ * text is copied from bytes encoded once when the template was parsed, and the
+ * output is collected in a buffer that is reused by later renders on the same
+ * thread.
+ *
+ * The rows of large repeated sections can be rendered on several threads at
+ * once; see {@link #withParallelSections(ParallelSections)}.  The output of
+ * included templates can be cached; see {@link
+ * #withFragmentCache(FragmentCache)}.
+ *
  * @author dcoker
  */
 public final class Template {
-  private static final Logger logger_ =
-      Logger.getLogger(Template.class.getSimpleName());
+  private static final TemplateLoaderContext NULL_LOADER_CONTEXT =
+      new TemplateLoaderContext(new NullTemplateLoader(), null);
+
+  /**
+   * A template that renders nothing.
+   */
+  static final Template EMPTY = empty();
+
+  private final TemplateNode tmpl_;
+
+  /**
+   * The tree tmpl_ was compiled from, which is tmpl_ itself unless the
+   * template was compiled to bytecode.
+   */
+  private final TemplateNode program_;
+
+  private final TemplateLoaderContext context_;
+  private final ParallelSections parallel_;
+  private final FragmentCache fragments_;
 
-  private final List<TemplateNode> tmpl_;
-  private TemplateLoader loader_ = new NullTemplateLoader();
-  private TemplateLoaderContext context_ =
-      new TemplateLoaderContext(loader_, null);
+  /**
+   * What the output of this template depends on, or {@link
+   * FragmentCache#NOT_CACHEABLE}.  Found on first use by a FragmentCache.
+   */
+  private volatile FragmentCache.Keys fragmentKeys_ = null;
+
+  private static Template empty() {
+    TemplateNode nothing =
+        SequenceNode.create(Collections.<TemplateNode>emptyList());
+    return new Template(nothing, nothing, NULL_LOADER_CONTEXT, null, null);
+  }
 
   /**
    * Constructs a Template from the given CTemplate string.
@@ -35,165 +76,215 @@ public final class Template {
 
   /**
    * Constructs a Template from the given string, using the specified parser.
+   * The parsed tokens are compiled into a tree by {@link TemplateCompiler}, so
+   * malformed blocks are reported here rather than when rendering.
    */
   public static Template parse(TemplateParser parser, String template)
       throws TemplateParserException {
     List<TemplateNode> results = parser.parse(template);
-    return new Template(results);
+    TemplateNode program = TemplateCompiler.compile(results);
+    return new Template(program, program, NULL_LOADER_CONTEXT, null, null);
   }
 
-  public void setLoaderContext(TemplateLoaderContext context) {
-    this.context_ = context;
-    this.loader_ = context.getLoader();
+  /**
+   * Constructs a Template from the given string, using the specified parser,
+   * and compiles it to JVM bytecode with the given compiler.  The result
+   * renders exactly like the interpreted Template returned by {@link
+   * #parse(TemplateParser, String)}.
+   */
+  public static Template parse(TemplateParser parser, String template,
+                               BytecodeCompiler compiler)
+      throws TemplateException {
+    List<TemplateNode> results = parser.parse(template);
+    return fromTree(TemplateCompiler.compile(results), compiler);
   }
 
-  public void setLoader(TemplateLoader loader) {
-    this.context_ = new TemplateLoaderContext(loader, null);
-    this.loader_ = context_.getLoader();
+  /**
+   * Constructs a Template from a tree built by {@link TemplateCompiler},
+   * compiling it to bytecode with compiler unless that is null.
+   */
+  static Template fromTree(TemplateNode program, BytecodeCompiler compiler)
+      throws TemplateException {
+    return fromTree(program, program, compiler);
   }
 
-  public String renderToString(final TemplateDictionary td)
-      throws TemplateException {
-    return renderToString(tmpl_, td);
+  /**
+   * Constructs a Template that runs linked, a copy of program made by {@link
+   * TemplateLinker}, compiling it to bytecode with compiler unless that is
+   * null.  program is still what the template is analyzed by.
+   */
+  static Template fromTree(TemplateNode program, TemplateNode linked,
+                           BytecodeCompiler compiler) throws TemplateException {
+    TemplateNode tmpl = compiler != null ? compiler.compile(linked) : linked;
+    return new Template(tmpl, program, NULL_LOADER_CONTEXT, null, null);
   }
 
-  private Template(List<TemplateNode> tmpl) {
-    this.tmpl_ = tmpl;
+  /**
+   * Returns a copy of this Template that loads included templates using the
+   * given context.
+   */
+  public Template withLoaderContext(TemplateLoaderContext context) {
+    return new Template(tmpl_, program_, context, parallel_, fragments_);
   }
 
-  private void render(List<TemplateNode> list,
-                      final TemplateDictionary td,
-                      final PrintWriter pw)
-      throws TemplateException {
-    // TODO: delegate these to the nodes, per evaluate.
-    for (int i = 0; i < list.size(); i++) {
-      TemplateNode node = list.get(i);
-      if (node instanceof SectionNode) {
-        i = handleSectionNode(list, td, i, pw);
-      } else if (node instanceof EztDefineNode) {
-        i = handleEztDefineNode(list, td, i);
-      } else if (node instanceof EztConditionalNode) {
-        i = handleEztConditionalNode(list, td, i, pw);
-      } else {
-        node.evaluate(td, context_, pw);
-      }
-    }
+  /**
+   * Returns a copy of this Template that loads included templates from the
+   * given loader.
+   */
+  public Template withLoader(TemplateLoader loader) {
+    return withLoaderContext(new TemplateLoaderContext(loader, null));
   }
 
-  private int handleEztConditionalNode(List<TemplateNode> list,
-                                       TemplateDictionary td,
-                                       int is_node_idx, PrintWriter pw)
-      throws TemplateException {
-    EztConditionalNode ecn = (EztConditionalNode) list.get(is_node_idx);
-    Range range = ecn.advise(list, is_node_idx, td);
-    List<TemplateNode> view = list.subList(range.getStart(), range.getStop());
-    render(view, td, pw);
-    return range.getSkipTo();
+  /**
+   * Returns a copy of this Template that renders the rows of large repeated
+   * sections in parallel, as configured by parallel.  The output is the same
+   * as that of this Template.  Pass null to render every section in order on
+   * the calling thread, which is the default.
+   */
+  public Template withParallelSections(ParallelSections parallel) {
+    return new Template(tmpl_, program_, context_, parallel, fragments_);
   }
 
-  private int handleEztDefineNode(List<TemplateNode> list,
-                                  TemplateDictionary td, int define_node_idx)
-      throws TemplateException {
-    // TODO: the behavior of this method and handleEztConditionalNode are very
-    // similar; they can probably be merged elegantly.
+  /**
+   * Returns a copy of this Template that caches the output of the templates
+   * it includes in fragments.  See {@link FragmentCache} for which templates
+   * can be cached.  Pass null to render every include, which is the default.
+   */
+  public Template withFragmentCache(FragmentCache fragments) {
+    return new Template(tmpl_, program_, context_, parallel_, fragments);
+  }
 
-    EztDefineNode edn = (EztDefineNode) list.get(define_node_idx);
-    String var_name = edn.getVariableName();
+  public TemplateLoaderContext getLoaderContext() {
+    return context_;
+  }
 
-    Range range = edn.advise(list, define_node_idx);
-    List<TemplateNode> view = list.subList(range.getStart(), range.getStop());
-    StringWriter sw = new StringWriter();
-    render(view, td, new PrintWriter(sw));
+  /**
+   * Returns the variables, sections, includes and modifiers that this
+   * template refers to, including those of the templates it includes by a
+   * literal filename.  Included templates are loaded from this template's
+   * loader; those that cannot be loaded are reported rather than thrown.
+   */
+  public TemplateInfo analyze() {
+    return TemplateInfo.of(program_, context_);
+  }
 
-    String new_value = sw.toString();
-    td.put(var_name, new_value);
+  public String renderToString(final TemplateDictionary td)
+      throws TemplateException {
+    StringBuilder sb = new StringBuilder();
+    render(td, TemplateOutput.forStringBuilder(sb));
+    return sb.toString();
+  }
 
-    return range.getSkipTo();
+  private Template(TemplateNode tmpl, TemplateNode program,
+                   TemplateLoaderContext context, ParallelSections parallel,
+                   FragmentCache fragments) {
+    this.tmpl_ = tmpl;
+    this.program_ = program;
+    this.context_ = context;
+    this.parallel_ = parallel;
+    this.fragments_ = fragments;
   }
 
-  public void render(TemplateDictionary td, PrintWriter printWriter)
-      throws TemplateException {
-    render(tmpl_, td, printWriter);
+  /**
+   * Returns the tree this template runs, which identifies it in a {@link
+   * FragmentCache}.  Copies made by the with methods share it.
+   */
+  TemplateNode getRoot() {
+    return tmpl_;
   }
 
-  private int handleSectionNode(final List<TemplateNode> list,
-                                final TemplateDictionary td,
-                                final int open_tag_idx,
-                                final PrintWriter collector)
-      throws TemplateException {
-    SectionNode sn = (SectionNode) list.get(open_tag_idx);
-
-    String new_section_name = sn.getSectionName();
-    // scan forward for the {{/CLOSE}} tag
-    int p = open_tag_idx + 1;
-    // keep track of the number of other open section tags we've encountered
-    // so that we can throw an error if there is a mismatch
-    int other_sections = 0;
-    for (; p < list.size(); ++p) {
-      TemplateNode tp = list.get(p);
-      if (tp instanceof SectionNode) {
-        SectionNode maybe_close_tag = (SectionNode) tp;
-        if (maybe_close_tag.isOpenSectionTag()) {
-          other_sections++;
-        }
-        if (maybe_close_tag.isCloseSectionTag()) {
-          if (maybe_close_tag.getSectionName().equals(sn.getSectionName())) {
-            // We found the matching close tag.
-            break;
-          } else {
-            if (other_sections == 0) {
-              String msg = MessageFormat.format(
-                  "mismatched close tag: expecting a close tag for {0}, " +
-                      "but got close tag for {1}",
-                  sn.getSectionName(),
-                  maybe_close_tag.getSectionName());
-              logger_.warning(msg);
-              throw new TemplateException(msg);
-            } else {
-              other_sections--;
-            }
-          }
-        }
-      }
-    }
+  /**
+   * Returns the tree this template was parsed into, before any linking or
+   * compilation to bytecode.
+   */
+  TemplateNode getTree() {
+    return program_;
+  }
 
-    // If there was no close tag, then the template is broken.
-    if (p == list.size()) {
-      throw new TemplateException(
-          "missing close tag for " + sn.getSectionName());
+  /**
+   * Returns what the output of this template depends on, or {@link
+   * FragmentCache#NOT_CACHEABLE}.
+   */
+  FragmentCache.Keys getFragmentKeys() {
+    FragmentCache.Keys keys = fragmentKeys_;
+    if (keys == null) {
+      keys = FragmentCache.keysOf(program_);
+      fragmentKeys_ = keys;
     }
+    return keys;
+  }
 
-    // p now points to the close node.
+  public void render(TemplateDictionary td, PrintWriter printWriter)
+      throws TemplateException {
+    render(td, TemplateOutput.forWriter(printWriter));
+  }
 
-    // If this section is hidden, we don't render the intermediate nodes.
-    if (td.isHiddenSection(sn.getSectionName())) {
-      logger_.warning("Skipping section " + sn.getSectionName() +
-          " because it is hidden");
-      return p;
-    }
+  /**
+   * Renders this Template to out as UTF-8.  The output is buffered, and
+   * flushed to out before this method returns, even if rendering fails, so
+   * that out holds whatever was rendered before the error.  out is not
+   * closed.
+   */
+  public void render(TemplateDictionary td, OutputStream out)
+      throws TemplateException {
+    render(td, TemplateOutput.Utf8Output.acquire(out, null));
+  }
 
-    List<TemplateDictionary> subdicts = td.getChildDicts(new_section_name);
+  /**
+   * Renders this Template to channel as UTF-8.  The output is buffered, and
+   * written to channel before this method returns, even if rendering fails.
+   * channel is not closed.
+   *
+   * @throws IllegalArgumentException if channel is a non-blocking
+   *     SelectableChannel
+   */
+  public void render(TemplateDictionary td, WritableByteChannel channel)
+      throws TemplateException {
+    render(td, TemplateOutput.Utf8Output.acquire(null, channel));
+  }
 
-    // The presence of child dictionaries indicates that this section is repeated.
-    // If there are no child dicts of the same name, then we display only once.
-    if (subdicts.size() == 0) {
-      render(list.subList(open_tag_idx + 1, p), td, collector);
-    } else {
-      for (TemplateDictionary subdict : subdicts) {
-        render(list.subList(open_tag_idx + 1, p), subdict, collector);
+  private void render(TemplateDictionary td,
+                      TemplateOutput.Utf8Output output)
+      throws TemplateException {
+    boolean rendered = false;
+    try {
+      render(td, (TemplateOutput) output);
+      rendered = true;
+      output.flush();
+    } finally {
+      if (!rendered) {
+        // Write out what was rendered before the error, as a PrintWriter
+        // would have.  A failure here must not hide the original error.
+        try {
+          output.flush();
+        } catch (TemplateException e) {
+          // ignored
+        }
       }
+      output.release();
     }
-
-    return p;
   }
 
-  private String renderToString(final List<TemplateNode> list,
-                                final TemplateDictionary td)
+  /**
+   * Renders this Template to the given output.  The output is not flushed.
+   */
+  public void render(TemplateDictionary td, TemplateOutput output)
       throws TemplateException {
-    StringWriter k = new StringWriter();
-    PrintWriter pw = new PrintWriter(k);
-    render(list, td, pw);
-    pw.flush();
-    return k.toString();
+    tmpl_.evaluate(td, new RenderContext(context_, parallel_, fragments_),
+        output);
+  }
+
+  /**
+   * Renders this Template as part of an enclosing render, such as an
+   * include, sharing that render's context.  If the enclosing render has a
+   * {@link FragmentCache}, the output may come from it.
+   */
+  public void render(TemplateDictionary td, RenderContext context,
+                     TemplateOutput output) throws TemplateException {
+    FragmentCache fragments = context.getFragmentCache();
+    if (fragments != null && fragments.render(this, td, context, output)) {
+      return;
+    }
+    tmpl_.evaluate(td, context, output);
   }
 }
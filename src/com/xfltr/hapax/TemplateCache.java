@@ -1,45 +1,212 @@
 package com.xfltr.hapax;
 
+import com.xfltr.hapax.codegen.BytecodeCompiler;
 import com.xfltr.hapax.parser.CTemplateParser;
+import com.xfltr.hapax.parser.CyclicIncludeException;
+import com.xfltr.hapax.parser.EztIncludeNode;
+import com.xfltr.hapax.parser.LinkedIncludeNode;
+import com.xfltr.hapax.parser.TemplateCompiler;
+import com.xfltr.hapax.parser.TemplateLinker;
+import com.xfltr.hapax.parser.TemplateNode;
 import com.xfltr.hapax.parser.TemplateParser;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.Reader;
-import java.util.HashMap;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
 
 /**
  * TemplateCache constructs {@link Template} objects based on files stored on
- * disk.  TemplateCache implements an in-memory unbounded cache of parsed
- * Templates.  Each stored Template is automatically invalidated if the template
- * file on disk changes.
+ * disk.  TemplateCache implements an in-memory cache of parsed Templates.  Each
+ * stored Template is automatically invalidated if the template file on disk
+ * changes.
+ *
+ * By default the cache notices changes by checking the modification time of
+ * the file on every lookup, which costs a stat() per template and per include
+ * on every render.  Two cheaper modes are available: {@link
+ * Builder#checkInterval(long)} checks each file at most once per interval, and
+ * {@link Builder#watchForChanges(boolean)} watches the template directory and
+ * drops templates as soon as their files change, so that lookups never touch
+ * the filesystem.  A watching cache should be {@link #close() closed} when it
+ * is no longer needed.
+ *
+ * A {@link TemplateSnapshot} written ahead of time can be given to {@link
+ * Builder#snapshot(TemplateSnapshot)}, so that templates whose files have not
+ * changed since are read from it rather than parsed.
+ *
+ * With {@link Builder#linkIncludes(boolean)}, [include] tags that name a
+ * quoted filename are resolved once, when the including template is loaded,
+ * rather than on every render; small included templates can also be inlined,
+ * see {@link Builder#inlineIncludes(int)}.  A template whose linked includes
+ * have since been reloaded is linked again the next time it is looked up.
+ *
+ * The cache records which templates each cached template includes: those it
+ * names by a quoted filename, found when it is loaded, and any others it has
+ * been seen to include while rendering.  When a template file changes, only
+ * the templates that include it, directly or not, are linked again; see
+ * {@link #getDependencyGraph()}.
+ *
+ * A {@link FragmentCache} given to {@link Builder#fragmentCache(FragmentCache)}
+ * is used by every template the cache loads, and loses the fragments of each
+ * template the cache reloads, replaces or evicts.
+ *
+ * {@link #preload(Executor, int)} loads every template under the base path
+ * up front, in parallel, and can render each a few times to warm up the JIT;
+ * the {@link PreloadReport} it returns says how long each took and which
+ * failed, so that a server can report ready only once its cache is warm.
+ *
+ * By default the cache is unbounded.  Use {@link Builder#maximumSize(int)} or
+ * {@link Builder#maximumWeight(long)} to cap it; once the cap is exceeded, the
+ * least recently used templates are evicted.  {@link #stats()} reports hits,
+ * misses, load time and evictions.
  *
  * See examples/TemplateCacheExample.java for an example of how to use
  * TemplateCache.
  *
  * It is recommended that you place a reference to your TemplateCache instance
  * in some globally accessible location so that you use a single cache across
- * multiple requests.
+ * multiple requests.  TemplateCache is thread-safe: lookups of cached
+ * templates do not lock, and a template that several threads miss at the same
+ * time is only read and parsed once.
  *
  * @author dcoker
  */
-public class TemplateCache implements TemplateLoader {
+public class TemplateCache implements TemplateLoader, Closeable {
 
-  private final Map<String, Template> templates_ =
-      new HashMap<String, Template>();
-  private final Map<String, Long> lastUpdated_ =
-      new HashMap<String, Long>();
+  private final ConcurrentMap<String, Entry> templates_ =
+      new ConcurrentHashMap<String, Entry>();
   private final String basePath_;
   private final TemplateParser parser_;
 
+  /**
+   * Compiles loaded templates to bytecode, or null to interpret them.
+   */
+  private final BytecodeCompiler compiler_;
+
+  /**
+   * Parsed templates to use instead of parsing files, or null.
+   */
+  private final TemplateSnapshot snapshot_;
+
+  /**
+   * The absolute, normalized base path, which snapshot names are relative
+   * to.
+   */
+  private final Path baseDirectory_;
+
+  private final boolean linkIncludes_;
+
+  /**
+   * Linked templates of at most this many nodes are inlined, or 0 to never
+   * inline them.
+   */
+  private final int inlineMaxNodes_;
+
+  /**
+   * The templates this thread is linking, outermost first, to find include
+   * cycles while loading rather than while rendering.
+   */
+  private final ThreadLocal<List<String>> linking_ =
+      new ThreadLocal<List<String>>() {
+        @Override
+        protected List<String> initialValue() {
+          return new ArrayList<String>();
+        }
+      };
+
+  private static final long WEIGHT_LOADING = -1;
+  private static final long WEIGHT_REMOVED = -2;
+
+  /**
+   * Files at least this large are memory-mapped rather than copied into a
+   * byte array before decoding.
+   */
+  private static final long MAP_THRESHOLD = 1024 * 1024;
+
+  private final Charset charset_;
+
+  /**
+   * Used by every loaded template, and told of every discarded one, or null.
+   */
+  private final FragmentCache fragments_;
+
+  /**
+   * The files under the base path that preload() loads.
+   */
+  private final PathMatcher preloadFiles_;
+
+  private final int maximumSize_;
+  private final long maximumWeight_;
+
+  /**
+   * How long a template is trusted after its modification time was last
+   * checked, or 0 to check on every lookup.
+   */
+  private final long checkIntervalNanos_;
+
+  /**
+   * Drops templates when their files change, or null when changes are found
+   * by checking modification times.
+   */
+  private final DirectoryWatcher watcher_;
+
+  /**
+   * Sum of the weights of all loaded entries.  Only maintained when
+   * maximumWeight_ is set.
+   */
+  private final AtomicLong totalWeight_ = new AtomicLong();
+
+  /**
+   * Serializes eviction, so that two threads never pick the same victim.
+   */
+  private final Object evictionLock_ = new Object();
+
+  private final LongAdder hits_ = new LongAdder();
+  private final LongAdder misses_ = new LongAdder();
+  private final LongAdder loadFailures_ = new LongAdder();
+  private final LongAdder totalLoadNanos_ = new LongAdder();
+  private final LongAdder evictions_ = new LongAdder();
+
   /**
    * Creates a TemplateLoader using the CTemplateParser.
    */
   public static TemplateLoader create(String base_path) {
-    return new TemplateCache(CTemplateParser.create(), base_path);
+    return builder(base_path).build();
   }
 
   /**
@@ -47,47 +214,297 @@ public class TemplateCache implements TemplateLoader {
    */
   public static TemplateLoader createForParser(String base_path,
                                                TemplateParser parser) {
-    return new TemplateCache(parser, base_path);
+    return builder(base_path).parser(parser).build();
+  }
+
+  /**
+   * Returns a Builder for a TemplateCache rooted at base_path, for when the
+   * defaults of {@link #create(String)} are not what you want.
+   */
+  public static Builder builder(String base_path) {
+    return new Builder(base_path);
+  }
+
+  /**
+   * Configures and creates a TemplateCache.
+   */
+  public static final class Builder {
+    private final String basePath_;
+    private TemplateParser parser_ = CTemplateParser.create();
+    private boolean compileToBytecode_ = false;
+    private Charset charset_ = StandardCharsets.UTF_8;
+    private int maximumSize_ = 0;
+    private long maximumWeight_ = 0;
+    private long checkIntervalMillis_ = 0;
+    private boolean watchForChanges_ = false;
+    private TemplateSnapshot snapshot_ = null;
+    private boolean linkIncludes_ = false;
+    private int inlineMaxNodes_ = 0;
+    private FragmentCache fragments_ = null;
+    private PathMatcher preloadFiles_ =
+        FileSystems.getDefault().getPathMatcher("glob:**.{tpl,ezt}");
+
+    private Builder(String basePath) {
+      this.basePath_ = basePath;
+    }
+
+    /**
+     * Sets the parser used for template files.  Defaults to CTemplateParser.
+     */
+    public Builder parser(TemplateParser parser) {
+      this.parser_ = parser;
+      return this;
+    }
+
+    /**
+     * If true, loaded templates are compiled to JVM bytecode by a {@link
+     * BytecodeCompiler} owned by the cache.  If false (the default), they are
+     * interpreted.
+     */
+    public Builder compileToBytecode(boolean compile) {
+      this.compileToBytecode_ = compile;
+      return this;
+    }
+
+    /**
+     * Sets the encoding of template files.  Defaults to UTF-8, whatever the
+     * platform's default charset is.
+     */
+    public Builder charset(Charset charset) {
+      if (charset == null) {
+        throw new NullPointerException("charset");
+      }
+      this.charset_ = charset;
+      return this;
+    }
+
+    /**
+     * Caps the number of cached templates.  Once more than this many are
+     * cached, the least recently used ones are evicted.  Zero (the default)
+     * means unbounded.
+     */
+    public Builder maximumSize(int entries) {
+      if (entries < 0) {
+        throw new IllegalArgumentException("maximumSize must not be negative");
+      }
+      this.maximumSize_ = entries;
+      return this;
+    }
+
+    /**
+     * Caps the estimated memory retained by cached templates, in bytes.  The
+     * weight of a template is estimated from the length of its source, which
+     * is what dominates its parsed form.  Once the total weight exceeds this
+     * cap, the least recently used templates are evicted.  Zero (the default)
+     * means unbounded.
+     */
+    public Builder maximumWeight(long bytes) {
+      if (bytes < 0) {
+        throw new IllegalArgumentException(
+            "maximumWeight must not be negative");
+      }
+      this.maximumWeight_ = bytes;
+      return this;
+    }
+
+    /**
+     * Checks the modification time of each template file at most once per
+     * interval, instead of on every lookup.  Changes to a file may go
+     * unnoticed for up to this long.  Zero (the default) checks every time.
+     */
+    public Builder checkInterval(long millis) {
+      if (millis < 0) {
+        throw new IllegalArgumentException(
+            "checkInterval must not be negative");
+      }
+      this.checkIntervalMillis_ = millis;
+      return this;
+    }
+
+    /**
+     * If true, the cache watches its base directory tree with a {@link
+     * java.nio.file.WatchService} and drops templates as soon as their files
+     * change.  Lookups of cached templates then never touch the filesystem.
+     * Takes precedence over {@link #checkInterval(long)}.
+     */
+    public Builder watchForChanges(boolean watch) {
+      this.watchForChanges_ = watch;
+      return this;
+    }
+
+    /**
+     * Reads templates from snapshot, written by {@link TemplateSnapshot#write}
+     * for this cache's base path and parser, instead of parsing their files.
+     * Files that have changed since the snapshot was written are parsed.
+     */
+    public Builder snapshot(TemplateSnapshot snapshot) {
+      this.snapshot_ = snapshot;
+      return this;
+    }
+
+    /**
+     * If true, [include] tags that name a quoted filename are resolved when
+     * the including template is loaded, so rendering them costs no path
+     * manipulation, lookup or modification check.  Those checks are made for
+     * the included templates when the including one is looked up instead, so
+     * a Template kept by the caller goes on rendering the includes it was
+     * linked with.  Include cycles through quoted filenames are reported by
+     * {@link #getTemplate(String)}, as a {@link CyclicIncludeException},
+     * even if the include that closes the cycle would never be rendered.
+     * Includes that cannot be loaded are left to fail when rendered, as they
+     * do by default.
+     */
+    public Builder linkIncludes(boolean link) {
+      this.linkIncludes_ = link;
+      return this;
+    }
+
+    /**
+     * Links includes as {@link #linkIncludes(boolean)} does, and copies the
+     * tree of each included template of at most maxNodes nodes into the
+     * including template, so that it is not rendered as a separate template.
+     * Templates that include others by a variable are never inlined.  Zero
+     * (the default) never inlines.
+     */
+    public Builder inlineIncludes(int maxNodes) {
+      if (maxNodes < 0) {
+        throw new IllegalArgumentException(
+            "inlineIncludes must not be negative");
+      }
+      this.inlineMaxNodes_ = maxNodes;
+      return this;
+    }
+
+    /**
+     * Has every template loaded by the cache keep the output of the templates
+     * it includes in fragments, as {@link Template#withFragmentCache} does.
+     * The fragments of a template are dropped when the cache reloads,
+     * replaces or evicts it, so they are not left to be evicted.
+     */
+    public Builder fragmentCache(FragmentCache fragments) {
+      this.fragments_ = fragments;
+      return this;
+    }
+
+    /**
+     * Sets which files under the base path {@link #preload(Executor, int)}
+     * loads, matched against their paths relative to the base path.
+     * Defaults to files named *.tpl or *.ezt, so that other files kept with
+     * the templates, such as images, READMEs and editor backups, are not
+     * reported as templates that failed to parse.
+     */
+    public Builder preloadFiles(PathMatcher matcher) {
+      if (matcher == null) {
+        throw new NullPointerException("matcher");
+      }
+      this.preloadFiles_ = matcher;
+      return this;
+    }
+
+    /**
+     * Creates the cache.
+     *
+     * @throws IllegalArgumentException if a snapshot was given that was
+     * written with a different parser.
+     *
+     * @throws UncheckedIOException if watchForChanges was requested and the
+     * base directory cannot be watched.
+     */
+    public TemplateCache build() {
+      return new TemplateCache(this);
+    }
   }
 
   /**
    * Parses and fetches a template from disk.
    *
+   * This method is safe to call from many threads at once.  If several
+   * threads ask for a template that is missing or stale, exactly one of them
+   * reads and parses the file; the others wait for and share its result.
+   *
    * @param filename The path to the template, relative to the templateDirectory
    *                 passed to the ctor of TemplateCache.
    */
   public Template getTemplate(String filename) throws TemplateException {
     filename = PathUtil.join(basePath_, filename);
+    return await(filename, lookup(filename, true, true));
+  }
 
-    // We check the last modified timestamp on the template once per render.
-    // If the template has changed, we reload and reparse it.  Otherwise, we
-    // return the copy from memory.
-    File file = new File(filename);
-    long last_modified = file.lastModified();
+  /**
+   * Returns the current entry for filename, loading it if it is missing or
+   * stale.  Unless wait is true, returns null rather than wait for another
+   * thread to load it.  Unless countHit is true, finding a current entry is
+   * not counted in {@link #stats()}, so that checking the templates another
+   * was linked to does not count as a request for them.
+   */
+  private Entry lookup(String filename, boolean wait, boolean countHit)
+      throws TemplateException {
+    final File file = new File(filename);
+    long last_modified = 0;
+    boolean checked = false;
 
-    if (inCache(filename, last_modified)) {
-      return templates_.get(filename);
-    }
+    while (true) {
+      Entry entry = templates_.get(filename);
+      if (entry != null && !wait && !entry.future_.isDone()) {
+        return null;
+      }
 
-    FileReader reader;
-    try {
-      reader = new FileReader(filename);
-    } catch (FileNotFoundException e) {
-      throw new TemplateException(e);
-    }
+      // It may be time to check whether the template has changed.  If it
+      // hasn't, we return the copy from memory.  Otherwise, we reload and
+      // reparse it.
+      boolean current = entry != null && isCurrent(entry);
+      if (!current) {
+        if (!checked) {
+          last_modified = file.lastModified();
+          checked = true;
+        }
+        if (entry != null && entry.lastModified_ >= last_modified) {
+          entry.checkedAt_ = System.nanoTime();
+          current = true;
+        }
+      }
 
-    String contents;
-    try {
-      contents = readToString(reader);
-    } catch (IOException e) {
-      throw new TemplateException(e);
+      Entry loading;
+      if (current) {
+        // A watched cache marks the templates that include a changed one, so
+        // only an unwatched one looks up the templates this one links to.
+        if (!entry.relink_ && (watcher_ != null || linksCurrent(entry))) {
+          if (countHit) {
+            hits_.increment();
+          }
+          if (isBounded()) {
+            entry.lastAccess_ = System.nanoTime();
+          }
+          return entry;
+        }
+        // A template it includes has been reloaded; link it again.
+        loading = new Entry(filename, file, entry.lastModified_, entry);
+      } else {
+        loading = new Entry(filename, file, last_modified, null);
+      }
+      boolean installed = entry == null
+          ? templates_.putIfAbsent(filename, loading) == null
+          : templates_.replace(filename, entry, loading);
+      if (installed) {
+        misses_.increment();
+        if (entry != null) {
+          discarded(entry);
+          if (!current) {
+            relinkDependents(Collections.singleton(filename));
+          }
+        }
+        loading.future_.run();
+        try {
+          await(filename, loading);
+        } finally {
+          if (isBounded()) {
+            evict();
+          }
+        }
+        return loading;
+      }
+      // Another thread installed an entry first; use that one.
     }
-
-    Template results;
-    results = Template.parse(parser_, contents);
-    results.setLoaderContext(new TemplateLoaderContext(this, file.getParent()));
-    updateCache(filename, results, last_modified);
-    return results;
   }
 
   /**
@@ -100,42 +517,801 @@ public class TemplateCache implements TemplateLoader {
   public Template getTemplate(String filename, String templateDirectory)
       throws TemplateException {
     assert templateDirectory.startsWith(basePath_);
+    return getTemplate(relativeName(filename));
+  }
+
+  /**
+   * Returns the name of a template included by filename from a subdirectory
+   * of the basePath, for {@link #getTemplate(String, String)}.
+   */
+  private String relativeName(String filename) {
     String directory_relative_to_template_directory =
         PathUtil.makeRelative(basePath_, "");
     // Construct the filename that we use in the cache
-    filename =
-        PathUtil.join(directory_relative_to_template_directory, filename);
-    return getTemplate(filename);
+    return PathUtil.join(directory_relative_to_template_directory, filename);
+  }
+
+  /**
+   * Loads every template under the base path into the cache, as chosen by
+   * {@link Builder#preloadFiles(PathMatcher)}, on executor, and
+   * waits for them all.  Templates that fail to load are reported rather
+   * than thrown.
+   *
+   * If warmUpRenders is positive, each template that loads is then rendered
+   * that many times into a discarded string, with a dictionary that sets
+   * every variable it uses and shows every section once, so that the JIT has
+   * seen its code before the first real request.  Warm-up renders include
+   * an empty template in place of each template named by a variable.  Those
+   * that fail, for instance because a quoted include names no template, are
+   * counted in the report.
+   *
+   * @throws IOException if the base path cannot be listed.
+   */
+  public PreloadReport preload(Executor executor, final int warmUpRenders)
+      throws IOException, InterruptedException {
+    long start = System.nanoTime();
+    List<Path> paths = new ArrayList<Path>();
+    Stream<Path> walk = Files.walk(baseDirectory_);
+    try {
+      for (Iterator<Path> it = walk.iterator(); it.hasNext(); ) {
+        Path path = it.next();
+        if (Files.isRegularFile(path)
+            && preloadFiles_.matches(baseDirectory_.relativize(path))) {
+          paths.add(path);
+        }
+      }
+    } finally {
+      walk.close();
+    }
+    Collections.sort(paths);
+
+    List<FutureTask<PreloadReport.Result>> tasks =
+        new ArrayList<FutureTask<PreloadReport.Result>>(paths.size());
+    for (Path path : paths) {
+      final String name = TemplateSnapshot.nameOf(baseDirectory_, path);
+      FutureTask<PreloadReport.Result> task =
+          new FutureTask<PreloadReport.Result>(
+              new Callable<PreloadReport.Result>() {
+                public PreloadReport.Result call() {
+                  return preload(name, warmUpRenders);
+                }
+              });
+      tasks.add(task);
+      executor.execute(task);
+    }
+
+    List<PreloadReport.Result> results =
+        new ArrayList<PreloadReport.Result>(tasks.size());
+    for (FutureTask<PreloadReport.Result> task : tasks) {
+      try {
+        results.add(task.get());
+      } catch (ExecutionException e) {
+        throw new IllegalStateException(e.getCause());
+      }
+    }
+    return new PreloadReport(results, System.nanoTime() - start);
+  }
+
+  /**
+   * Loads and warms up one template for {@link #preload(Executor, int)}.
+   */
+  private PreloadReport.Result preload(String name, int warmUpRenders) {
+    Template template;
+    try {
+      template = getTemplate(name);
+    } catch (TemplateException e) {
+      return new PreloadReport.Result(name, 0, 0, 0, 0, e);
+    }
+    long read_nanos = 0;
+    long parse_nanos = 0;
+    Entry entry = templates_.get(PathUtil.join(basePath_, name));
+    if (entry != null) {
+      read_nanos = entry.readNanos_;
+      parse_nanos = entry.parseNanos_;
+    }
+    long warm_up_nanos = 0;
+    int warm_up_failures = 0;
+    if (warmUpRenders > 0) {
+      long start = System.nanoTime();
+      TemplateInfo info = template.analyze();
+      TemplateDictionary dict = warmUpDictionary(info);
+      Template warm_up =
+          new WarmUpLoader(info.getIncludeVariables()).warmUp(template);
+      for (int i = 0; i < warmUpRenders; i++) {
+        try {
+          warm_up.renderToString(dict);
+        } catch (TemplateException e) {
+          warm_up_failures++;
+        }
+      }
+      warm_up_nanos = System.nanoTime() - start;
+    }
+    return new PreloadReport.Result(name, read_nanos, parse_nanos,
+        warm_up_nanos, warm_up_failures, null);
+  }
+
+  /**
+   * Returns a dictionary that sets every variable in info to its own name,
+   * and shows every section in it once.
+   */
+  private static TemplateDictionary warmUpDictionary(TemplateInfo info) {
+    TemplateDictionary dict = TemplateDictionary.create();
+    for (String variable : info.getVariables()) {
+      dict.put(variable, variable);
+    }
+    for (String section : info.getSections()) {
+      dict.showSection(section);
+      dict.addChildDict(section);
+    }
+    return dict;
   }
 
   /**
    * Private constructor.
    */
-  private TemplateCache(TemplateParser parser, String templateDirectory) {
-    this.basePath_ = templateDirectory;
-    this.parser_ = parser;
+  private TemplateCache(Builder builder) {
+    this.basePath_ = builder.basePath_;
+    this.parser_ = builder.parser_;
+    this.compiler_ =
+        builder.compileToBytecode_ ? BytecodeCompiler.create() : null;
+    if (builder.snapshot_ != null && !builder.snapshot_.isFor(parser_)) {
+      throw new IllegalArgumentException(
+          "The snapshot was written with a different parser than "
+              + parser_.getClass().getName());
+    }
+    this.snapshot_ = builder.snapshot_;
+    this.baseDirectory_ = Paths.get(basePath_).toAbsolutePath().normalize();
+    this.linkIncludes_ = builder.linkIncludes_ || builder.inlineMaxNodes_ > 0;
+    this.inlineMaxNodes_ = builder.inlineMaxNodes_;
+    this.charset_ = builder.charset_;
+    this.fragments_ = builder.fragments_;
+    this.preloadFiles_ = builder.preloadFiles_;
+    this.maximumSize_ = builder.maximumSize_;
+    this.maximumWeight_ = builder.maximumWeight_;
+    this.checkIntervalNanos_ =
+        TimeUnit.MILLISECONDS.toNanos(builder.checkIntervalMillis_);
+    if (builder.watchForChanges_) {
+      try {
+        this.watcher_ = DirectoryWatcher.start(Paths.get(basePath_),
+            new DirectoryWatcher.Listener() {
+              public void changed(Path path) {
+                invalidate(path);
+              }
+
+              public void overflowed() {
+                invalidateAll();
+              }
+            });
+      } catch (IOException e) {
+        throw new UncheckedIOException("Unable to watch " + basePath_, e);
+      }
+    } else {
+      this.watcher_ = null;
+    }
+  }
+
+  /**
+   * Stops watching the template directory, if this cache was built with
+   * {@link Builder#watchForChanges(boolean)}.  Templates loaded afterwards
+   * are still cached, but are no longer invalidated when their files change.
+   */
+  public void close() {
+    if (watcher_ != null) {
+      watcher_.close();
+    }
+  }
+
+  /**
+   * Returns true if entry can be used without checking the modification time
+   * of its file.
+   */
+  private boolean isCurrent(Entry entry) {
+    if (watcher_ != null) {
+      return true;
+    }
+    return checkIntervalNanos_ > 0
+        && System.nanoTime() - entry.checkedAt_ < checkIntervalNanos_;
+  }
+
+  /**
+   * Returns false if a template that entry was linked to is no longer the
+   * current one, or has changed on disk, so that entry must be linked again.
+   * Checking loads the linked templates if needed, but never waits for
+   * another thread to load them.
+   */
+  private boolean linksCurrent(Entry entry) {
+    List<Link> links = entry.links_;
+    if (links == null || !entry.future_.isDone()) {
+      return true;
+    }
+    for (Link link : links) {
+      try {
+        if (lookup(link.filename_, false, false) != link.entry_) {
+          return false;
+        }
+      } catch (TemplateException e) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Drops every template whose file is path or lies beneath it, and has the
+   * templates that include them linked again.  Events are rare next to
+   * lookups, so this scans the cache rather than keeping a second index by
+   * path.
+   */
+  private void invalidate(Path path) {
+    Set<String> removed = new HashSet<String>();
+    for (Map.Entry<String, Entry> e : templates_.entrySet()) {
+      if (e.getValue().path_.startsWith(path)
+          && templates_.remove(e.getKey(), e.getValue())) {
+        discarded(e.getValue());
+        removed.add(e.getKey());
+      }
+    }
+    relinkDependents(removed);
+  }
+
+  /**
+   * Marks every linked template that includes one of filenames, directly or
+   * through other templates, to be linked again the next time it is looked
+   * up.  Like {@link #invalidate(Path)}, this follows the graph backwards by
+   * scanning the cache.
+   */
+  private void relinkDependents(Set<String> filenames) {
+    if (!linkIncludes_) {
+      return;
+    }
+    Set<String> seen = new HashSet<String>(filenames);
+    Deque<String> pending = new ArrayDeque<String>(filenames);
+    while (!pending.isEmpty()) {
+      String filename = pending.remove();
+      for (Map.Entry<String, Entry> e : templates_.entrySet()) {
+        Entry dependent = e.getValue();
+        if (dependent.includes_.contains(filename)) {
+          if (dependent.links_ != null) {
+            dependent.relink_ = true;
+          }
+          if (seen.add(e.getKey())) {
+            pending.add(e.getKey());
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns, for each cached template, the templates it includes, by their
+   * names relative to the base path.  Includes of a quoted filename are
+   * known as soon as a template is loaded; includes of a filename held by a
+   * variable appear once a render has included them.
+   */
+  public SortedMap<String, SortedSet<String>> getDependencyGraph() {
+    SortedMap<String, SortedSet<String>> graph =
+        new TreeMap<String, SortedSet<String>>();
+    for (Map.Entry<String, Entry> e : templates_.entrySet()) {
+      if (e.getValue().getIfLoaded() == null) {
+        continue;
+      }
+      SortedSet<String> includes = new TreeSet<String>();
+      for (String filename : e.getValue().includes_) {
+        includes.add(nameOf(filename));
+      }
+      graph.put(nameOf(e.getKey()),
+          Collections.unmodifiableSortedSet(includes));
+    }
+    return Collections.unmodifiableSortedMap(graph);
+  }
+
+  /**
+   * Returns the name, relative to the base path, of the template cached as
+   * filename.
+   */
+  private String nameOf(String filename) {
+    return TemplateSnapshot.nameOf(baseDirectory_,
+        new File(filename).toPath().toAbsolutePath().normalize());
+  }
+
+  private void invalidateAll() {
+    for (Map.Entry<String, Entry> e : templates_.entrySet()) {
+      if (templates_.remove(e.getKey(), e.getValue())) {
+        discarded(e.getValue());
+      }
+    }
+  }
+
+  /**
+   * Returns a snapshot of this cache's statistics.
+   */
+  public TemplateCacheStats stats() {
+    return new TemplateCacheStats(hits_.sum(), misses_.sum(),
+        loadFailures_.sum(), totalLoadNanos_.sum(), evictions_.sum(),
+        templates_.size(), totalWeight_.get());
+  }
+
+  private boolean isBounded() {
+    return maximumSize_ > 0 || maximumWeight_ > 0;
+  }
+
+  private boolean overCapacity() {
+    return (maximumSize_ > 0 && templates_.size() > maximumSize_)
+        || (maximumWeight_ > 0 && totalWeight_.get() > maximumWeight_);
+  }
+
+  /**
+   * Evicts least recently used templates until the cache is within its
+   * bounds.  Finding a victim is a linear scan of the cache; that only
+   * happens after a miss, which has already paid for reading and parsing a
+   * file, so it does not show up next to the cost of the miss itself.
+   * Entries that are still loading are never evicted.
+   */
+  private void evict() {
+    synchronized (evictionLock_) {
+      while (overCapacity()) {
+        String victim_key = null;
+        Entry victim = null;
+        for (Map.Entry<String, Entry> e : templates_.entrySet()) {
+          Entry candidate = e.getValue();
+          if (candidate.future_.isDone()
+              && (victim == null
+                  || candidate.lastAccess_ - victim.lastAccess_ < 0)) {
+            victim_key = e.getKey();
+            victim = candidate;
+          }
+        }
+        if (victim == null) {
+          return;
+        }
+        if (templates_.remove(victim_key, victim)) {
+          discarded(victim);
+          evictions_.increment();
+          // A watched cache would no longer see its file change.
+          relinkDependents(Collections.singleton(victim_key));
+        }
+      }
+    }
+  }
+
+  /**
+   * Called once an entry is no longer in the cache, to release its weight
+   * and its fragments.
+   */
+  private void discarded(Entry entry) {
+    long weight = entry.weight_.getAndSet(WEIGHT_REMOVED);
+    if (weight > 0) {
+      totalWeight_.addAndGet(-weight);
+    }
+    if (fragments_ != null) {
+      Template template = entry.getIfLoaded();
+      if (template != null) {
+        fragments_.invalidate(template);
+      }
+    }
+  }
+
+  /**
+   * Estimates the memory retained by a template parsed from source of the
+   * given length: two bytes per char of text, plus a fixed overhead per
+   * template.
+   */
+  private static long weigh(int length) {
+    return 2L * length + 512;
+  }
+
+  /**
+   * Reads and decodes a whole file.  Small files are read in bulk into a
+   * buffer of exactly the right size; large ones are memory-mapped and
+   * decoded in place, so they are never copied into an intermediate byte
+   * array.  Malformed input is replaced rather than rejected, as it would be
+   * by a Reader.
+   */
+  static String readFile(Path path, Charset charset) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      long size = channel.size();
+      if (size < MAP_THRESHOLD) {
+        ByteBuffer buf = ByteBuffer.allocate((int) size);
+        while (buf.hasRemaining() && channel.read(buf) >= 0) {
+          // keep reading until the buffer is full or the file ends
+        }
+        return new String(buf.array(), 0, buf.position(), charset);
+      }
+      MappedByteBuffer mapped =
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      return charset.newDecoder()
+          .onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE)
+          .decode(mapped)
+          .toString();
+    } finally {
+      channel.close();
+    }
   }
 
-  private String readToString(Reader in) throws IOException {
-    StringBuilder buf = new StringBuilder();
+  /**
+   * Reads and parses a template file.  Called by exactly one thread per cache
+   * entry.
+   */
+  private Template load(String filename, File file, Entry entry)
+      throws TemplateException {
+    long start = System.nanoTime();
+    long read = start;
     try {
-      for (int c = in.read(); -1 != c; c = in.read()) {
-        buf.append((char) c);
+      Entry relink = entry.relinkFrom_;
+      entry.relinkFrom_ = null;
+      Template previous = relink != null ? relink.getIfLoaded() : null;
+
+      TemplateNode program = null;
+      if (previous != null) {
+        // Only the templates it links to have changed.
+        program = previous.getTree();
+        entry.length_ = relink.length_;
+      } else {
+        String contents;
+        try {
+          contents = readFile(file.toPath(), charset_);
+        } catch (IOException e) {
+          throw new TemplateException(e);
+        }
+        read = System.nanoTime();
+        entry.readNanos_ = read - start;
+        entry.length_ = contents.length();
+
+        if (snapshot_ != null) {
+          program = snapshot_.lookup(
+              TemplateSnapshot.nameOf(baseDirectory_, entry.path_), contents);
+        }
+        if (program == null) {
+          program = TemplateCompiler.compile(parser_.parse(contents));
+        }
+      }
+
+      List<String> paths = new ArrayList<String>();
+      TemplateLinker.collectIncludes(program, paths);
+      if (!paths.isEmpty()) {
+        TemplateLoaderContext static_includes = new TemplateLoaderContext(
+            new IncludeRecorder(entry, false), file.getParent());
+        for (String path : paths) {
+          EztIncludeNode.load(static_includes, path);
+        }
       }
-      return buf.toString();
+      TemplateLoaderContext loader_context = new TemplateLoaderContext(
+          new IncludeRecorder(entry, true), file.getParent());
+      TemplateNode linked = program;
+      if (linkIncludes_) {
+        linked = link(filename, program, loader_context, entry);
+      }
+      Template results = Template.fromTree(program, linked, compiler_);
+      entry.parseNanos_ = System.nanoTime() - read;
+      if (maximumWeight_ > 0) {
+        long weight = weigh(entry.length_);
+        if (entry.weight_.compareAndSet(WEIGHT_LOADING, weight)) {
+          totalWeight_.addAndGet(weight);
+        }
+      }
+      results = results.withLoaderContext(loader_context);
+      return fragments_ != null ? results.withFragmentCache(fragments_)
+          : results;
     } finally {
-      in.close();
+      totalLoadNanos_.add(System.nanoTime() - start);
     }
   }
 
-  private boolean inCache(String filename, long last_modified) {
-    return lastUpdated_.containsKey(filename) &&
-           lastUpdated_.get(filename) >= last_modified;
+  /**
+   * Links the includes of program, the tree of filename, and records in
+   * entry the templates it was linked to.
+   *
+   * @throws CyclicIncludeException if program includes a template that is
+   * being linked further up this thread's stack.
+   */
+  private TemplateNode link(String filename, TemplateNode program,
+                            TemplateLoaderContext loader_context, Entry entry)
+      throws TemplateException {
+    List<String> stack = linking_.get();
+    stack.add(filename);
+    try {
+      List<Link> links = new ArrayList<Link>();
+      TemplateNode linked =
+          TemplateLinker.link(program, new Linker(loader_context, links));
+      entry.links_ = links;
+      // A template dropped before links_ was set was not seen by
+      // relinkDependents to be included by this one.
+      for (Link link : links) {
+        if (templates_.get(link.filename_) != link.entry_) {
+          entry.relink_ = true;
+        }
+      }
+      return linked;
+    } finally {
+      stack.remove(stack.size() - 1);
+    }
   }
 
-  private void updateCache(String filename, Template results,
-                           long last_modified) {
-    templates_.put(filename, results);
-    lastUpdated_.put(filename, last_modified);
+  /**
+   * Resolves the includes of one template while it is linked.  It is also
+   * the loader that {@link EztIncludeNode#load} resolves them through, so
+   * that they name the same templates as they would when rendered; unlike
+   * the cache, it returns null rather than wait for a template that another
+   * thread is loading, which could be waiting for this one.
+   */
+  private final class Linker
+      implements TemplateLoader, TemplateLinker.Resolver {
+    private final TemplateLoaderContext context_;
+    private final TemplateLoaderContext linkContext_;
+    private final List<Link> links_;
+
+    private Linker(TemplateLoaderContext context, List<Link> links) {
+      this.context_ = context;
+      this.linkContext_ =
+          new TemplateLoaderContext(this, context.getTemplateDirectory());
+      this.links_ = links;
+    }
+
+    public Template getTemplate(String filename) throws TemplateException {
+      filename = PathUtil.join(basePath_, filename);
+      List<String> stack = linking_.get();
+      if (stack.contains(filename)) {
+        throw new CyclicIncludeException("Cyclic include loop detected: "
+            + filename + " includes itself via " + stack);
+      }
+      Entry entry = lookup(filename, false, true);
+      if (entry == null) {
+        return null;
+      }
+      Template template = await(filename, entry);
+      links_.add(new Link(filename, entry));
+      return template;
+    }
+
+    public Template getTemplate(String filename, String templateDirectory)
+        throws TemplateException {
+      return getTemplate(relativeName(filename));
+    }
+
+    public TemplateNode resolve(EztIncludeNode include)
+        throws TemplateException {
+      String path = include.getPath();
+      Template template;
+      try {
+        template = EztIncludeNode.load(linkContext_, path);
+      } catch (CyclicIncludeException e) {
+        throw e;
+      } catch (TemplateException e) {
+        // Left to fail when it is rendered, as it would without linking.
+        return null;
+      }
+      if (template == null) {
+        return null;
+      }
+      TemplateNode program = template.getTree();
+      if (inlineMaxNodes_ > 0
+          && TemplateLinker.size(program) <= inlineMaxNodes_) {
+        TemplateNode inlined = TemplateLinker.link(program,
+            new Linker(template.getLoaderContext(), links_));
+        if (TemplateLinker.isSelfContained(inlined)) {
+          return inlined;
+        }
+      }
+      return LinkedIncludeNode.create(template,
+          EztIncludeNode.searchPath(context_, path));
+    }
+  }
+
+  /**
+   * The loader of a cached template, which records in its entry the
+   * templates it includes.  Unless load is true, it only records them, and
+   * returns null.
+   */
+  private final class IncludeRecorder implements TemplateLoader {
+    private final Entry entry_;
+    private final boolean load_;
+
+    /**
+     * The filenames already recorded, as they were asked for, so that a
+     * render that includes a known template does not build its cache key.
+     */
+    private final Set<String> recorded_ = ConcurrentHashMap.newKeySet();
+
+    private IncludeRecorder(Entry entry, boolean load) {
+      this.entry_ = entry;
+      this.load_ = load;
+    }
+
+    private void record(String filename) {
+      if (!recorded_.contains(filename) && recorded_.add(filename)) {
+        entry_.includes_.add(PathUtil.join(basePath_, filename));
+      }
+    }
+
+    public Template getTemplate(String filename) throws TemplateException {
+      record(filename);
+      return load_ ? TemplateCache.this.getTemplate(filename) : null;
+    }
+
+    public Template getTemplate(String filename, String templateDirectory)
+        throws TemplateException {
+      record(filename);
+      return load_
+          ? TemplateCache.this.getTemplate(filename, templateDirectory)
+          : null;
+    }
+  }
+
+  /**
+   * The loader of a template while {@link #preload(Executor, int)} warms it
+   * up.  An include variable holds its own name, which names no template,
+   * so it loads an empty one; other includes are loaded from the cache, and
+   * load their own includes through this loader too.
+   */
+  private final class WarmUpLoader implements TemplateLoader {
+    private final Set<String> includeVariables_;
+
+    private WarmUpLoader(Set<String> includeVariables) {
+      this.includeVariables_ = includeVariables;
+    }
+
+    /**
+     * Returns a copy of template that loads its includes through this loader.
+     */
+    private Template warmUp(Template template) {
+      return template.withLoaderContext(new TemplateLoaderContext(this,
+          template.getLoaderContext().getTemplateDirectory()));
+    }
+
+    public Template getTemplate(String filename) throws TemplateException {
+      if (includeVariables_.contains(filename)) {
+        return Template.EMPTY;
+      }
+      return warmUp(TemplateCache.this.getTemplate(filename));
+    }
+
+    public Template getTemplate(String filename, String templateDirectory)
+        throws TemplateException {
+      if (includeVariables_.contains(filename)) {
+        return Template.EMPTY;
+      }
+      return warmUp(
+          TemplateCache.this.getTemplate(filename, templateDirectory));
+    }
+  }
+
+  /**
+   * A template that another was linked to, and the entry it was loaded as.
+   */
+  private static final class Link {
+    private final String filename_;
+    private final Entry entry_;
+
+    private Link(String filename, Entry entry) {
+      this.filename_ = filename;
+      this.entry_ = entry;
+    }
+  }
+
+  /**
+   * Waits for an entry to finish loading.  Entries that failed to load are
+   * removed so that the next request tries again.
+   */
+  private Template await(String filename, Entry entry)
+      throws TemplateException {
+    try {
+      return entry.future_.get();
+    } catch (ExecutionException e) {
+      if (templates_.remove(filename, entry)) {
+        discarded(entry);
+        loadFailures_.increment();
+      }
+      if (e.getCause() instanceof TemplateException) {
+        throw (TemplateException) e.getCause();
+      }
+      throw new TemplateException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new TemplateException(e);
+    }
+  }
+
+  /**
+   * A cached template, or one that is still being loaded by another thread.
+   */
+  private final class Entry {
+    private final long lastModified_;
+    private final FutureTask<Template> future_;
+
+    /**
+     * The absolute, normalized path of the template file, as reported by the
+     * DirectoryWatcher.
+     */
+    private final Path path_;
+
+    /**
+     * When the modification time of the file was last compared with
+     * lastModified_, as a System.nanoTime() value.
+     */
+    private volatile long checkedAt_ = System.nanoTime();
+
+    /**
+     * When this entry was last returned, as a System.nanoTime() value.  Only
+     * maintained when the cache is bounded.
+     */
+    private volatile long lastAccess_ = System.nanoTime();
+
+    /**
+     * The estimated weight of the loaded template, or WEIGHT_LOADING before
+     * it has been weighed, or WEIGHT_REMOVED once the entry has left the
+     * cache.  The transitions are atomic so that a weight is added to and
+     * subtracted from totalWeight_ at most once.
+     */
+    private final AtomicLong weight_ = new AtomicLong(WEIGHT_LOADING);
+
+    /**
+     * How long load() spent reading and parsing the file, for {@link
+     * #preload(Executor, int)}.  Written before future_ completes, so they
+     * are visible to any thread that has waited for it.
+     */
+    private long readNanos_;
+    private long parseNanos_;
+
+    /**
+     * The length of the template's source, for weighing it again when it is
+     * relinked.
+     */
+    private int length_;
+
+    /**
+     * The templates this one was linked to, or null if it was not linked.
+     * Written by load() before future_ completes.
+     */
+    private volatile List<Link> links_ = null;
+
+    /**
+     * The entry whose parsed template load() should link again instead of
+     * reading the file, or null.  Cleared once read.
+     */
+    private Entry relinkFrom_;
+
+    /**
+     * The cache keys of the templates this one includes, as far as they are
+     * known.  See {@link #getDependencyGraph()}.
+     */
+    private final Set<String> includes_ = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Set when a template this one includes has changed, so that it is
+     * linked again the next time it is looked up.
+     */
+    private volatile boolean relink_ = false;
+
+    private Entry(final String filename, final File file, long lastModified,
+                  Entry relinkFrom) {
+      this.lastModified_ = lastModified;
+      this.relinkFrom_ = relinkFrom;
+      this.path_ = file.toPath().toAbsolutePath().normalize();
+      this.future_ = new FutureTask<Template>(new Callable<Template>() {
+        public Template call() throws TemplateException {
+          return load(filename, file, Entry.this);
+        }
+      });
+    }
+
+    /**
+     * Returns the template if it loaded successfully, or null if it failed
+     * or is still loading.
+     */
+    private Template getIfLoaded() {
+      if (!future_.isDone()) {
+        return null;
+      }
+      try {
+        return future_.get();
+      } catch (ExecutionException e) {
+        return null;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+    }
   }
 }
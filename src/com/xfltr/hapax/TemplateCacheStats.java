@@ -0,0 +1,96 @@
+package com.xfltr.hapax;
+
+/**
+ * A snapshot of the counters kept by a {@link TemplateCache}.  Returned by
+ * {@link TemplateCache#stats()}; the counters cover the lifetime of the cache.
+ *
+ * @author dcoker
+ */
+public final class TemplateCacheStats {
+  private final long hitCount_;
+  private final long missCount_;
+  private final long loadFailureCount_;
+  private final long totalLoadNanos_;
+  private final long evictionCount_;
+  private final int size_;
+  private final long weight_;
+
+  TemplateCacheStats(long hitCount, long missCount, long loadFailureCount,
+                     long totalLoadNanos, long evictionCount, int size,
+                     long weight) {
+    this.hitCount_ = hitCount;
+    this.missCount_ = missCount;
+    this.loadFailureCount_ = loadFailureCount;
+    this.totalLoadNanos_ = totalLoadNanos;
+    this.evictionCount_ = evictionCount;
+    this.size_ = size;
+    this.weight_ = weight;
+  }
+
+  /**
+   * Returns the number of lookups that found an up to date template.
+   */
+  public long getHitCount() {
+    return hitCount_;
+  }
+
+  /**
+   * Returns the number of lookups that had to load a template, either because
+   * it was not cached or because the file had changed.
+   */
+  public long getMissCount() {
+    return missCount_;
+  }
+
+  /**
+   * Returns the number of loads that failed, for instance because the file
+   * did not exist or did not parse.
+   */
+  public long getLoadFailureCount() {
+    return loadFailureCount_;
+  }
+
+  /**
+   * Returns the total time spent reading and parsing templates, in
+   * nanoseconds.
+   */
+  public long getTotalLoadNanos() {
+    return totalLoadNanos_;
+  }
+
+  /**
+   * Returns the number of templates evicted to keep the cache within its
+   * bounds.  Templates replaced because their file changed are not counted.
+   */
+  public long getEvictionCount() {
+    return evictionCount_;
+  }
+
+  /**
+   * Returns the number of templates in the cache, including ones that are
+   * still loading.
+   */
+  public int getSize() {
+    return size_;
+  }
+
+  /**
+   * Returns the estimated memory retained by cached templates, in bytes.
+   * Only tracked when the cache was built with a maximum weight; zero
+   * otherwise.
+   */
+  public long getWeight() {
+    return weight_;
+  }
+
+  @Override
+  public String toString() {
+    return "TemplateCacheStats{hits=" + hitCount_
+        + ", misses=" + missCount_
+        + ", loadFailures=" + loadFailureCount_
+        + ", totalLoadNanos=" + totalLoadNanos_
+        + ", evictions=" + evictionCount_
+        + ", size=" + size_
+        + ", weight=" + weight_ + "}";
+  }
+}
@@ -1,6 +1,13 @@
 package com.xfltr.hapax;
 
-import java.util.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 /**
@@ -8,25 +15,45 @@ import java.util.logging.Logger;
  * template variables, filenames for included hapax, and a list of sections
  * that have been explicitly shown.
  *
+ * Values may be Strings, numbers, CharSequences or lazy {@link Supplier}s.
+ * Numbers, CharSequences and Suppliers are only turned into text when a
+ * template refers to them, and are written straight to the output when it
+ * renders them, so values in hidden sections cost nothing to format.
+ *
+ * A child dictionary only allocates storage for what is put into it.  Lookups
+ * of values inherited from parent dictionaries are memoized in each parent,
+ * so that they take constant time however deeply sections are nested.  The
+ * memos are discarded whenever a value is put anywhere in the tree.
+ *
+ * A dictionary tree is filled in by one thread at a time.  Once it is filled
+ * in, it may be rendered by any number of threads at once.
+ *
  * @author dcoker
  */
 public class TemplateDictionary {
   private static final Logger logger =
       Logger.getLogger(TemplateDictionary.class.getSimpleName());
 
-  private final Map<String, String> dict = new HashMap<String, String>();
+  /**
+   * Memoized in place of a value that no parent dictionary has.
+   */
+  private static final Object ABSENT = new Object();
 
   /**
-   * A list of children dictionaries.
+   * The values in this dictionary, or null if there are none yet.
    */
-  private final Map<String, List<TemplateDictionary>> subs =
-      new HashMap<String, List<TemplateDictionary>>();
+  private SymbolMap<Object> dict = null;
 
   /**
-   * A list of sections that have been explicitly shown with showSection().
+   * A list of children dictionaries, or null if there are none yet.
    */
-  private final Set<String> shownSections =
-      new HashSet<String>();
+  private SymbolMap<List<TemplateDictionary>> subs = null;
+
+  /**
+   * A list of sections that have been explicitly shown with showSection(), or
+   * null if there are none.
+   */
+  private Set<String> shownSections = null;
 
   /**
    * The TemplateDictionary that this class is a child of, or null if it is the
@@ -34,6 +61,32 @@ public class TemplateDictionary {
    */
   private final TemplateDictionary parent;
 
+  /**
+   * Counts the puts made anywhere in this tree of dictionaries.  Shared by
+   * every dictionary in the tree.
+   */
+  private final AtomicLong generation;
+
+  /**
+   * Values inherited from the parent chain and looked up through this
+   * dictionary by its children, or null.
+   */
+  private volatile Memo memo = null;
+
+  /**
+   * A copy-on-write snapshot of inherited values, valid as long as the tree's
+   * generation does not change.
+   */
+  private static final class Memo {
+    private final long generation_;
+    private final SymbolMap<Object> values_;
+
+    private Memo(long generation, SymbolMap<Object> values) {
+      this.generation_ = generation;
+      this.values_ = values;
+    }
+  }
+
   /**
    * Creates a top-level TemplateDictionary.
    *
@@ -45,6 +98,30 @@ public class TemplateDictionary {
     return new TemplateDictionary(null);
   }
 
+  /**
+   * Creates a top-level TemplateDictionary that reads its values from an
+   * object graph instead of from put().  Variables resolve to properties of
+   * model: record components, getters, public fields, or the entries of a
+   * Map.  A section is shown if the property of the same name is true, a
+   * non-empty Iterable or array, or any other non-null object.  It is
+   * repeated for each element of an Iterable or array, and each repetition
+   * reads its variables from the element and then from the enclosing
+   * objects.  Inside a section over scalars, such as a List of Strings, the
+   * section's own name refers to the current element.
+   *
+   * Properties are read when the template refers to them, through accessors
+   * looked up once per class; nothing is copied.  Values and child
+   * dictionaries may still be added with put() and addChildDict(), and take
+   * precedence over the model.
+   *
+   * @param model The root of the object graph
+   *
+   * @return a new TemplateDictionary
+   */
+  public static TemplateDictionary forObject(Object model) {
+    return new ObjectDictionary(null, null, model);
+  }
+
   /**
    * Puts a String value into the dictionary.
    *
@@ -52,22 +129,87 @@ public class TemplateDictionary {
    * @param val The value
    */
   public void put(String key, String val) {
-    if (dict.containsKey(key)) {
-      logger.warning("put(" + key +
-          ") called, but there is already a value for this key.");
-    }
-    dict.put(key.toUpperCase(), val);
+    put(Symbol.of(key), val);
   }
 
   /**
-   * Puts an integer value into the dictionary.  All values are normalized to
-   * Strings.
+   * Puts a String value into the dictionary.
+   *
+   * @param key The key for this value
+   * @param val The value
+   */
+  public void put(Symbol key, String val) {
+    putValue(key, val);
+  }
+
+  /**
+   * Puts an integer value into the dictionary.  It is formatted in decimal
+   * when it is rendered.
    *
    * @param key The key for this value.
    * @param val The value
    */
   public void put(String key, int val) {
-    put(key.toUpperCase(), String.valueOf(val));
+    put(key, (long) val);
+  }
+
+  /**
+   * Puts a long value into the dictionary.  It is formatted in decimal when it
+   * is rendered.
+   *
+   * @param key The key for this value.
+   * @param val The value
+   */
+  public void put(String key, long val) {
+    putValue(Symbol.of(key), Long.valueOf(val));
+  }
+
+  /**
+   * Puts a double value into the dictionary.  It is formatted as by
+   * Double.toString() when it is rendered.
+   *
+   * @param key The key for this value.
+   * @param val The value
+   */
+  public void put(String key, double val) {
+    putValue(Symbol.of(key), Double.valueOf(val));
+  }
+
+  /**
+   * Puts a CharSequence into the dictionary, such as a StringBuilder holding a
+   * pre-rendered fragment.  It is not copied: its contents at the time it is
+   * rendered are written straight to the output.
+   *
+   * @param key The key for this value.
+   * @param val The value
+   */
+  public void put(String key, CharSequence val) {
+    putValue(Symbol.of(key), val);
+  }
+
+  /**
+   * Puts a lazily computed value into the dictionary.  The supplier is called
+   * each time the value is rendered or looked up, and never if it is not; it
+   * may return a String, a number or any other object, which is then
+   * formatted as if it had been put directly.  It must be safe to call from
+   * whichever threads render the template.
+   *
+   * @param key The key for this value.
+   * @param val The supplier of the value
+   */
+  public void putLazy(String key, Supplier<?> val) {
+    putValue(Symbol.of(key), val);
+  }
+
+  private void putValue(Symbol key, Object val) {
+    if (dict == null) {
+      dict = new SymbolMap<Object>();
+    }
+    generation.incrementAndGet();
+    if (dict.put(key, val) != null) {
+      logger.warning("put(" + key +
+          ") called, but there is already a value for this key.");
+    }
   }
 
   /**
@@ -80,12 +222,20 @@ public class TemplateDictionary {
    *         false otherwise.
    */
   public boolean contains(String key) {
-    if (dict.containsKey(key.toUpperCase())) {
-      return true;
-    } else if (parent != null) {
-      return parent.contains(key.toUpperCase());
-    }
-    return false;
+    return contains(Symbol.of(key));
+  }
+
+  /**
+   * Returns true if the Dictionary (or any parent dictionaries) contains the
+   * requested key.
+   *
+   * @param key The key to look for
+   *
+   * @return True if the dictionary (or any parent dictionary) contains the key,
+   *         false otherwise.
+   */
+  public boolean contains(Symbol key) {
+    return lookupValue(key) != null;
   }
 
   /**
@@ -96,15 +246,105 @@ public class TemplateDictionary {
    * @return The value of the requested dictionary item, or empty string.
    */
   public String get(String key) {
-    if (dict.containsKey(key.toUpperCase())) {
-      return dict.get(key.toUpperCase());
-    } else if (parent != null) {
-      return parent.get(key.toUpperCase());
-    } else {
+    return get(Symbol.of(key));
+  }
+
+  /**
+   * Gets the value of a given dictionary key.
+   *
+   * @param key The name of the dictionary item to return.
+   *
+   * @return The value of the requested dictionary item, or empty string.
+   */
+  public String get(Symbol key) {
+    String value = lookup(key);
+    if (value == null) {
       logger.warning(
           "Unable to find a value for '" + key + "', returning empty string!");
       return "";
     }
+    return value;
+  }
+
+  /**
+   * Returns the value of key in this dictionary or the nearest parent that has
+   * one, or null if none does.
+   */
+  String lookup(Symbol key) {
+    return toString(lookupValue(key));
+  }
+
+  /**
+   * Returns the value of key as it was put into this dictionary or the
+   * nearest parent that has one, or null if none does.
+   */
+  Object lookupValue(Symbol key) {
+    Object value = localValue(key);
+    return value != null ? value : inheritedValue(key);
+  }
+
+  /**
+   * Returns the value put into this dictionary itself, or null.
+   */
+  final Object localValue(Symbol key) {
+    return dict == null ? null : dict.get(key);
+  }
+
+  /**
+   * Returns the value of key in the parent chain, or null.
+   */
+  final Object inheritedValue(Symbol key) {
+    return parent == null ? null : parent.inherited(key);
+  }
+
+  /**
+   * Returns lookupValue(key), memoized for as long as no value is put into
+   * the tree.  Called by child dictionaries.
+   */
+  Object inherited(Symbol key) {
+    if (dict != null) {
+      Object value = dict.get(key);
+      if (value != null) {
+        return value;
+      }
+    }
+    if (parent == null) {
+      return null;
+    }
+    // Read the generation before walking up, so that a put made meanwhile
+    // leaves the memo stale rather than wrong.
+    long current = generation.get();
+    Memo m = memo;
+    if (m == null || m.generation_ != current) {
+      m = new Memo(current, new SymbolMap<Object>());
+    }
+    Object value = m.values_.get(key);
+    if (value == null) {
+      value = parent.inherited(key);
+      if (value == null) {
+        value = ABSENT;
+      }
+      // Racing threads may each add an entry and one of them may be lost;
+      // it is looked up again next time.
+      memo = new Memo(current, m.values_.with(key, value));
+    }
+    return value == ABSENT ? null : value;
+  }
+
+  /**
+   * Returns the text of a value as stored by put(), calling it first if it is
+   * a Supplier.  Returns null for null, and "" for a Supplier that returns
+   * null.
+   */
+  static String toString(Object value) {
+    if (value instanceof String || value == null) {
+      return (String) value;
+    }
+    if (value instanceof Supplier) {
+      Object supplied = ((Supplier<?>) value).get();
+      return supplied == null ? "" : toString(supplied);
+    }
+    return value.toString();
   }
 
   /**
@@ -116,11 +356,23 @@ public class TemplateDictionary {
    *         dictionary
    */
   public List<TemplateDictionary> getChildDicts(String key) {
-    if (subs.containsKey(key.toUpperCase())) {
-      return subs.get(key.toUpperCase());
-    } else {
+    return getChildDicts(Symbol.of(key));
+  }
+
+  /**
+   * Gets a list of the child dictionaries with a given name.
+   *
+   * @param key The name of the child dictionaries to retreive.
+   *
+   * @return a list of TemplateDictionaries that are children to this
+   *         dictionary
+   */
+  public List<TemplateDictionary> getChildDicts(Symbol key) {
+    List<TemplateDictionary> dicts = subs == null ? null : subs.get(key);
+    if (dicts == null) {
       return Collections.emptyList();
     }
+    return dicts;
   }
 
   /**
@@ -138,17 +390,81 @@ public class TemplateDictionary {
   public TemplateDictionary addChildDict(String key) {
     TemplateDictionary td = new TemplateDictionary(this);
 
-    if (!subs.containsKey(key.toUpperCase())) {
-      List<TemplateDictionary> dicts =
-          new LinkedList<TemplateDictionary>();
-      dicts.add(td);
-      subs.put(key.toUpperCase(), dicts);
-    } else {
-      subs.get(key.toUpperCase()).add(td);
+    if (subs == null) {
+      subs = new SymbolMap<List<TemplateDictionary>>();
+    }
+    Symbol symbol = Symbol.of(key);
+    List<TemplateDictionary> dicts = subs.get(symbol);
+    if (dicts == null) {
+      dicts = new ArrayList<TemplateDictionary>(1);
+      subs.put(symbol, dicts);
     }
+    dicts.add(td);
     return td;
   }
 
+  /**
+   * Shows a section and repeats it once for each element of rows.  Each
+   * repetition reads its variables from the element, as described for {@link
+   * #forObject(Object)}, and then from this dictionary.
+   *
+   * Elements are wrapped as the section reaches them, so a lazy Iterable
+   * renders in constant memory.  This replaces any child dictionaries of the
+   * same name.
+   *
+   * @param section The section to show and repeat.
+   * @param rows The objects to repeat the section for.
+   */
+  public void showSectionForEach(String section, Iterable<?> rows) {
+    setChildDicts(section, ObjectDictionary.elements(this, Symbol.of(section),
+        rows));
+  }
+
+  /**
+   * Like {@link #showSectionForEach(String, Iterable)}, for rows that can only
+   * be read once, such as the results of a database cursor.  Each row is
+   * produced, rendered and dropped in turn, so a section can render unbounded
+   * data in constant memory when the template is rendered to a stream,
+   * channel or Writer.  The dictionary can only be rendered once.
+   *
+   * @param section The section to show and repeat.
+   * @param rows The objects to repeat the section for.
+   */
+  public void showSectionForEach(String section, Iterator<?> rows) {
+    setChildDicts(section, ObjectDictionary.elements(this, Symbol.of(section),
+        rows));
+  }
+
+  private void setChildDicts(String section, List<TemplateDictionary> dicts) {
+    if (subs == null) {
+      subs = new SymbolMap<List<TemplateDictionary>>();
+    }
+    subs.put(Symbol.of(section), dicts);
+    showSection(section);
+  }
+
+  /**
+   * Returns true if dicts, as returned by {@link #getChildDicts(Symbol)},
+   * holds rows given to showSectionForEach or read from an object.  A
+   * section over such rows is repeated once per row, and so not at all when
+   * there are none; other sections without child dictionaries are shown
+   * once.
+   */
+  public static boolean isRows(List<TemplateDictionary> dicts) {
+    return ObjectDictionary.isElements(dicts);
+  }
+
+  /**
+   * Returns the rows in dicts, for which {@link #isRows(List)} is true, ready
+   * to be rendered once: an empty list if there are none, and otherwise a
+   * list that reads them once.  A dictionary may be rendered by many threads
+   * at once, so each render opens the rows for itself.
+   */
+  public static List<TemplateDictionary> openRows(
+      List<TemplateDictionary> dicts) {
+    return ObjectDictionary.open(dicts);
+  }
+
   /**
    * Creates a child dictionary and shows the section.  This is equivalent to
    * calling addChildDict() and showSection() separately.
@@ -168,7 +484,9 @@ public class TemplateDictionary {
    * @param section The section to hide.
    */
   public void hideSection(String section) {
-    shownSections.remove(section);
+    if (shownSections != null) {
+      shownSections.remove(section);
+    }
   }
 
   /**
@@ -179,14 +497,23 @@ public class TemplateDictionary {
    * @param section The section to show.
    */
   public void showSection(String section) {
+    if (shownSections == null) {
+      shownSections = new HashSet<String>();
+    }
     shownSections.add(section);
   }
 
-  boolean isHiddenSection(String sectionName) {
-    return !shownSections.contains(sectionName);
+  /**
+   * Returns true if the section has not been shown with showSection().
+   *
+   * @param sectionName The section to check.
+   */
+  public boolean isHiddenSection(String sectionName) {
+    return shownSections == null || !shownSections.contains(sectionName);
   }
 
-  private TemplateDictionary(TemplateDictionary parent) {
+  TemplateDictionary(TemplateDictionary parent) {
     this.parent = parent;
+    this.generation = parent == null ? new AtomicLong() : parent.generation;
   }
 }
@@ -0,0 +1,226 @@
+package com.xfltr.hapax;
+
+import com.xfltr.hapax.parser.EztConditionalBlockNode;
+import com.xfltr.hapax.parser.EztDefineBlockNode;
+import com.xfltr.hapax.parser.EztIncludeNode;
+import com.xfltr.hapax.parser.IncludeNode;
+import com.xfltr.hapax.parser.SectionBlockNode;
+import com.xfltr.hapax.parser.SequenceNode;
+import com.xfltr.hapax.parser.TemplateNode;
+import com.xfltr.hapax.parser.VariableNode;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What a template refers to: the variables it reads, the sections it shows,
+ * the templates it includes and the modifiers it applies.  Returned by {@link
+ * Template#analyze()}, so that code filling in a dictionary can skip values
+ * that the template will never render.
+ *
+ * The analysis follows includes whose filename is written in the template,
+ * such as [include "footer.ezt"], and adds in what the included templates
+ * refer to.  Includes whose filename comes from the dictionary, such as
+ * {{>FOOTER}}, cannot be followed; the variables that name them are listed
+ * by {@link #getIncludeVariables()}.
+ *
+ * Names are reported in upper case, the way dictionaries match them, in the
+ * order they first appear.  Variables, sections and includes are listed
+ * together whatever section they appear in.
+ *
+ * @author dcoker
+ */
+public final class TemplateInfo {
+  private final Set<String> variables_;
+  private final Set<String> sections_;
+  private final Set<String> includes_;
+  private final Set<String> unresolvedIncludes_;
+  private final Set<String> includeVariables_;
+  private final Set<String> defines_;
+  private final Map<String, Set<Modifiers.FLAGS>> modifiers_;
+
+  private TemplateInfo(Collector collector) {
+    this.variables_ = Collections.unmodifiableSet(collector.variables_);
+    this.sections_ = Collections.unmodifiableSet(collector.sections_);
+    this.includes_ = Collections.unmodifiableSet(collector.includes_);
+    this.unresolvedIncludes_ =
+        Collections.unmodifiableSet(collector.unresolvedIncludes_);
+    this.includeVariables_ =
+        Collections.unmodifiableSet(collector.includeVariables_);
+    this.defines_ = Collections.unmodifiableSet(collector.defines_);
+    Map<String, Set<Modifiers.FLAGS>> modifiers =
+        new LinkedHashMap<String, Set<Modifiers.FLAGS>>();
+    for (Map.Entry<String, Set<Modifiers.FLAGS>> e
+        : collector.modifiers_.entrySet()) {
+      modifiers.put(e.getKey(), Collections.unmodifiableSet(e.getValue()));
+    }
+    this.modifiers_ = Collections.unmodifiableMap(modifiers);
+  }
+
+  /**
+   * Analyzes program, following literal includes through loaderContext.
+   */
+  static TemplateInfo of(TemplateNode program,
+                         TemplateLoaderContext loaderContext) {
+    Collector collector = new Collector();
+    collector.walk(program, loaderContext);
+    return new TemplateInfo(collector);
+  }
+
+  /**
+   * Returns the variables whose values are read: those rendered by {{NAME}}
+   * or [name], tested by [if-any] and [is], and those naming included
+   * templates.
+   */
+  public Set<String> getVariables() {
+    return variables_;
+  }
+
+  /**
+   * Returns the sections, whose child dictionaries are rendered.
+   */
+  public Set<String> getSections() {
+    return sections_;
+  }
+
+  /**
+   * Returns the paths of the templates that were included by a literal
+   * filename and analyzed, as they are found by the loader.
+   */
+  public Set<String> getIncludes() {
+    return includes_;
+  }
+
+  /**
+   * Returns the paths of templates included by a literal filename that could
+   * not be loaded, and so were not analyzed.
+   */
+  public Set<String> getUnresolvedIncludes() {
+    return unresolvedIncludes_;
+  }
+
+  /**
+   * Returns the variables that hold the filenames of included templates.
+   * The templates they name are not analyzed.
+   */
+  public Set<String> getIncludeVariables() {
+    return includeVariables_;
+  }
+
+  /**
+   * Returns the variables assigned by [define].
+   */
+  public Set<String> getDefines() {
+    return defines_;
+  }
+
+  /**
+   * Returns the modifiers applied to each variable or include that has any,
+   * such as H for {{NAME:h}}.
+   */
+  public Map<String, Set<Modifiers.FLAGS>> getModifiers() {
+    return modifiers_;
+  }
+
+  @Override
+  public String toString() {
+    return "TemplateInfo{variables=" + variables_
+        + ", sections=" + sections_
+        + ", includes=" + includes_
+        + ", unresolvedIncludes=" + unresolvedIncludes_
+        + ", includeVariables=" + includeVariables_
+        + ", defines=" + defines_
+        + ", modifiers=" + modifiers_ + "}";
+  }
+
+  private static final class Collector {
+    private final Set<String> variables_ = new LinkedHashSet<String>();
+    private final Set<String> sections_ = new LinkedHashSet<String>();
+    private final Set<String> includes_ = new LinkedHashSet<String>();
+    private final Set<String> unresolvedIncludes_ =
+        new LinkedHashSet<String>();
+    private final Set<String> includeVariables_ = new LinkedHashSet<String>();
+    private final Set<String> defines_ = new LinkedHashSet<String>();
+    private final Map<String, Set<Modifiers.FLAGS>> modifiers_ =
+        new LinkedHashMap<String, Set<Modifiers.FLAGS>>();
+
+    private void walk(TemplateNode node, TemplateLoaderContext loaderContext) {
+      if (node instanceof SequenceNode) {
+        for (TemplateNode child : ((SequenceNode) node).getNodes()) {
+          walk(child, loaderContext);
+        }
+      } else if (node instanceof VariableNode) {
+        VariableNode variable = (VariableNode) node;
+        String name = variable.getSymbol().getName();
+        variables_.add(name);
+        addModifiers(name, variable.getModifiers());
+      } else if (node instanceof SectionBlockNode) {
+        SectionBlockNode section = (SectionBlockNode) node;
+        sections_.add(section.getSymbol().getName());
+        walk(section.getBody(), loaderContext);
+      } else if (node instanceof EztConditionalBlockNode) {
+        EztConditionalBlockNode block = (EztConditionalBlockNode) node;
+        variables_.add(block.getCondition().getSymbol().getName());
+        walk(block.getTrueBranch(), loaderContext);
+        walk(block.getFalseBranch(), loaderContext);
+      } else if (node instanceof EztDefineBlockNode) {
+        EztDefineBlockNode block = (EztDefineBlockNode) node;
+        defines_.add(Symbol.of(block.getVariableName()).getName());
+        walk(block.getBody(), loaderContext);
+      } else if (node instanceof IncludeNode) {
+        IncludeNode include = (IncludeNode) node;
+        String name = include.getSymbol().getName();
+        variables_.add(name);
+        includeVariables_.add(name);
+        addModifiers(name, include.getModifiers());
+      } else if (node instanceof EztIncludeNode) {
+        EztIncludeNode include = (EztIncludeNode) node;
+        if (include.getSymbol() != null) {
+          String name = include.getSymbol().getName();
+          variables_.add(name);
+          includeVariables_.add(name);
+        } else {
+          follow(include.getPath(), loaderContext);
+        }
+      }
+    }
+
+    /**
+     * Analyzes the template included by path, unless it has already been.
+     */
+    private void follow(String path, TemplateLoaderContext loaderContext) {
+      String search_path = EztIncludeNode.searchPath(loaderContext, path);
+      if (includes_.contains(search_path)
+          || unresolvedIncludes_.contains(search_path)) {
+        // Already analyzed, or being analyzed further up an include cycle.
+        return;
+      }
+      Template template;
+      try {
+        template = EztIncludeNode.load(loaderContext, path);
+      } catch (TemplateException e) {
+        unresolvedIncludes_.add(search_path);
+        return;
+      }
+      includes_.add(search_path);
+      walk(template.getTree(), template.getLoaderContext());
+    }
+
+    private void addModifiers(String name, List<Modifiers.FLAGS> flags) {
+      if (flags.isEmpty()) {
+        return;
+      }
+      Set<Modifiers.FLAGS> set = modifiers_.get(name);
+      if (set == null) {
+        set = EnumSet.noneOf(Modifiers.FLAGS.class);
+        modifiers_.put(name, set);
+      }
+      set.addAll(flags);
+    }
+  }
+}
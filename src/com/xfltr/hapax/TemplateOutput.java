@@ -0,0 +1,402 @@
+package com.xfltr.hapax;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * TemplateOutput is where a rendering {@link Template} writes its output.
+ *
+ * Literal template text is handed to {@link #writeText(String, byte[])} both
+ * as a String and pre-encoded as UTF-8, so outputs that produce bytes copy it
+ * without encoding it again.  Only the values from the dictionary are encoded
+ * while rendering.
+ *
+ * Errors from the underlying Writer, stream or channel are reported as a
+ * {@link TemplateException} whose cause is the IOException.
+ *
+ * @author dcoker
+ */
+public abstract class TemplateOutput {
+
+  /**
+   * Size of the buffer used by outputs that produce bytes.
+   */
+  static final int BUFFER_SIZE = 8192;
+
+  /**
+   * Writes a string produced while rendering.
+   */
+  public abstract void write(String s) throws TemplateException;
+
+  /**
+   * Writes s[start, end).
+   */
+  public void write(CharSequence s, int start, int end)
+      throws TemplateException {
+    write(s.subSequence(start, end).toString());
+  }
+
+  /**
+   * Writes a single char.
+   */
+  public void write(char c) throws TemplateException {
+    write(String.valueOf(c));
+  }
+
+  /**
+   * Writes a long in decimal.
+   */
+  public void write(long value) throws TemplateException {
+    write(Long.toString(value));
+  }
+
+  /**
+   * Writes literal template text.  utf8 must be text encoded as UTF-8.
+   */
+  public void writeText(String text, byte[] utf8) throws TemplateException {
+    write(text);
+  }
+
+  /**
+   * Writes any buffered output to the underlying destination.
+   */
+  public void flush() throws TemplateException {
+  }
+
+  /**
+   * Returns an output that appends to the given StringBuilder.
+   */
+  public static TemplateOutput forStringBuilder(StringBuilder sb) {
+    return new StringBuilderOutput(sb);
+  }
+
+  /**
+   * Returns an output that writes to the given Writer.
+   */
+  public static TemplateOutput forWriter(Writer writer) {
+    return new WriterOutput(writer);
+  }
+
+  /**
+   * Returns an output that writes UTF-8 to the given stream.  Output is
+   * buffered; call {@link #flush()} when done.
+   */
+  public static TemplateOutput forStream(OutputStream out) {
+    return new Utf8Output(out, null, new byte[BUFFER_SIZE]);
+  }
+
+  /**
+   * Returns an output that writes UTF-8 to the given channel.  Output is
+   * buffered; call {@link #flush()} when done.
+   *
+   * The channel must be in blocking mode: draining the buffer loops until
+   * every byte is written, which would spin on a non-blocking channel.
+   *
+   * @throws IllegalArgumentException if channel is a non-blocking
+   *     SelectableChannel
+   */
+  public static TemplateOutput forChannel(WritableByteChannel channel) {
+    checkBlocking(channel);
+    return new Utf8Output(null, channel, new byte[BUFFER_SIZE]);
+  }
+
+  private static void checkBlocking(WritableByteChannel channel) {
+    if (channel instanceof SelectableChannel
+        && !((SelectableChannel) channel).isBlocking()) {
+      throw new IllegalArgumentException(
+          "Cannot render to a non-blocking channel");
+    }
+  }
+
+  private static final class StringBuilderOutput extends TemplateOutput {
+    private final StringBuilder sb_;
+
+    private StringBuilderOutput(StringBuilder sb) {
+      this.sb_ = sb;
+    }
+
+    @Override
+    public void write(String s) {
+      sb_.append(s);
+    }
+
+    @Override
+    public void write(CharSequence s, int start, int end) {
+      sb_.append(s, start, end);
+    }
+
+    @Override
+    public void write(char c) {
+      sb_.append(c);
+    }
+
+    @Override
+    public void write(long value) {
+      sb_.append(value);
+    }
+
+    @Override
+    public String toString() {
+      return sb_.toString();
+    }
+  }
+
+  private static final class WriterOutput extends TemplateOutput {
+    private final Writer writer_;
+
+    private WriterOutput(Writer writer) {
+      this.writer_ = writer;
+    }
+
+    @Override
+    public void write(String s) throws TemplateException {
+      try {
+        writer_.write(s);
+      } catch (IOException e) {
+        throw new TemplateException(e);
+      }
+    }
+
+    @Override
+    public void write(CharSequence s, int start, int end)
+        throws TemplateException {
+      try {
+        writer_.append(s, start, end);
+      } catch (IOException e) {
+        throw new TemplateException(e);
+      }
+    }
+
+    @Override
+    public void write(char c) throws TemplateException {
+      try {
+        writer_.write(c);
+      } catch (IOException e) {
+        throw new TemplateException(e);
+      }
+    }
+
+    @Override
+    public void flush() throws TemplateException {
+      try {
+        writer_.flush();
+      } catch (IOException e) {
+        throw new TemplateException(e);
+      }
+    }
+  }
+
+  /**
+   * Encodes output as UTF-8 into a byte buffer, and drains the buffer to a
+   * stream or channel when it fills up.
+   */
+  static final class Utf8Output extends TemplateOutput {
+    private static final ThreadLocal<byte[]> buffers_ =
+        new ThreadLocal<byte[]>();
+
+    private final OutputStream stream_;
+    private final WritableByteChannel channel_;
+    private final byte[] buf_;
+    private int len_ = 0;
+
+    /**
+     * A high surrogate left over from the end of the previous write, whose
+     * low surrogate is expected at the start of the next one.
+     */
+    private char pendingHighSurrogate_ = 0;
+
+    private Utf8Output(OutputStream stream, WritableByteChannel channel,
+                       byte[] buf) {
+      this.stream_ = stream;
+      this.channel_ = channel;
+      this.buf_ = buf;
+    }
+
+    /**
+     * Returns an output that borrows this thread's reusable buffer.  The
+     * buffer must be given back with {@link #release()}.
+     */
+    static Utf8Output acquire(OutputStream stream,
+                              WritableByteChannel channel) {
+      checkBlocking(channel);
+      byte[] buf = buffers_.get();
+      if (buf == null) {
+        buf = new byte[BUFFER_SIZE];
+      } else {
+        // Taken while in use, so that a nested render gets its own buffer.
+        buffers_.set(null);
+      }
+      return new Utf8Output(stream, channel, buf);
+    }
+
+    /**
+     * Returns the buffer to this thread for the next render.
+     */
+    void release() {
+      buffers_.set(buf_);
+    }
+
+    @Override
+    public void writeText(String text, byte[] utf8) throws TemplateException {
+      if (pendingHighSurrogate_ != 0) {
+        write(text);
+        return;
+      }
+      if (utf8.length > buf_.length - len_) {
+        drain();
+        if (utf8.length > buf_.length) {
+          drain(utf8, 0, utf8.length);
+          return;
+        }
+      }
+      System.arraycopy(utf8, 0, buf_, len_, utf8.length);
+      len_ += utf8.length;
+    }
+
+    @Override
+    public void write(String s) throws TemplateException {
+      write(s, 0, s.length());
+    }
+
+    @Override
+    public void write(char c) throws TemplateException {
+      if (len_ > buf_.length - 4) {
+        drain();
+      }
+      if (c < 0x80 && pendingHighSurrogate_ == 0) {
+        buf_[len_++] = (byte) c;
+      } else {
+        len_ = encode(c, buf_, len_);
+      }
+    }
+
+    @Override
+    public void write(long value) throws TemplateException {
+      if (pendingHighSurrogate_ != 0 || value == Long.MIN_VALUE) {
+        super.write(value);
+        return;
+      }
+      // A '-' and at most 19 digits.
+      if (len_ > buf_.length - 20) {
+        drain();
+      }
+      if (value < 0) {
+        buf_[len_++] = '-';
+        value = -value;
+      }
+      int end = len_ + 1;
+      for (long rest = value; rest >= 10; rest /= 10) {
+        end++;
+      }
+      for (int i = end - 1; i >= len_; i--) {
+        buf_[i] = (byte) ('0' + value % 10);
+        value /= 10;
+      }
+      len_ = end;
+    }
+
+    @Override
+    public void write(CharSequence s, int start, int end)
+        throws TemplateException {
+      byte[] buf = buf_;
+      int len = len_;
+      for (int i = start; i < end; i++) {
+        // Every char needs at most 4 bytes, including the one that completes
+        // a pending surrogate pair.
+        if (len > buf.length - 4) {
+          len_ = len;
+          drain();
+          len = 0;
+        }
+        char c = s.charAt(i);
+        if (c < 0x80 && pendingHighSurrogate_ == 0) {
+          buf[len++] = (byte) c;
+        } else {
+          len = encode(c, buf, len);
+        }
+      }
+      len_ = len;
+    }
+
+    /**
+     * Encodes a single non-ASCII char, or any char that follows a high
+     * surrogate, writing at most 4 bytes.  Unpaired surrogates are written as
+     * '?', as String.getBytes() does.
+     */
+    private int encode(char c, byte[] buf, int len) {
+      if (pendingHighSurrogate_ != 0) {
+        char high = pendingHighSurrogate_;
+        pendingHighSurrogate_ = 0;
+        if (Character.isLowSurrogate(c)) {
+          int cp = Character.toCodePoint(high, c);
+          buf[len++] = (byte) (0xf0 | (cp >> 18));
+          buf[len++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+          buf[len++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+          buf[len++] = (byte) (0x80 | (cp & 0x3f));
+          return len;
+        }
+        buf[len++] = '?';
+      }
+      if (c < 0x80) {
+        buf[len++] = (byte) c;
+      } else if (c < 0x800) {
+        buf[len++] = (byte) (0xc0 | (c >> 6));
+        buf[len++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c)) {
+        pendingHighSurrogate_ = c;
+      } else if (Character.isLowSurrogate(c)) {
+        buf[len++] = '?';
+      } else {
+        buf[len++] = (byte) (0xe0 | (c >> 12));
+        buf[len++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buf[len++] = (byte) (0x80 | (c & 0x3f));
+      }
+      return len;
+    }
+
+    @Override
+    public void flush() throws TemplateException {
+      drain();
+      if (pendingHighSurrogate_ != 0) {
+        pendingHighSurrogate_ = 0;
+        buf_[len_++] = '?';
+        drain();
+      }
+      if (stream_ != null) {
+        try {
+          stream_.flush();
+        } catch (IOException e) {
+          throw new TemplateException(e);
+        }
+      }
+    }
+
+    private void drain() throws TemplateException {
+      if (len_ > 0) {
+        int len = len_;
+        len_ = 0;
+        drain(buf_, 0, len);
+      }
+    }
+
+    private void drain(byte[] bytes, int offset, int length)
+        throws TemplateException {
+      try {
+        if (stream_ != null) {
+          stream_.write(bytes, offset, length);
+        } else {
+          ByteBuffer bb = ByteBuffer.wrap(bytes, offset, length);
+          while (bb.hasRemaining()) {
+            channel_.write(bb);
+          }
+        }
+      } catch (IOException e) {
+        throw new TemplateException(e);
+      }
+    }
+  }
+}
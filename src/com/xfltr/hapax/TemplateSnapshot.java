@@ -0,0 +1,316 @@
+package com.xfltr.hapax;
+
+import com.xfltr.hapax.parser.CTemplateParser;
+import com.xfltr.hapax.parser.EztParser;
+import com.xfltr.hapax.parser.TemplateCompiler;
+import com.xfltr.hapax.parser.TemplateNode;
+import com.xfltr.hapax.parser.TemplateNodeCodec;
+import com.xfltr.hapax.parser.TemplateParser;
+import com.xfltr.hapax.parser.TemplateParserException;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * A file holding the parsed form of every template under a directory, so
+ * that a {@link TemplateCache} can skip parsing them after a restart.  Write
+ * one with {@link #write} at build time or on demand, and hand it to {@link
+ * TemplateCache.Builder#snapshot(TemplateSnapshot)}.
+ *
+ * The file is memory-mapped when it is opened, and only its index is read
+ * then.  A template's tree is read from the file the first time the cache
+ * loads that template.  Each template is stored with a hash of its source;
+ * the cache still reads the source file, and if it no longer matches the
+ * hash, the template is parsed as usual.
+ *
+ * The file starts with a header: a magic number, the format version, the
+ * class name of the parser, and the number of templates.  An index follows,
+ * with for each template its path relative to the base directory, the hash
+ * and length of its source, and the offset and size of its tree, as written
+ * by {@link TemplateNodeCodec}.  Then come the trees.
+ *
+ * @author dcoker
+ */
+public final class TemplateSnapshot {
+  private static final Logger logger_ =
+      Logger.getLogger(TemplateSnapshot.class.getSimpleName());
+
+  private static final int MAGIC = 0x48505853; // "HPXS"
+  private static final int VERSION = 1;
+
+  private final String parserName_;
+  private final Map<String, IndexEntry> index_;
+
+  /**
+   * The trees of all templates, shared by every read.  Reads use their own
+   * duplicate, so that they don't share a position.
+   */
+  private final ByteBuffer trees_;
+
+  private final LongAdder hits_ = new LongAdder();
+  private final LongAdder stale_ = new LongAdder();
+
+  private TemplateSnapshot(String parserName, Map<String, IndexEntry> index,
+                           ByteBuffer trees) {
+    this.parserName_ = parserName;
+    this.index_ = index;
+    this.trees_ = trees;
+  }
+
+  /**
+   * Where a template's tree is in the file, and the source it was parsed
+   * from.
+   */
+  private static final class IndexEntry {
+    private final long hash_;
+    private final int length_;
+    private final int offset_;
+    private final int size_;
+
+    private IndexEntry(long hash, int length, int offset, int size) {
+      this.hash_ = hash;
+      this.length_ = length;
+      this.offset_ = offset;
+      this.size_ = size;
+    }
+  }
+
+  /**
+   * Parses every file under basePath with parser, and writes their trees to
+   * file.  Files that do not parse are left out, and are parsed, and their
+   * errors reported, when a cache loads them.
+   *
+   * @return the number of templates written.
+   */
+  public static int write(String basePath, TemplateParser parser,
+                          Charset charset, Path file) throws IOException {
+    final Path base = Paths.get(basePath).toAbsolutePath().normalize();
+    List<Path> paths = new ArrayList<Path>();
+    Stream<Path> walk = Files.walk(base);
+    try {
+      for (Iterator<Path> it = walk.iterator(); it.hasNext(); ) {
+        Path path = it.next();
+        if (Files.isRegularFile(path)) {
+          paths.add(path);
+        }
+      }
+    } finally {
+      walk.close();
+    }
+    Collections.sort(paths);
+
+    List<String> names = new ArrayList<String>();
+    List<IndexEntry> entries = new ArrayList<IndexEntry>();
+    ByteArrayOutputStream trees = new ByteArrayOutputStream();
+    DataOutputStream trees_out = new DataOutputStream(trees);
+    for (Path path : paths) {
+      String contents = TemplateCache.readFile(path, charset);
+      TemplateNode program;
+      try {
+        program = TemplateCompiler.compile(parser.parse(contents));
+      } catch (TemplateParserException e) {
+        logger_.warning("Leaving " + path + " out of the snapshot: "
+            + e.getMessage());
+        continue;
+      }
+      int offset = trees.size();
+      TemplateNodeCodec.write(program, trees_out);
+      trees_out.flush();
+      names.add(nameOf(base, path));
+      entries.add(new IndexEntry(hash(contents), contents.length(), offset,
+          trees.size() - offset));
+    }
+
+    OutputStream out = Files.newOutputStream(file);
+    try {
+      DataOutputStream header =
+          new DataOutputStream(new BufferedOutputStream(out));
+      header.writeInt(MAGIC);
+      header.writeInt(VERSION);
+      TemplateNodeCodec.writeString(parser.getClass().getName(), header);
+      header.writeInt(names.size());
+      for (int i = 0; i < names.size(); i++) {
+        IndexEntry entry = entries.get(i);
+        TemplateNodeCodec.writeString(names.get(i), header);
+        header.writeLong(entry.hash_);
+        header.writeInt(entry.length_);
+        header.writeInt(entry.offset_);
+        header.writeInt(entry.size_);
+      }
+      trees.writeTo(header);
+      header.flush();
+    } finally {
+      out.close();
+    }
+    return names.size();
+  }
+
+  /**
+   * Opens a snapshot written by {@link #write}.
+   *
+   * @throws IOException if file cannot be read, or was not written by this
+   * version of {@link #write}.
+   */
+  public static TemplateSnapshot open(Path file) throws IOException {
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+    MappedByteBuffer mapped;
+    try {
+      mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      // The mapping stays valid after the channel is closed.
+      channel.close();
+    }
+    try {
+      if (mapped.getInt() != MAGIC) {
+        throw new IOException(file + " is not a template snapshot");
+      }
+      int version = mapped.getInt();
+      if (version != VERSION) {
+        throw new IOException(file + " is a version " + version
+            + " snapshot; expected version " + VERSION);
+      }
+      String parser_name = TemplateNodeCodec.readString(mapped);
+      int count = mapped.getInt();
+      Map<String, IndexEntry> index = new HashMap<String, IndexEntry>();
+      for (int i = 0; i < count; i++) {
+        String name = TemplateNodeCodec.readString(mapped);
+        IndexEntry entry = new IndexEntry(mapped.getLong(), mapped.getInt(),
+            mapped.getInt(), mapped.getInt());
+        index.put(name, entry);
+      }
+      ByteBuffer trees = mapped.slice();
+      for (IndexEntry entry : index.values()) {
+        if (entry.offset_ < 0 || entry.size_ < 0
+            || entry.offset_ > trees.capacity() - entry.size_) {
+          throw new IOException(file + " is truncated");
+        }
+      }
+      return new TemplateSnapshot(parser_name, index, trees);
+    } catch (RuntimeException e) {
+      throw new IOException(file + " is corrupt", e);
+    }
+  }
+
+  /**
+   * Writes a snapshot of a template directory.  Usage:
+   * TemplateSnapshot base_path snapshot_file [ezt]
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println(
+          "Usage: TemplateSnapshot base_path snapshot_file [ezt]");
+      System.exit(2);
+    }
+    TemplateParser parser = args.length > 2 && args[2].equals("ezt")
+        ? EztParser.create() : CTemplateParser.create();
+    int count = write(args[0], parser, StandardCharsets.UTF_8,
+        Paths.get(args[1]));
+    System.out.println("Wrote " + count + " templates to " + args[1]);
+  }
+
+  /**
+   * Returns true if the templates in this snapshot were parsed by a parser
+   * of the same class as parser.
+   */
+  public boolean isFor(TemplateParser parser) {
+    return parserName_.equals(parser.getClass().getName());
+  }
+
+  /**
+   * Returns the number of templates in this snapshot.
+   */
+  public int size() {
+    return index_.size();
+  }
+
+  /**
+   * Returns the number of templates that have been read from this snapshot.
+   */
+  public long getHitCount() {
+    return hits_.sum();
+  }
+
+  /**
+   * Returns the number of templates whose source had changed since this
+   * snapshot was written, and so were parsed instead.
+   */
+  public long getStaleCount() {
+    return stale_.sum();
+  }
+
+  /**
+   * Returns the tree of the template at name, relative to the base
+   * directory, if it was parsed from contents; otherwise null.
+   */
+  TemplateNode lookup(String name, String contents) {
+    IndexEntry entry = index_.get(name);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.length_ != contents.length() || entry.hash_ != hash(contents)) {
+      stale_.increment();
+      return null;
+    }
+    try {
+      ByteBuffer tree = trees_.duplicate();
+      tree.position(entry.offset_);
+      tree.limit(entry.offset_ + entry.size_);
+      TemplateNode program = TemplateNodeCodec.read(tree.slice());
+      hits_.increment();
+      return program;
+    } catch (RuntimeException e) {
+      logger_.warning("Unable to read " + name + " from the snapshot: " + e);
+      stale_.increment();
+      return null;
+    }
+  }
+
+  /**
+   * Returns the name of path relative to base, with '/' between its parts
+   * on every platform.
+   */
+  static String nameOf(Path base, Path path) {
+    StringBuilder sb = new StringBuilder();
+    for (Path part : base.relativize(path)) {
+      if (sb.length() > 0) {
+        sb.append('/');
+      }
+      sb.append(part.toString());
+    }
+    return sb.toString();
+  }
+
+  /**
+   * A 64-bit FNV-1a hash of the chars of s.  Stored with the length of s, it
+   * tells a changed template from the one that was written.
+   */
+  static long hash(String s) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < s.length(); i++) {
+      hash ^= s.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+}
@@ -0,0 +1,300 @@
+package com.xfltr.hapax.codegen;
+
+import com.xfltr.hapax.TemplateException;
+import com.xfltr.hapax.parser.EztConditionalBlockNode;
+import com.xfltr.hapax.parser.EztDefineBlockNode;
+import com.xfltr.hapax.parser.SectionBlockNode;
+import com.xfltr.hapax.parser.SequenceNode;
+import com.xfltr.hapax.parser.TemplateNode;
+import com.xfltr.hapax.parser.VariableNode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compiles the tree produced by {@link com.xfltr.hapax.parser.TemplateCompiler}
+ * into JVM classes.  Every {@link SequenceNode} becomes a generated subclass of
+ * {@link TemplateNode} whose evaluate() method is straight-line code:
+ *
+ * <ul>
+ * <li>variables without modifiers are looked up directly in the
+ * dictionary,</li>
+ * <li>sections and conditionals are emitted as loops and branches, unless
+ * the rows of a section are rendered in parallel,</li>
+ * <li>everything else, including text, is a call to the node's own
+ * evaluate() through its concrete class.</li>
+ * </ul>
+ *
+ * Text is not inlined as string constants: a {@link
+ * com.xfltr.hapax.parser.TextNode} carries its text already encoded as UTF-8,
+ * which only it can hand to the {@link com.xfltr.hapax.TemplateOutput}.
+ *
+ * Every call site in generated code sees exactly one receiver class, which is
+ * what the JIT needs to inline through the whole template.
+ *
+ * The classes for each compiled template are defined in a fresh {@link
+ * TemplateClassLoader}, so they can be unloaded once the template is no longer
+ * referenced (for instance after {@link com.xfltr.hapax.TemplateCache}
+ * reloads it).
+ *
+ * @author dcoker
+ */
+public final class BytecodeCompiler {
+  private static final AtomicLong classCounter_ = new AtomicLong();
+
+  private static final String GENERATED_PREFIX =
+      "com/xfltr/hapax/codegen/GeneratedSequence$";
+
+  /**
+   * Sequences longer than this are split across several classes so that no
+   * generated method comes near the JVM's 64k code limit.
+   */
+  private static final int MAX_NODES_PER_CLASS = 512;
+
+  private static final String NODE = "com/xfltr/hapax/parser/TemplateNode";
+  private static final String NODE_ARRAY = "[L" + NODE + ";";
+  private static final String DICT = "com/xfltr/hapax/TemplateDictionary";
+  private static final String CONTEXT = "com/xfltr/hapax/RenderContext";
+  private static final String OUTPUT = "com/xfltr/hapax/TemplateOutput";
+  private static final String SYMBOL = "com/xfltr/hapax/Symbol";
+  private static final String EVALUATE_DESC = "(L" + DICT + ";"
+      + "L" + CONTEXT + ";L" + OUTPUT + ";)V";
+
+  /**
+   * Local variable slots of the generated evaluate() method.
+   */
+  private static final int LOCAL_THIS = 0;
+  private static final int LOCAL_DICT = 1;
+  private static final int LOCAL_CONTEXT = 2;
+  private static final int LOCAL_WRITER = 3;
+  private static final int LOCAL_ITERATOR = 4;
+
+  private final ClassLoader parentLoader_;
+
+  private BytecodeCompiler(ClassLoader parentLoader) {
+    this.parentLoader_ = parentLoader;
+  }
+
+  public static BytecodeCompiler create() {
+    return new BytecodeCompiler(BytecodeCompiler.class.getClassLoader());
+  }
+
+  /**
+   * Compiles a template tree into generated classes.
+   *
+   * @param program The root of a compiled template.
+   *
+   * @return A node that renders exactly like program.
+   */
+  public TemplateNode compile(TemplateNode program) throws TemplateException {
+    TemplateClassLoader loader = new TemplateClassLoader(parentLoader_);
+    return compile(program, loader);
+  }
+
+  private TemplateNode compile(TemplateNode node, TemplateClassLoader loader)
+      throws TemplateException {
+    if (node instanceof SequenceNode) {
+      return generate(((SequenceNode) node).getNodes(), loader);
+    } else if (node instanceof SectionBlockNode) {
+      SectionBlockNode section = (SectionBlockNode) node;
+      return section.withBody(compile(section.getBody(), loader));
+    } else if (node instanceof EztConditionalBlockNode) {
+      EztConditionalBlockNode block = (EztConditionalBlockNode) node;
+      return block.withBranches(compile(block.getTrueBranch(), loader),
+          compile(block.getFalseBranch(), loader));
+    } else if (node instanceof EztDefineBlockNode) {
+      EztDefineBlockNode block = (EztDefineBlockNode) node;
+      return block.withBody(compile(block.getBody(), loader));
+    }
+    return node;
+  }
+
+  private TemplateNode generate(List<TemplateNode> nodes,
+                                TemplateClassLoader loader)
+      throws TemplateException {
+    if (nodes.size() > MAX_NODES_PER_CLASS) {
+      List<TemplateNode> chunks = new ArrayList<TemplateNode>();
+      for (int i = 0; i < nodes.size(); i += MAX_NODES_PER_CLASS) {
+        int end = Math.min(nodes.size(), i + MAX_NODES_PER_CLASS);
+        chunks.add(generate(nodes.subList(i, end), loader));
+      }
+      return generate(chunks, loader);
+    }
+
+    String name = GENERATED_PREFIX + classCounter_.incrementAndGet();
+    ClassFileWriter cf = new ClassFileWriter(name, NODE);
+    cf.addField(ClassFileWriter.ACC_PRIVATE | ClassFileWriter.ACC_FINAL,
+        "n", NODE_ARRAY);
+    cf.addMethod(ClassFileWriter.ACC_PUBLIC, "<init>", "(" + NODE_ARRAY + ")V",
+        constructor(cf, name));
+
+    List<TemplateNode> slots = new ArrayList<TemplateNode>();
+    ClassFileWriter.Code code = new ClassFileWriter.Code(5, 5);
+    for (TemplateNode node : nodes) {
+      emit(cf, code, name, slots, compile(node, loader));
+    }
+    code.op(ClassFileWriter.Code.RETURN);
+    cf.addMethod(ClassFileWriter.ACC_PUBLIC, "evaluate", EVALUATE_DESC, code);
+
+    try {
+      Class<?> generated = loader.define(name.replace('/', '.'),
+          cf.toByteArray());
+      return (TemplateNode) generated.getConstructor(TemplateNode[].class)
+          .newInstance((Object) slots.toArray(new TemplateNode[slots.size()]));
+    } catch (Exception e) {
+      throw new TemplateException(e);
+    } catch (LinkageError e) {
+      throw new TemplateException(e);
+    }
+  }
+
+  private static ClassFileWriter.Code constructor(ClassFileWriter cf,
+                                                  String name) {
+    ClassFileWriter.Code code = new ClassFileWriter.Code(2, 2);
+    code.aload(0)
+        .op(ClassFileWriter.Code.INVOKESPECIAL,
+            cf.methodRef(NODE, "<init>", "()V"))
+        .aload(0)
+        .aload(1)
+        .op(ClassFileWriter.Code.PUTFIELD, cf.fieldRef(name, "n", NODE_ARRAY))
+        .op(ClassFileWriter.Code.RETURN);
+    return code;
+  }
+
+  private void emit(ClassFileWriter cf, ClassFileWriter.Code code, String name,
+                    List<TemplateNode> slots, TemplateNode node) {
+    if (node instanceof VariableNode
+        && ((VariableNode) node).getModifiers().isEmpty()) {
+      String variable = "com/xfltr/hapax/parser/VariableNode";
+      code.aload(LOCAL_CONTEXT).aload(LOCAL_DICT);
+      loadSlot(cf, code, name, slots, node, variable);
+      code.op(ClassFileWriter.Code.INVOKEVIRTUAL,
+              cf.methodRef(variable, "getSymbol", "()L" + SYMBOL + ";"))
+          .aload(LOCAL_WRITER)
+          .op(ClassFileWriter.Code.INVOKESTATIC, cf.methodRef(
+              "com/xfltr/hapax/codegen/CodegenSupport", "writeVariable",
+              "(L" + CONTEXT + ";L" + DICT
+                  + ";L" + SYMBOL + ";L" + OUTPUT + ";)V"));
+    } else if (node instanceof SectionBlockNode) {
+      emitSection(cf, code, name, slots, (SectionBlockNode) node);
+    } else if (node instanceof EztConditionalBlockNode) {
+      emitConditional(cf, code, name, slots, (EztConditionalBlockNode) node);
+    } else {
+      String owner = ownerOf(node);
+      loadSlot(cf, code, name, slots, node, owner);
+      code.aload(LOCAL_DICT).aload(LOCAL_CONTEXT).aload(LOCAL_WRITER)
+          .op(ClassFileWriter.Code.INVOKEVIRTUAL,
+              cf.methodRef(owner, "evaluate", EVALUATE_DESC));
+    }
+  }
+
+  private static void emitSection(ClassFileWriter cf, ClassFileWriter.Code code,
+                                  String name, List<TemplateNode> slots,
+                                  SectionBlockNode section) {
+    // List dicts = section.dictionariesFor(dict);
+    // if (!section.evaluateInParallel(dicts, context, writer)) {
+    //   for (Iterator it = dicts.iterator(); it.hasNext(); ) {
+    //     body.evaluate((TemplateDictionary) it.next(), context, writer);
+    //   }
+    // }
+    String owner = "com/xfltr/hapax/parser/SectionBlockNode";
+    loadSlot(cf, code, name, slots, section, owner);
+    code.aload(LOCAL_DICT)
+        .op(ClassFileWriter.Code.INVOKEVIRTUAL, cf.methodRef(
+            owner, "dictionariesFor",
+            "(L" + DICT + ";)Ljava/util/List;"))
+        .astore(LOCAL_ITERATOR);
+    loadSlot(cf, code, name, slots, section, owner);
+    code.aload(LOCAL_ITERATOR)
+        .aload(LOCAL_CONTEXT)
+        .aload(LOCAL_WRITER)
+        .op(ClassFileWriter.Code.INVOKEVIRTUAL, cf.methodRef(
+            owner, "evaluateInParallel",
+            "(Ljava/util/List;L" + CONTEXT + ";L" + OUTPUT + ";)Z"));
+    int done = code.branch(ClassFileWriter.Code.IFNE);
+    code.aload(LOCAL_ITERATOR)
+        .invokeInterface(cf.interfaceMethodRef("java/util/List", "iterator",
+            "()Ljava/util/Iterator;"), 0)
+        .astore(LOCAL_ITERATOR);
+
+    int loop = code.position();
+    code.aload(LOCAL_ITERATOR)
+        .invokeInterface(cf.interfaceMethodRef("java/util/Iterator", "hasNext",
+            "()Z"), 0);
+    int exit = code.branch(ClassFileWriter.Code.IFEQ);
+
+    loadSlot(cf, code, name, slots, section.getBody(), NODE);
+    code.aload(LOCAL_ITERATOR)
+        .invokeInterface(cf.interfaceMethodRef("java/util/Iterator", "next",
+            "()Ljava/lang/Object;"), 0)
+        .op(ClassFileWriter.Code.CHECKCAST, cf.classRef(DICT))
+        .aload(LOCAL_CONTEXT)
+        .aload(LOCAL_WRITER)
+        .op(ClassFileWriter.Code.INVOKEVIRTUAL,
+            cf.methodRef(NODE, "evaluate", EVALUATE_DESC));
+    code.gotoTarget(loop);
+    code.patch(exit, code.position());
+    code.patch(done, code.position());
+  }
+
+  private static void emitConditional(ClassFileWriter cf,
+                                      ClassFileWriter.Code code, String name,
+                                      List<TemplateNode> slots,
+                                      EztConditionalBlockNode block) {
+    String condition = "com/xfltr/hapax/parser/EztConditionalNode";
+    loadSlot(cf, code, name, slots, block.getCondition(), condition);
+    code.aload(LOCAL_DICT)
+        .aload(LOCAL_CONTEXT)
+        .op(ClassFileWriter.Code.INVOKEVIRTUAL, cf.methodRef(condition,
+            "isTrue", "(L" + DICT + ";L" + CONTEXT + ";)Z"));
+    int to_else = code.branch(ClassFileWriter.Code.IFEQ);
+    evaluateSlot(cf, code, name, slots, block.getTrueBranch());
+    int to_end = code.branch(ClassFileWriter.Code.GOTO);
+    code.patch(to_else, code.position());
+    evaluateSlot(cf, code, name, slots, block.getFalseBranch());
+    code.patch(to_end, code.position());
+  }
+
+  private static void evaluateSlot(ClassFileWriter cf,
+                                   ClassFileWriter.Code code, String name,
+                                   List<TemplateNode> slots,
+                                   TemplateNode node) {
+    loadSlot(cf, code, name, slots, node, NODE);
+    code.aload(LOCAL_DICT).aload(LOCAL_CONTEXT).aload(LOCAL_WRITER)
+        .op(ClassFileWriter.Code.INVOKEVIRTUAL,
+            cf.methodRef(NODE, "evaluate", EVALUATE_DESC));
+  }
+
+  /**
+   * Pushes this.n[i] onto the stack, cast to owner, where i is the slot that
+   * holds node.
+   */
+  private static void loadSlot(ClassFileWriter cf, ClassFileWriter.Code code,
+                               String name, List<TemplateNode> slots,
+                               TemplateNode node, String owner) {
+    int index = slots.size();
+    slots.add(node);
+    code.aload(LOCAL_THIS)
+        .op(ClassFileWriter.Code.GETFIELD, cf.fieldRef(name, "n", NODE_ARRAY))
+        .pushInt(index)
+        .op(ClassFileWriter.Code.AALOAD);
+    if (!owner.equals(NODE)) {
+      code.op(ClassFileWriter.Code.CHECKCAST, cf.classRef(owner));
+    }
+  }
+
+  /**
+   * Returns the class that evaluate() is invoked through for node: its own
+   * class when generated code can see it, otherwise TemplateNode.
+   */
+  private String ownerOf(TemplateNode node) {
+    Class<?> type = node.getClass();
+    if (java.lang.reflect.Modifier.isPublic(type.getModifiers())
+        && type.getName().startsWith("com.xfltr.hapax.")
+        && !type.getName().startsWith(GENERATED_PREFIX.replace('/', '.'))) {
+      return type.getName().replace('.', '/');
+    }
+    return NODE;
+  }
+}
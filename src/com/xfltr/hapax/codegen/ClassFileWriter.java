@@ -0,0 +1,313 @@
+package com.xfltr.hapax.codegen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal writer for JVM class files, covering only what {@link
+ * BytecodeCompiler} needs: one class with fields and methods that have a Code
+ * attribute.
+ *
+ * Classes are written with major version 49 (Java 5), which predates the
+ * StackMapTable attribute, so branch targets do not need frame information.
+ *
+ * @author dcoker
+ */
+final class ClassFileWriter {
+  static final int ACC_PUBLIC = 0x0001;
+  static final int ACC_PRIVATE = 0x0002;
+  static final int ACC_FINAL = 0x0010;
+  static final int ACC_SUPER = 0x0020;
+
+  private static final int CLASS_FILE_MAJOR_VERSION = 49;
+
+  private static final int CONSTANT_UTF8 = 1;
+  private static final int CONSTANT_CLASS = 7;
+  private static final int CONSTANT_FIELDREF = 9;
+  private static final int CONSTANT_METHODREF = 10;
+  private static final int CONSTANT_INTERFACE_METHODREF = 11;
+  private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+  private final ByteArrayOutputStream pool_ = new ByteArrayOutputStream();
+  private final DataOutputStream poolOut_ = new DataOutputStream(pool_);
+  private final Map<String, Integer> poolIndex_ = new HashMap<String, Integer>();
+  private int poolCount_ = 1;
+
+  private final List<byte[]> fields_ = new ArrayList<byte[]>();
+  private final List<byte[]> methods_ = new ArrayList<byte[]>();
+
+  private final int thisClass_;
+  private final int superClass_;
+
+  ClassFileWriter(String internalName, String superInternalName) {
+    this.thisClass_ = classRef(internalName);
+    this.superClass_ = classRef(superInternalName);
+  }
+
+  int utf8(String value) {
+    String key = "U" + value;
+    Integer index = poolIndex_.get(key);
+    if (index != null) {
+      return index;
+    }
+    try {
+      poolOut_.writeByte(CONSTANT_UTF8);
+      poolOut_.writeUTF(value);
+    } catch (IOException e) {
+      throw new IllegalArgumentException(e);
+    }
+    return register(key);
+  }
+
+  int classRef(String internalName) {
+    return indexed("C" + internalName, CONSTANT_CLASS, utf8(internalName));
+  }
+
+  int fieldRef(String owner, String name, String descriptor) {
+    return memberRef(CONSTANT_FIELDREF, owner, name, descriptor);
+  }
+
+  int methodRef(String owner, String name, String descriptor) {
+    return memberRef(CONSTANT_METHODREF, owner, name, descriptor);
+  }
+
+  int interfaceMethodRef(String owner, String name, String descriptor) {
+    return memberRef(CONSTANT_INTERFACE_METHODREF, owner, name, descriptor);
+  }
+
+  void addField(int access, String name, String descriptor) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeShort(access);
+      out.writeShort(utf8(name));
+      out.writeShort(utf8(descriptor));
+      out.writeShort(0); // attributes
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    fields_.add(bytes.toByteArray());
+  }
+
+  void addMethod(int access, String name, String descriptor, Code code) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeShort(access);
+      out.writeShort(utf8(name));
+      out.writeShort(utf8(descriptor));
+      out.writeShort(1); // attributes
+      out.writeShort(utf8("Code"));
+      byte[] body = code.toByteArray();
+      out.writeInt(2 + 2 + 4 + body.length + 2 + 2);
+      out.writeShort(code.maxStack());
+      out.writeShort(code.maxLocals());
+      out.writeInt(body.length);
+      out.write(body);
+      out.writeShort(0); // exception table
+      out.writeShort(0); // attributes
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    methods_.add(bytes.toByteArray());
+  }
+
+  byte[] toByteArray() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0);
+      out.writeShort(CLASS_FILE_MAJOR_VERSION);
+      out.writeShort(poolCount_);
+      pool_.writeTo(out);
+      out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+      out.writeShort(thisClass_);
+      out.writeShort(superClass_);
+      out.writeShort(0); // interfaces
+      writeAll(out, fields_);
+      writeAll(out, methods_);
+      out.writeShort(0); // attributes
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void writeAll(DataOutputStream out, List<byte[]> members)
+      throws IOException {
+    out.writeShort(members.size());
+    for (byte[] member : members) {
+      out.write(member);
+    }
+  }
+
+  private int memberRef(int tag, String owner, String name, String descriptor) {
+    int owner_index = classRef(owner);
+    int name_and_type = indexed("N" + name + ":" + descriptor,
+        CONSTANT_NAME_AND_TYPE, utf8(name), utf8(descriptor));
+    return indexed(tag + owner + "." + name + ":" + descriptor, tag,
+        owner_index, name_and_type);
+  }
+
+  private int indexed(String key, int tag, int... operands) {
+    Integer index = poolIndex_.get(key);
+    if (index != null) {
+      return index;
+    }
+    try {
+      poolOut_.writeByte(tag);
+      for (int operand : operands) {
+        poolOut_.writeShort(operand);
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return register(key);
+  }
+
+  private int register(String key) {
+    if (poolCount_ >= 0xFFFF) {
+      throw new IllegalStateException("constant pool overflow");
+    }
+    int index = poolCount_++;
+    poolIndex_.put(key, index);
+    return index;
+  }
+
+  /**
+   * The body of a single method.  Branch targets are patched in place once
+   * they are known.
+   */
+  static final class Code {
+    static final int ALOAD = 0x19;
+    static final int ASTORE = 0x3a;
+    static final int AALOAD = 0x32;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9;
+    static final int CHECKCAST = 0xc0;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int GOTO = 0xa7;
+    static final int RETURN = 0xb1;
+
+    /**
+     * The JVM limit on the size of a method body.
+     */
+    static final int MAX_CODE_BYTES = 65535;
+
+    private byte[] code_ = new byte[256];
+    private int size_ = 0;
+    private final int maxStack_;
+    private final int maxLocals_;
+
+    Code(int maxStack, int maxLocals) {
+      this.maxStack_ = maxStack;
+      this.maxLocals_ = maxLocals;
+    }
+
+    int maxStack() {
+      return maxStack_;
+    }
+
+    int maxLocals() {
+      return maxLocals_;
+    }
+
+    int position() {
+      return size_;
+    }
+
+    Code op(int opcode) {
+      u1(opcode);
+      return this;
+    }
+
+    Code op(int opcode, int u2) {
+      u1(opcode);
+      u2(u2);
+      return this;
+    }
+
+    Code aload(int local) {
+      u1(ALOAD);
+      u1(local);
+      return this;
+    }
+
+    Code astore(int local) {
+      u1(ASTORE);
+      u1(local);
+      return this;
+    }
+
+    Code pushInt(int value) {
+      if (value <= Byte.MAX_VALUE) {
+        u1(BIPUSH);
+        u1(value);
+      } else {
+        op(SIPUSH, value);
+      }
+      return this;
+    }
+
+    Code invokeInterface(int poolIndex, int argumentSlots) {
+      op(INVOKEINTERFACE, poolIndex);
+      u1(argumentSlots + 1);
+      u1(0);
+      return this;
+    }
+
+    /**
+     * Emits a branch instruction with a placeholder offset, returning the
+     * position to hand to {@link #patch(int, int)}.
+     */
+    int branch(int opcode) {
+      int at = position();
+      op(opcode, 0);
+      return at;
+    }
+
+    void patch(int branchAt, int target) {
+      int offset = target - branchAt;
+      code_[branchAt + 1] = (byte) (offset >> 8);
+      code_[branchAt + 2] = (byte) offset;
+    }
+
+    void gotoTarget(int target) {
+      int at = position();
+      op(GOTO, (target - at) & 0xFFFF);
+    }
+
+    private void u1(int value) {
+      if (size_ == code_.length) {
+        code_ = Arrays.copyOf(code_, size_ * 2);
+      }
+      code_[size_++] = (byte) value;
+    }
+
+    private void u2(int value) {
+      u1(value >> 8);
+      u1(value);
+    }
+
+    byte[] toByteArray() {
+      if (size_ > MAX_CODE_BYTES) {
+        throw new IllegalStateException("method too large");
+      }
+      return Arrays.copyOf(code_, size_);
+    }
+  }
+}
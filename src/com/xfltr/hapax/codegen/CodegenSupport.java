@@ -0,0 +1,37 @@
+package com.xfltr.hapax.codegen;
+
+import com.xfltr.hapax.Modifiers;
+import com.xfltr.hapax.RenderContext;
+import com.xfltr.hapax.Symbol;
+import com.xfltr.hapax.TemplateDictionary;
+import com.xfltr.hapax.TemplateException;
+import com.xfltr.hapax.TemplateOutput;
+
+import java.util.Collections;
+
+/**
+ * Static helpers called from code generated by {@link BytecodeCompiler}.  These
+ * are public only because generated classes live in their own class loader.
+ *
+ * @author dcoker
+ */
+public final class CodegenSupport {
+
+  private CodegenSupport() {
+  }
+
+  /**
+   * Writes the value of an unmodified {{VARIABLE}}, or nothing if the
+   * dictionary does not contain it.
+   */
+  public static void writeVariable(RenderContext context,
+                                   TemplateDictionary dict, Symbol name,
+                                   TemplateOutput out)
+      throws TemplateException {
+    Object value = context.lookupValue(dict, name);
+    if (value != null) {
+      Modifiers.writeValue(value, Collections.<Modifiers.FLAGS>emptyList(),
+          out);
+    }
+  }
+}
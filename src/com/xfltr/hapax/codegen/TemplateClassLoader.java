@@ -0,0 +1,17 @@
+package com.xfltr.hapax.codegen;
+
+/**
+ * Defines the classes generated by {@link BytecodeCompiler} for one template.
+ *
+ * @author dcoker
+ */
+final class TemplateClassLoader extends ClassLoader {
+
+  TemplateClassLoader(ClassLoader parent) {
+    super(parent);
+  }
+
+  Class<?> define(String binaryName, byte[] classFile) {
+    return defineClass(binaryName, classFile, 0, classFile.length);
+  }
+}
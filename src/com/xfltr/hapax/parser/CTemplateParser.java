@@ -2,52 +2,24 @@ package com.xfltr.hapax.parser;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * This parser turns strings containing the contents of a template into a list
  * of TemplateNodes.
  *
+ * The template is scanned once, by index, without copying it: text runs up to
+ * the next "{{", and each tag is read char by char up to its "}}".  Parsing
+ * takes time linear in the length of the template.  Malformed tags are
+ * reported with their line and column.
+ *
  * @author dcoker
  */
 public final class CTemplateParser implements TemplateParser {
-  private static final Logger logger =
-      Logger.getLogger(CTemplateParser.class.getSimpleName());
-
-  private static final int RE_FLAGS =
-      Pattern.CASE_INSENSITIVE | Pattern.MULTILINE;
-
-  private static final String OPEN_SQUIGGLE = Pattern.quote("{{");
-
-  private static final String CLOSE_SQUIGGLE = Pattern.quote("}}");
-
-  private static final String VARIABLE_RE = "([a-zA-Z_]+(:[a-zA-Z]+)*)*";
 
-  private final Pattern RE_OPEN_SECTION =
-      Pattern
-          .compile(OPEN_SQUIGGLE + "#([a-zA-Z_]+)" + CLOSE_SQUIGGLE, RE_FLAGS);
-
-  private final Pattern RE_CLOSE_SECTION =
-      Pattern
-          .compile(OPEN_SQUIGGLE + "/([a-zA-Z_]+)" + CLOSE_SQUIGGLE, RE_FLAGS);
-
-  private final Pattern RE_VARIABLE =
-      Pattern.compile(OPEN_SQUIGGLE + VARIABLE_RE + CLOSE_SQUIGGLE, RE_FLAGS);
-
-  private final Pattern RE_INCLUDE =
-      Pattern
-          .compile(OPEN_SQUIGGLE + ">" + VARIABLE_RE + CLOSE_SQUIGGLE,
-              RE_FLAGS);
-
-  private enum NODE_TYPE {
-    OPEN_SECTION,
-    CLOSE_SECTION,
-    VARIABLE,
-    TEXT_NODE,
-    INCLUDE_SECTION
-  }
+  /**
+   * How much of a malformed tag is quoted in the error message.
+   */
+  private static final int SNIPPET_LENGTH = 40;
 
   public static CTemplateParser create() {
     return new CTemplateParser();
@@ -56,107 +28,118 @@ public final class CTemplateParser implements TemplateParser {
   private CTemplateParser() {
   }
 
-  // Implements a simple lookahead.
-  private NODE_TYPE next(StringBuilder input) {
-    if (input.toString().startsWith("{{#")) {
-      return NODE_TYPE.OPEN_SECTION;
-    } else if (input.toString().startsWith("{{/")) {
-      return NODE_TYPE.CLOSE_SECTION;
-    } else if (input.toString().startsWith("{{>")) {
-      return NODE_TYPE.INCLUDE_SECTION;
-    } else if (input.toString().startsWith("{{")) {
-      return NODE_TYPE.VARIABLE;
-    } else {
-      return NODE_TYPE.TEXT_NODE;
-    }
-  }
-
-  private String consume(Pattern p, StringBuilder input) throws TemplateParserException {
-    Matcher m = p.matcher(input);
-    if (m.lookingAt()) {
-      String string_to_return = m.group(1);
-      // This is apparently an inefficient operation, but parsing should only
-      // happen when the template is loaded or changes, so it doesn't happen
-      // very often.
-      input.delete(0, m.end());
-      logger.finest("consumed '" + string_to_return + "'");
-      return string_to_return;
-    }
-    throw new TemplateParserException(
-        "Unexpected or malformed input: " + input);
-  }
-
-  private void handleTextNode(StringBuilder input, List<TemplateNode> nodes) {
-    int next_braces = input.indexOf("{{");
-    String text;
-    if (next_braces == -1) { // no more parser syntax
-      text = input.toString();
-      input.setLength(0);
-      input.trimToSize();
-    } else {
-      text = input.substring(0, next_braces);
-      input.delete(0, next_braces);
-    }
-    if (text.length() > 0) {
-      logger.finest("found text node '" + text + "'");
-      nodes.add(TextNode.create(text));
-    }
-  }
-
   public List<TemplateNode> parse(String template)
       throws TemplateParserException {
     List<TemplateNode> nodes = new ArrayList<TemplateNode>();
-    StringBuilder input = new StringBuilder(template);
-
-    while (input.length() > 0) {
-      logger.finest("looking ahead at '" + input + "'");
-      switch (next(input)) {
-        case OPEN_SECTION:
-          handleOpenSection(input, nodes);
-          break;
-        case CLOSE_SECTION:
-          handleCloseSection(input, nodes);
-          break;
-        case VARIABLE:
-          handleVariable(input, nodes);
-          break;
-        case TEXT_NODE:
-          handleTextNode(input, nodes);
-          break;
-        case INCLUDE_SECTION:
-          handleInclude(input, nodes);
-          break;
-        default:
-          throw new RuntimeException("Internal error parsing template.");
+    int length = template.length();
+    int pos = 0;
+    while (pos < length) {
+      int open = template.indexOf("{{", pos);
+      if (open == -1) {
+        open = length;
+      }
+      if (open > pos) {
+        nodes.add(TextNode.create(template.substring(pos, open)));
+      }
+      if (open < length) {
+        pos = parseTag(template, open, nodes);
+      } else {
+        pos = length;
       }
     }
     return nodes;
   }
 
-  private void handleInclude(StringBuilder input, List<TemplateNode> nodes) throws TemplateParserException {
-    String consumed = consume(RE_INCLUDE, input);
-    nodes.add(IncludeNode.parse(consumed));
-  }
+  /**
+   * Parses the tag that starts with the "{{" at open, adds its node to nodes,
+   * and returns the index just past its "}}".
+   */
+  private int parseTag(String template, int open, List<TemplateNode> nodes)
+      throws TemplateParserException {
+    int pos = open + 2;
+    char kind = pos < template.length() ? template.charAt(pos) : 0;
+    if (kind == '#' || kind == '/' || kind == '>') {
+      pos++;
+    } else {
+      kind = 0;
+    }
 
-  private void handleVariable(StringBuilder input, List<TemplateNode> nodes) throws TemplateParserException {
-    logger.finest("consuming VARIABLE with regex " + RE_VARIABLE.pattern());
-    String consumed = consume(RE_VARIABLE, input);
-    nodes.add(VariableNode.parse(consumed));
+    int name_start = pos;
+    pos = skipName(template, pos, true);
+    if (pos == name_start) {
+      throw malformed(template, open, pos, "expected a name");
+    }
+    String name = template.substring(name_start, pos);
+
+    // Variables and includes may be followed by :modifiers.
+    if (kind == 0 || kind == '>') {
+      while (pos < template.length() && template.charAt(pos) == ':') {
+        int modifier_start = ++pos;
+        pos = skipName(template, pos, false);
+        if (pos == modifier_start) {
+          throw malformed(template, open, pos, "expected a modifier");
+        }
+      }
+    }
+
+    if (!template.startsWith("}}", pos)) {
+      throw malformed(template, open, pos, "expected '}}'");
+    }
+    String spec = template.substring(name_start, pos);
+
+    switch (kind) {
+      case '#':
+        nodes.add(SectionNode.open(name));
+        break;
+      case '/':
+        nodes.add(SectionNode.close(name));
+        break;
+      case '>':
+        nodes.add(IncludeNode.parse(spec));
+        break;
+      default:
+        nodes.add(VariableNode.parse(spec));
+    }
+    return pos + 2;
   }
 
-  private void handleCloseSection(StringBuilder input, List<TemplateNode> nodes) throws TemplateParserException {
-    logger.finest(
-        "consuming CLOSE SECTION with regex " + RE_CLOSE_SECTION.pattern());
-    String consumed = consume(RE_CLOSE_SECTION, input);
-    logger.finest("CLOSING " + consumed);
-    nodes.add(SectionNode.close(consumed));
+  /**
+   * Returns the index of the first char at or after pos that cannot be part of
+   * a name: letters, plus underscores if underscores is true.
+   */
+  private static int skipName(String template, int pos, boolean underscores) {
+    while (pos < template.length()) {
+      char ch = template.charAt(pos);
+      if ((ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z')
+          || (underscores && ch == '_')) {
+        pos++;
+      } else {
+        break;
+      }
+    }
+    return pos;
   }
 
-  private void handleOpenSection(StringBuilder input, List<TemplateNode> nodes) throws TemplateParserException {
-    logger.finest(
-        "consuming OPEN SECTION with regex " + RE_OPEN_SECTION.pattern());
-    String consumed = consume(RE_OPEN_SECTION, input);
-    logger.finest("OPENING " + consumed);
-    nodes.add(SectionNode.open(consumed));
+  /**
+   * Returns an exception for the malformed tag starting at open, whose error
+   * was found at pos.  The line and column are only worked out here, so that
+   * well-formed templates never pay for them.
+   */
+  private static TemplateParserException malformed(String template, int open,
+                                                   int pos, String expected) {
+    int line = 1;
+    int line_start = 0;
+    for (int i = 0; i < pos; i++) {
+      if (template.charAt(i) == '\n') {
+        line++;
+        line_start = i + 1;
+      }
+    }
+    String snippet =
+        template.substring(open, Math.min(template.length(),
+            open + SNIPPET_LENGTH));
+    return new TemplateParserException(
+        "Unexpected or malformed input, " + expected + ": " + snippet,
+        line, pos - line_start + 1);
   }
 }
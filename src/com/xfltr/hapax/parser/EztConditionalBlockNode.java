@@ -0,0 +1,62 @@
+package com.xfltr.hapax.parser;
+
+import com.xfltr.hapax.RenderContext;
+import com.xfltr.hapax.TemplateDictionary;
+import com.xfltr.hapax.TemplateException;
+import com.xfltr.hapax.TemplateOutput;
+
+/**
+ * A compiled [if-any]/[is] block.  Both branches are resolved once by {@link
+ * TemplateCompiler}; a block without an [else] has an empty else branch.
+ *
+ * @author dcoker
+ */
+public final class EztConditionalBlockNode extends TemplateNode {
+  private final EztConditionalNode condition_;
+  private final TemplateNode trueBranch_;
+  private final TemplateNode falseBranch_;
+
+  private EztConditionalBlockNode(EztConditionalNode condition,
+                                  TemplateNode trueBranch,
+                                  TemplateNode falseBranch) {
+    this.condition_ = condition;
+    this.trueBranch_ = trueBranch;
+    this.falseBranch_ = falseBranch;
+  }
+
+  static EztConditionalBlockNode create(EztConditionalNode condition,
+                                        TemplateNode trueBranch,
+                                        TemplateNode falseBranch) {
+    return new EztConditionalBlockNode(condition, trueBranch, falseBranch);
+  }
+
+  public EztConditionalNode getCondition() {
+    return condition_;
+  }
+
+  public TemplateNode getTrueBranch() {
+    return trueBranch_;
+  }
+
+  public TemplateNode getFalseBranch() {
+    return falseBranch_;
+  }
+
+  /**
+   * Returns a copy of this block with different branches.
+   */
+  public EztConditionalBlockNode withBranches(TemplateNode trueBranch,
+                                              TemplateNode falseBranch) {
+    return new EztConditionalBlockNode(condition_, trueBranch, falseBranch);
+  }
+
+  @Override
+  public void evaluate(TemplateDictionary dict, RenderContext context,
+                       TemplateOutput collector) throws TemplateException {
+    if (condition_.isTrue(dict, context)) {
+      trueBranch_.evaluate(dict, context, collector);
+    } else {
+      falseBranch_.evaluate(dict, context, collector);
+    }
+  }
+}
@@ -1,11 +1,10 @@
 package com.xfltr.hapax.parser;
 
+import com.xfltr.hapax.RenderContext;
+import com.xfltr.hapax.Symbol;
 import com.xfltr.hapax.TemplateDictionary;
 import com.xfltr.hapax.TemplateException;
-import com.xfltr.hapax.TemplateLoaderContext;
-
-import java.io.PrintWriter;
-import java.util.List;
+import com.xfltr.hapax.TemplateOutput;
 
 /**
  * A conditional EZT node: either [is or [if-any.
@@ -14,22 +13,33 @@ import java.util.List;
  */
 public class EztConditionalNode extends TemplateNode {
   private interface Behavior {
-    public boolean trueBranch(TemplateDictionary td);
+    public boolean trueBranch(TemplateDictionary td, RenderContext context);
   }
 
+  private final Symbol symbol;
+
+  /**
+   * The value that [is] compares against, or null for [if-any].
+   */
+  private final String expected;
+
   private final Behavior behavior;
 
-  private EztConditionalNode(Behavior b) {
+  private EztConditionalNode(Symbol s, String e, Behavior b) {
+    symbol = s;
+    expected = e;
     behavior = b;
   }
 
   /**
    * Construct a node that evaluates the [if-any] logic.
    */
-  public static EztConditionalNode ifAny(final String varname) {
-    return new EztConditionalNode(new Behavior() {
-      public boolean trueBranch(TemplateDictionary td) {
-        return td.contains(varname) && td.get(varname).length() > 0;
+  public static EztConditionalNode ifAny(String varname) {
+    final Symbol symbol = Symbol.of(varname);
+    return new EztConditionalNode(symbol, null, new Behavior() {
+      public boolean trueBranch(TemplateDictionary td, RenderContext context) {
+        String value = context.lookup(td, symbol);
+        return value != null && value.length() > 0;
       }
     });
   }
@@ -37,62 +47,42 @@ public class EztConditionalNode extends TemplateNode {
   /**
    * Construct a node that evaluates the [is x "y"] logic.
    */
-  public static EztConditionalNode is(final String varname,
+  public static EztConditionalNode is(String varname,
                                       final String expected) {
-    return new EztConditionalNode(new Behavior() {
-      public boolean trueBranch(TemplateDictionary td) {
-        return td.contains(varname) && td.get(varname).equals(expected);
+    final Symbol symbol = Symbol.of(varname);
+    return new EztConditionalNode(symbol, expected, new Behavior() {
+      public boolean trueBranch(TemplateDictionary td, RenderContext context) {
+        String value = context.lookup(td, symbol);
+        return value != null && value.equals(expected);
       }
     });
   }
 
-  public Range advise(List<TemplateNode> nodes,
-                      int is_node_idx,
-                      TemplateDictionary dict) throws TemplateException {
-    int other_sections = 0;
-    int end_node = -1;
-    int else_node = -1;
-
-    for (int i = is_node_idx; i < nodes.size(); i++) {
-      final TemplateNode node = nodes.get(i);
-      if (node instanceof EztConditionalNode) {
-        other_sections++;
-      } else if (node instanceof EztElseNode && other_sections == 1) {
-        else_node = i;
-      } else if (node instanceof EztEndNode) {
-        other_sections--;
-        if (other_sections == 0) {
-          end_node = i;
-          break; // we can stop now because we've found the matching [end]
-        }
-      }
-    }
+  /**
+   * Returns the variable that this condition tests.
+   */
+  public Symbol getSymbol() {
+    return symbol;
+  }
 
-    if (end_node == -1) {
-      throw new TemplateException("Unable to find matching [end] node.");
-    }
+  /**
+   * Returns the value that an [is] test compares against, or null for an
+   * [if-any] test.
+   */
+  public String getExpected() {
+    return expected;
+  }
 
-    if (behavior.trueBranch(dict)) {
-      if (else_node == -1) {
-        // no [else]
-        return new Range(is_node_idx + 1, end_node, end_node);
-      } else {
-        // there is an [else]
-        return new Range(is_node_idx + 1, else_node, end_node);
-      }
-    } else {
-      if (else_node == -1) {
-        // no [else]
-        return new Range(end_node, end_node, end_node);
-      } else {
-        return new Range(else_node, end_node, end_node);
-      }
-    }
+  /**
+   * Returns true if the [if-any]/[is] test passes for the given dictionary.
+   */
+  public boolean isTrue(TemplateDictionary dict, RenderContext context) {
+    return behavior.trueBranch(dict, context);
   }
 
   @Override
   public void evaluate(TemplateDictionary dict,
-                       TemplateLoaderContext context, PrintWriter collector)
+                       RenderContext context, TemplateOutput collector)
       throws TemplateException {
     // do nothing
   }
@@ -0,0 +1,53 @@
+package com.xfltr.hapax.parser;
+
+import com.xfltr.hapax.RenderContext;
+import com.xfltr.hapax.Symbol;
+import com.xfltr.hapax.TemplateDictionary;
+import com.xfltr.hapax.TemplateException;
+import com.xfltr.hapax.TemplateOutput;
+
+/**
+ * A compiled [define var]...[end] block.  The body is rendered and the result
+ * is assigned to the variable for the rest of the render; the dictionary
+ * itself is not modified.
+ *
+ * @author dcoker
+ */
+public final class EztDefineBlockNode extends TemplateNode {
+  private final String variableName_;
+  private final Symbol symbol_;
+  private final TemplateNode body_;
+
+  private EztDefineBlockNode(String variableName, TemplateNode body) {
+    this.variableName_ = variableName;
+    this.symbol_ = Symbol.of(variableName);
+    this.body_ = body;
+  }
+
+  static EztDefineBlockNode create(String variableName, TemplateNode body) {
+    return new EztDefineBlockNode(variableName, body);
+  }
+
+  public String getVariableName() {
+    return variableName_;
+  }
+
+  public TemplateNode getBody() {
+    return body_;
+  }
+
+  /**
+   * Returns a copy of this block with a different body.
+   */
+  public EztDefineBlockNode withBody(TemplateNode body) {
+    return new EztDefineBlockNode(variableName_, body);
+  }
+
+  @Override
+  public void evaluate(TemplateDictionary dict, RenderContext context,
+                       TemplateOutput collector) throws TemplateException {
+    StringBuilder sb = new StringBuilder();
+    body_.evaluate(dict, context, TemplateOutput.forStringBuilder(sb));
+    context.define(symbol_, sb.toString());
+  }
+}
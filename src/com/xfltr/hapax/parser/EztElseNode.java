@@ -1,10 +1,9 @@
 package com.xfltr.hapax.parser;
 
+import com.xfltr.hapax.RenderContext;
 import com.xfltr.hapax.TemplateDictionary;
 import com.xfltr.hapax.TemplateException;
-import com.xfltr.hapax.TemplateLoaderContext;
-
-import java.io.PrintWriter;
+import com.xfltr.hapax.TemplateOutput;
 
 /**
  * Node for the [else] tag.
@@ -17,8 +16,8 @@ public class EztElseNode extends TemplateNode {
   }
 
   @Override
-  public void evaluate(TemplateDictionary dict, TemplateLoaderContext context,
-                       PrintWriter collector) throws TemplateException {
+  public void evaluate(TemplateDictionary dict, RenderContext context,
+                       TemplateOutput collector) throws TemplateException {
     // do nothing
   }
 
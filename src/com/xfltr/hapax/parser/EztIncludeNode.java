@@ -1,12 +1,13 @@
 package com.xfltr.hapax.parser;
 
 import com.xfltr.hapax.PathUtil;
+import com.xfltr.hapax.RenderContext;
+import com.xfltr.hapax.Symbol;
 import com.xfltr.hapax.Template;
 import com.xfltr.hapax.TemplateDictionary;
 import com.xfltr.hapax.TemplateException;
 import com.xfltr.hapax.TemplateLoaderContext;
-
-import java.io.PrintWriter;
+import com.xfltr.hapax.TemplateOutput;
 
 /**
  * Node for the [include] tag.
@@ -17,72 +18,110 @@ public class EztIncludeNode extends TemplateNode {
 
   private final String variableName_;
 
+  /**
+   * The variable holding the filename, or null if the filename is quoted.
+   */
+  private final Symbol symbol_;
+
   private EztIncludeNode(String s) {
     this.variableName_ = s;
+    this.symbol_ = s == null || s.startsWith("\"") ? null : Symbol.of(s);
   }
 
   public static TemplateNode parse(String s) {
     return new EztIncludeNode(s);
   }
 
+  /**
+   * Returns the quoted filename, without its quotes, or null if the filename
+   * is held by a variable.
+   */
+  public String getPath() {
+    return symbol_ == null ? variableName_.replaceAll("\"", "") : null;
+  }
+
+  /**
+   * Returns the variable holding the filename, or null if the filename is
+   * quoted.
+   */
+  public Symbol getSymbol() {
+    return symbol_;
+  }
+
+  // TODO: double no-pony hack.
+  //
+  // If we see a path that starts with "/", we load the template from the base
+  // directory given to the template loader.
+  //
+  // If we see a path that starts with "/html", treat the but-first components
+  // as paths originating at the root of the
+  // template directory rather than relative to the current template's path.
+  //
+  // In both of these cases, we ignore the path of the current template.
+
+  /**
+   * Loads the template that [include] names by include_filename, from a
+   * template loaded by loader_context.
+   */
+  public static Template load(TemplateLoaderContext loader_context,
+                              String include_filename)
+      throws TemplateException {
+    if (PathUtil.isAbsolute(include_filename)) {
+      // TODO: "/html" is an exceptional case.
+      return loader_context.getLoader().getTemplate(
+          fromRoot(include_filename));
+    }
+    // TODO: design-pattern-needed hack.  Context should know how to get this
+    // template.
+    return loader_context.getLoader().getTemplate(include_filename,
+        loader_context.getTemplateDirectory());
+  }
+
+  /**
+   * Returns the path that identifies the template loaded by {@link
+   * #load(TemplateLoaderContext, String)} on the include stack.
+   */
+  public static String searchPath(TemplateLoaderContext loader_context,
+                                  String include_filename) {
+    if (PathUtil.isAbsolute(include_filename)) {
+      return fromRoot(include_filename);
+    } else if (loader_context.getTemplateDirectory() != null) {
+      return PathUtil.join(
+          loader_context.getTemplateDirectory(), include_filename);
+    }
+    return PathUtil.join("", include_filename);
+  }
+
+  private static String fromRoot(String include_filename) {
+    return PathUtil.join("/", PathUtil.makeRelative("/html", include_filename));
+  }
+
   @Override
-  public void evaluate(TemplateDictionary dict, TemplateLoaderContext context,
-                       PrintWriter collector) throws TemplateException {
+  public void evaluate(TemplateDictionary dict, RenderContext context,
+                       TemplateOutput collector) throws TemplateException {
 
     String include_filename;
-    if (variableName_.startsWith("\"")) {
+    if (symbol_ == null) {
       // path to a file
-      include_filename = variableName_.replaceAll("\"", "");
+      include_filename = getPath();
     } else {
       // indirect reference to a variable
-      include_filename = dict.get(variableName_);
+      include_filename = context.get(dict, symbol_);
     }
 
-    // TODO: double no-pony hack.
-    //
-    // If we see a path that starts with "/", we load the template from the base
-    // directory given to the template loader.
-    //
-    // If we see a path that starts with "/html", treat the but-first components
-    // as paths originating at the root of the
-    // template directory rather than relative to the current template's path.
-    //
-    // In both of these cases, we ignore the path of the current template.
-    //
-    final Template template;
-    String search_filename;
-    if (PathUtil.isAbsolute(include_filename)) {
-      // TODO: "/html" is an exceptional case.
-      include_filename =
-          PathUtil.join("/", PathUtil.makeRelative("/html", include_filename));
-      template = context.getLoader().getTemplate(include_filename);
-      search_filename = include_filename;
-    } else {
-      // TODO: design-pattern-needed hack.  Context should know how to get this
-      // template.
-      template = context.getLoader().getTemplate(include_filename,
-                                                 context.getTemplateDirectory());
-      if (context.getTemplateDirectory() != null) {
-        search_filename =
-            PathUtil.join(context.getTemplateDirectory(), include_filename);
-      } else {
-        search_filename =
-            PathUtil.join("", include_filename);
-      }
-    }
+    final TemplateLoaderContext loader_context = context.getLoaderContext();
+    final Template template = load(loader_context, include_filename);
+    String search_filename = searchPath(loader_context, include_filename);
 
-    // Create an entry in the data dictionary for every template we've processed
-    // already.  This allows us to detect infinite loops.
-    String warning_flag = "__already__included__" + search_filename;
-    if (dict.contains(warning_flag)) {
-      throw new CyclicIncludeException(
-          "Cyclic include loop detected: " + search_filename
-          + " has been included multiple times.");
-    } else {
-      dict.put(warning_flag, "");
+    // The render context tracks the templates that are currently being
+    // included, which allows us to detect infinite loops.
+    context.enterInclude(search_filename);
+    try {
+      template.render(dict,
+          context.withLoaderContext(template.getLoaderContext()), collector);
+    } finally {
+      context.exitInclude();
     }
-
-    template.render(dict, collector);
   }
 
 }
\ No newline at end of file
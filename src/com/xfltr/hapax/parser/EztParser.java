@@ -1,10 +1,8 @@
 package com.xfltr.hapax.parser;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * A parser for EZT-style templates.  This differs from the collab.net
@@ -27,42 +25,22 @@ import java.util.regex.Pattern;
  *
  * No escaping is performed, so [format raw] is a no-op.
  *
+ * The template is scanned once, by index: text runs up to the next "[", and
+ * each tag is read char by char up to its "]".  Parsing takes time linear in
+ * the length of the template.  A "[" that does not start a well-formed tag is
+ * dropped and the scan carries on after it.
+ *
  * @author dcoker
  */
 public class EztParser implements TemplateParser {
   private static final Logger logger_ =
       Logger.getLogger(EztParser.class.getSimpleName());
 
-  private static final String TOK_LITERAL = "([^\\[]+)";
-
-  // for variable names
-  private static final String TOK_IDENT = "[a-z][a-z0-9_.-]*";
-
-  // for if-any, include, define, etc
-  private static final String TOK_DIRECTIVE = "[a-z_-]+";
-
-  // for the args list of the STMT_DIRECTIVE
-  private static final String TOK_DIRECTIVE_ARGS =
-      "((" + TOK_IDENT + ")|(\\\"[^\"]*\\\")|(" + TOK_IDENT +
-          " \\\"[^\"]*\\\"))";
-
-  // for variable [dereference]
-  private static final String STMT_VARIABLE_DEREF = "(\\[" + TOK_IDENT + "\\])";
-
-  // for [directive arg], [directive arg arg], [directive "arg" "arg"]
-  private static final String STMT_DIRECTIVE =
-      "(\\[(" + TOK_DIRECTIVE + ")\\s+" + TOK_DIRECTIVE_ARGS + "\\s*\\])";
-
-  // for [[] => "["
-  private static final String STMT_BRACKET = "(\\[\\[\\])";
-
-  // for [#comments]
-  private static final String STMT_COMMENT = "(\\[#[^\\]]*\\])";
-
-  private static final Pattern PATTERN = Pattern
-      .compile(TOK_LITERAL + "|" + STMT_BRACKET + "|" + STMT_COMMENT + "|" +
-          STMT_VARIABLE_DEREF + "|" + STMT_DIRECTIVE,
-          Pattern.MULTILINE | Pattern.CASE_INSENSITIVE);
+  /**
+   * Names that cannot be dereferenced as [variables].
+   */
+  private static final String[] RESERVED =
+      {"is", "if-any", "define", "include", "insertfile", "format"};
 
   /**
    * Private constructor
@@ -77,94 +55,231 @@ public class EztParser implements TemplateParser {
 
 
   public List<TemplateNode> parse(String input) throws TemplateParserException {
-    final List<TemplateNode> node_list = new LinkedList<TemplateNode>();
+    final List<TemplateNode> node_list = new ArrayList<TemplateNode>();
     if (input == null || input.length() == 0) {
       return node_list;
     }
 
-    final Matcher matcher = PATTERN.matcher(input);
-
-    while (matcher.find()) {
-      for (int i = 1; i <= matcher.groupCount(); i++) {
-        if (matcher.group(i) != null) {
-          switch (i) {
-            case 1: // literal string
-              node_list.add(TextNode.create(matcher.group(i)));
-              break;
-            case 2: // left bracket ([[])
-              node_list.add(TextNode.create("["));
-              break;
-            case 3: // a [# comment]
-              break;
-            case 4: // a [variable]
-              handleVariable(node_list, matcher);
-              break;
-            case 5: // some kind of directive
-              handleDirective(node_list, matcher);
-              break;
-            default:
-              break;
-          }
-        }
+    int length = input.length();
+    int pos = 0;
+    while (pos < length) {
+      int open = input.indexOf('[', pos);
+      if (open == -1) {
+        open = length;
+      }
+      if (open > pos) {
+        node_list.add(TextNode.create(input.substring(pos, open)));
       }
+      pos = open < length ? parseTag(input, open, node_list) : length;
     }
 
     return node_list;
   }
 
-  private void handleVariable(List<TemplateNode> node_list, Matcher matcher)
+  /**
+   * Parses the tag that starts with the "[" at open, adds its node (if any) to
+   * node_list, and returns the index just past its "]".  If no tag starts at
+   * open, the "[" is dropped and open + 1 is returned.
+   */
+  private int parseTag(String input, int open, List<TemplateNode> node_list)
       throws TemplateParserException {
-    String text = matcher.group(4);
+    int length = input.length();
+    int pos = open + 1;
+    if (pos == length) {
+      return pos;
+    }
+    char ch = input.charAt(pos);
+
+    // [[] => "["
+    if (ch == '[') {
+      if (input.startsWith("]", pos + 1)) {
+        node_list.add(TextNode.create("["));
+        return pos + 2;
+      }
+      return pos;
+    }
+
+    // [# comments]
+    if (ch == '#') {
+      int close = input.indexOf(']', pos);
+      return close == -1 ? pos : close + 1;
+    }
+
+    // [variable]
+    if (isLetter(ch)) {
+      int ident_end = skipIdent(input, pos);
+      if (ident_end < length && input.charAt(ident_end) == ']') {
+        handleVariable(node_list, input, open,
+            input.substring(pos, ident_end));
+        return ident_end + 1;
+      }
+    }
+
+    // [directive arg], [directive "arg"], [directive arg "arg"]
+    int directive_end = pos;
+    while (directive_end < length
+        && isDirectiveChar(input.charAt(directive_end))) {
+      directive_end++;
+    }
+    if (directive_end == pos) {
+      return pos;
+    }
+    int args = skipSpace(input, directive_end);
+    if (args == directive_end || args == length) {
+      return pos;
+    }
+    String one_parameter = null;
+    String quoted_parameter = null;
+    String two_parameters = null;
+    int end;
+    if (isLetter(input.charAt(args))) {
+      int arg_end = skipIdent(input, args);
+      end = closingBracket(input, arg_end);
+      if (end != -1) {
+        one_parameter = input.substring(args, arg_end);
+      } else if (input.startsWith(" \"", arg_end)) {
+        int quote_end = input.indexOf('"', arg_end + 2);
+        end = quote_end == -1 ? -1 : closingBracket(input, quote_end + 1);
+        if (end != -1) {
+          two_parameters = input.substring(args, quote_end + 1);
+        }
+      }
+    } else if (input.charAt(args) == '"') {
+      int quote_end = input.indexOf('"', args + 1);
+      end = quote_end == -1 ? -1 : closingBracket(input, quote_end + 1);
+      if (end != -1) {
+        quoted_parameter = input.substring(args, quote_end + 1);
+      }
+    } else {
+      end = -1;
+    }
+    if (end == -1) {
+      return pos;
+    }
+    handleDirective(node_list, input, open, input.substring(pos, directive_end),
+        one_parameter, quoted_parameter, two_parameters);
+    return end + 1;
+  }
 
+  private void handleVariable(List<TemplateNode> node_list, String input,
+                              int open, String name)
+      throws TemplateParserException {
     // Just in case the user messes up, give them a helpful error message.
-    if (text.matches("\\[(is|if-any|define|include|insertfile|format)\\]")) {
-      throw new TemplateParserException(
-          "You cannot dereference variables named after reserved words: " +
-              text);
+    for (String reserved : RESERVED) {
+      if (reserved.equals(name)) {
+        throw error(input, open,
+            "You cannot dereference variables named after reserved words: [" +
+                name + "]");
+      }
     }
 
     // Catch [end] and [else] cases.
-    if (text.equals("[end]")) {
+    if (name.equals("end")) {
       node_list.add(EztEndNode.create());
-    } else if (text.equals("[else]")) {
+    } else if (name.equals("else")) {
       node_list.add(EztElseNode.create());
     } else {
-      node_list.add(VariableNode.parse(
-          matcher.group(4).replaceAll("(^\\[)|(\\]$)", "")));
+      node_list.add(VariableNode.parse(name));
     }
   }
 
-  private void handleDirective(List<TemplateNode> node_list, Matcher matcher)
+  private void handleDirective(List<TemplateNode> node_list, String input,
+                               int open, String directive,
+                               String one_parameter, String quoted_parameter,
+                               String two_parameters)
       throws TemplateParserException {
-    final String directive = matcher.group(6);
-    final String one_parameter = matcher.group(8);
-    final String quoted_include_parameter = matcher.group(9);
-    final String two_parameters = matcher.group(10);
-
     if (directive.equals("include") || directive.equals("insertfile")) {
       if (one_parameter != null) {
         node_list.add(EztIncludeNode.parse(one_parameter));
       } else {
-        node_list.add(EztIncludeNode.parse(quoted_include_parameter));
+        node_list.add(EztIncludeNode.parse(quoted_parameter));
       }
     } else if (directive.equals("define")) {
       node_list.add(EztDefineNode.parse(one_parameter));
     } else if (directive.equals("is")) {
       if (two_parameters == null) {
-        throw new TemplateParserException("[is] requires two parameters.");
+        throw error(input, open, "[is] requires two parameters.");
       }
-      String[] tokenized = two_parameters.split("\\s+");
-      String varname = tokenized[0];
-      String value = tokenized[1].replace("\"", "");
+      int space = two_parameters.indexOf(' ');
+      String varname = two_parameters.substring(0, space);
+      String value = two_parameters.substring(space + 2,
+          two_parameters.length() - 1);
       node_list.add(EztConditionalNode.is(varname, value));
     } else if (directive.equals("if-any")) {
       if (one_parameter == null) {
-        throw new TemplateParserException("[if-any] requires one parameter.");
+        throw error(input, open, "[if-any] requires one parameter.");
       }
       node_list.add(EztConditionalNode.ifAny(one_parameter));
     } else if (directive.equals("format")) {
       // do nothing
       logger_.info("encountered a [format] directive; ignoring.");
     }
+    // Any other well-formed directive is dropped.
+  }
+
+  /**
+   * Letters start variable names and directives, in either case.
+   */
+  private static boolean isLetter(char ch) {
+    return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z');
+  }
+
+  private static boolean isDirectiveChar(char ch) {
+    return isLetter(ch) || ch == '_' || ch == '-';
+  }
+
+  /**
+   * Returns the index of the first char at or after pos that cannot be part of
+   * a variable name: letters, digits, '_', '.' and '-'.
+   */
+  private static int skipIdent(String input, int pos) {
+    while (pos < input.length()) {
+      char ch = input.charAt(pos);
+      if (isDirectiveChar(ch) || (ch >= '0' && ch <= '9') || ch == '.') {
+        pos++;
+      } else {
+        break;
+      }
+    }
+    return pos;
+  }
+
+  private static int skipSpace(String input, int pos) {
+    while (pos < input.length()) {
+      char ch = input.charAt(pos);
+      if (ch == ' ' || ch == '\t' || ch == '\n' || ch == '\u000B'
+          || ch == '\f' || ch == '\r') {
+        pos++;
+      } else {
+        break;
+      }
+    }
+    return pos;
+  }
+
+  /**
+   * Returns the index of the "]" that closes a tag after optional whitespace
+   * at pos, or -1 if there is none.
+   */
+  private static int closingBracket(String input, int pos) {
+    pos = skipSpace(input, pos);
+    return pos < input.length() && input.charAt(pos) == ']' ? pos : -1;
+  }
+
+  /**
+   * Returns an exception for the tag starting at open.  The line and column are
+   * only worked out here, so that well-formed templates never pay for them.
+   */
+  private static TemplateParserException error(String input, int open,
+                                               String message) {
+    int line = 1;
+    int line_start = 0;
+    for (int i = 0; i < open; i++) {
+      if (input.charAt(i) == '\n') {
+        line++;
+        line_start = i + 1;
+      }
+    }
+    return new TemplateParserException(message, line, open - line_start + 1);
   }
-}
\ No newline at end of file
+}
@@ -2,8 +2,7 @@ package com.xfltr.hapax.parser;
 
 import com.xfltr.hapax.*;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -14,13 +13,31 @@ import java.util.List;
 public class IncludeNode extends TemplateNode {
 
   private final String includeName;
+  private final Symbol symbol;
   private final List<Modifiers.FLAGS> modifiers;
 
   private IncludeNode(String includeName, List<Modifiers.FLAGS> modifiers) {
     this.includeName = includeName;
+    this.symbol = Symbol.of(includeName);
     this.modifiers = modifiers;
   }
 
+  public String getIncludeName() {
+    return includeName;
+  }
+
+  /**
+   * Returns the variable that holds the filename of the included template,
+   * and whose child dictionaries it is rendered with.
+   */
+  public Symbol getSymbol() {
+    return symbol;
+  }
+
+  public List<Modifiers.FLAGS> getModifiers() {
+    return modifiers;
+  }
+
   public static IncludeNode parse(String spec) {
     String split[] = spec.split(":");
     return new IncludeNode(split[0], Modifiers.parseModifiers(split));
@@ -28,44 +45,48 @@ public class IncludeNode extends TemplateNode {
 
   @Override
   public final void evaluate(TemplateDictionary dict,
-                       TemplateLoaderContext context, PrintWriter collector)
+                       RenderContext context, TemplateOutput collector)
       throws TemplateException {
 
     // The filename is stored as a standard variable.
-    String filename = dict.get(includeName);
+    String filename = context.get(dict, symbol);
     if (filename == null) {
       throw new TemplateException(
           "The template identifier for included section "
               + includeName + " is not set!");
     }
 
-    Template incl_tmpl = context.getLoader().getTemplate(filename,
-        context.getTemplateDirectory());
-    incl_tmpl.setLoaderContext(context);
+    TemplateLoaderContext loader_context = context.getLoaderContext();
+    Template incl_tmpl = loader_context.getLoader().getTemplate(filename,
+        loader_context.getTemplateDirectory());
 
     // If the included section has modifiers applied, we buffer it into a
     // string so that we can apply the modifiers.
-    PrintWriter previous_printwriter = null;
-    StringWriter sw = null;
+    TemplateOutput previous_collector = null;
+    StringBuilder sb = null;
     if (modifiers.size() > 0) {
-      previous_printwriter = collector;
-      sw = new StringWriter();
-      collector = new PrintWriter(sw);
+      previous_collector = collector;
+      sb = new StringBuilder();
+      collector = TemplateOutput.forStringBuilder(sb);
     }
 
-    List<TemplateDictionary> child_dicts = dict.getChildDicts(includeName);
-    if (child_dicts.size() == 0) {
-      incl_tmpl.render(dict, collector);
-    } else {
-      for (TemplateDictionary subdict : child_dicts) {
-        incl_tmpl.render(subdict, collector);
-      }
+    // The included template loads its own includes, as with [include].
+    RenderContext include_context =
+        context.withLoaderContext(incl_tmpl.getLoaderContext());
+    List<TemplateDictionary> child_dicts = dict.getChildDicts(symbol);
+    if (TemplateDictionary.isRows(child_dicts)) {
+      child_dicts = TemplateDictionary.openRows(child_dicts);
+    } else if (child_dicts.isEmpty()) {
+      child_dicts = Collections.singletonList(dict);
+    }
+    for (TemplateDictionary subdict : child_dicts) {
+      incl_tmpl.render(subdict, include_context, collector);
     }
 
-    if (previous_printwriter != null) {
-      String results = sw.toString();
-      collector = previous_printwriter;
-      collector.write(Modifiers.applyModifiers(results, modifiers));
+    if (previous_collector != null) {
+      String results = sb.toString();
+      collector = previous_collector;
+      Modifiers.writeModified(results, modifiers, collector);
     }
   }
 }
@@ -0,0 +1,55 @@
+package com.xfltr.hapax.parser;
+
+import com.xfltr.hapax.RenderContext;
+import com.xfltr.hapax.Template;
+import com.xfltr.hapax.TemplateDictionary;
+import com.xfltr.hapax.TemplateException;
+import com.xfltr.hapax.TemplateOutput;
+
+/**
+ * An [include] of a quoted filename that was resolved when the including
+ * template was loaded, by {@link TemplateLinker}.  It renders exactly like
+ * the {@link EztIncludeNode} it replaces, but never asks the loader for the
+ * template.
+ *
+ * @author dcoker
+ */
+public final class LinkedIncludeNode extends TemplateNode {
+  private final Template template_;
+
+  /**
+   * The path that identifies the template on the include stack, as returned
+   * by {@link EztIncludeNode#searchPath}.
+   */
+  private final String searchPath_;
+
+  private LinkedIncludeNode(Template template, String searchPath) {
+    this.template_ = template;
+    this.searchPath_ = searchPath;
+  }
+
+  public static LinkedIncludeNode create(Template template,
+                                         String searchPath) {
+    return new LinkedIncludeNode(template, searchPath);
+  }
+
+  public Template getTemplate() {
+    return template_;
+  }
+
+  public String getSearchPath() {
+    return searchPath_;
+  }
+
+  @Override
+  public void evaluate(TemplateDictionary dict, RenderContext context,
+                       TemplateOutput collector) throws TemplateException {
+    context.enterInclude(searchPath_);
+    try {
+      template_.render(dict,
+          context.withLoaderContext(template_.getLoaderContext()), collector);
+    } finally {
+      context.exitInclude();
+    }
+  }
+}
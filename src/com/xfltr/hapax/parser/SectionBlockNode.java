@@ -0,0 +1,113 @@
+package com.xfltr.hapax.parser;
+
+import com.xfltr.hapax.RenderContext;
+import com.xfltr.hapax.Symbol;
+import com.xfltr.hapax.TemplateDictionary;
+import com.xfltr.hapax.TemplateException;
+import com.xfltr.hapax.TemplateOutput;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * A compiled {{#SECTION}}...{{/SECTION}} pair.  The body between the tags is
+ * resolved once by {@link TemplateCompiler}, so rendering never has to scan
+ * for the close tag.
+ *
+ * @author dcoker
+ */
+public final class SectionBlockNode extends TemplateNode {
+  private static final Logger logger_ =
+      Logger.getLogger(SectionBlockNode.class.getSimpleName());
+
+  private final String sectionName_;
+  private final Symbol symbol_;
+  private final TemplateNode body_;
+
+  private SectionBlockNode(String sectionName, TemplateNode body) {
+    this.sectionName_ = sectionName;
+    this.symbol_ = Symbol.of(sectionName);
+    this.body_ = body;
+  }
+
+  static SectionBlockNode create(String sectionName, TemplateNode body) {
+    return new SectionBlockNode(sectionName, body);
+  }
+
+  public String getSectionName() {
+    return sectionName_;
+  }
+
+  public Symbol getSymbol() {
+    return symbol_;
+  }
+
+  public TemplateNode getBody() {
+    return body_;
+  }
+
+  /**
+   * Returns a copy of this section with a different body.
+   */
+  public SectionBlockNode withBody(TemplateNode body) {
+    return new SectionBlockNode(sectionName_, body);
+  }
+
+  /**
+   * Returns the dictionaries that the body of this section is rendered with:
+   * none if the section is hidden, the child dictionaries of the same name if
+   * the section is repeated, and otherwise the given dictionary once.
+   */
+  public List<TemplateDictionary> dictionariesFor(TemplateDictionary dict) {
+    // If this section is hidden, we don't render the body.
+    if (dict.isHiddenSection(sectionName_)) {
+      logger_.warning("Skipping section " + sectionName_ +
+          " because it is hidden");
+      return Collections.emptyList();
+    }
+
+    List<TemplateDictionary> subdicts = dict.getChildDicts(symbol_);
+
+    // A section over rows is repeated once per row, and not at all if there
+    // are none.
+    if (TemplateDictionary.isRows(subdicts)) {
+      return TemplateDictionary.openRows(subdicts);
+    }
+
+    // The presence of child dictionaries indicates that this section is
+    // repeated. If there are no child dicts of the same name, then we display
+    // only once.
+    if (subdicts.isEmpty()) {
+      return Collections.singletonList(dict);
+    }
+    return subdicts;
+  }
+
+  /**
+   * Renders the body once for each of dicts on several threads, if the render
+   * was asked to and there are enough of them.  See {@link
+   * com.xfltr.hapax.ParallelSections}.
+   *
+   * @return false, having rendered nothing, if the body should be rendered
+   * for each of dicts in order by the caller.
+   */
+  public boolean evaluateInParallel(List<TemplateDictionary> dicts,
+                                    RenderContext context,
+                                    TemplateOutput collector)
+      throws TemplateException {
+    return context.renderInParallel(body_, dicts, collector);
+  }
+
+  @Override
+  public void evaluate(TemplateDictionary dict, RenderContext context,
+                       TemplateOutput collector) throws TemplateException {
+    List<TemplateDictionary> dicts = dictionariesFor(dict);
+    if (evaluateInParallel(dicts, context, collector)) {
+      return;
+    }
+    for (TemplateDictionary subdict : dicts) {
+      body_.evaluate(subdict, context, collector);
+    }
+  }
+}
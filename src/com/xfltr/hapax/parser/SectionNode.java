@@ -1,9 +1,8 @@
 package com.xfltr.hapax.parser;
 
+import com.xfltr.hapax.RenderContext;
 import com.xfltr.hapax.TemplateDictionary;
-import com.xfltr.hapax.TemplateLoaderContext;
-
-import java.io.PrintWriter;
+import com.xfltr.hapax.TemplateOutput;
 
 /**
  * Implementation of a {{#SECTION_NODE}} and the paired {{/SECTION_NODE}}.
@@ -12,8 +11,8 @@ import java.io.PrintWriter;
  */
 public class SectionNode extends TemplateNode {
   @Override
-  public void evaluate(TemplateDictionary dict, TemplateLoaderContext context,
-                       PrintWriter collector) {
+  public void evaluate(TemplateDictionary dict, RenderContext context,
+                       TemplateOutput collector) {
     // do nothing
   }
 
@@ -0,0 +1,44 @@
+package com.xfltr.hapax.parser;
+
+import com.xfltr.hapax.RenderContext;
+import com.xfltr.hapax.TemplateDictionary;
+import com.xfltr.hapax.TemplateException;
+import com.xfltr.hapax.TemplateOutput;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An ordered run of nodes that are evaluated one after another.  This is the
+ * body of a compiled template, and the body of every block (sections,
+ * conditionals, defines) inside it.
+ *
+ * @author dcoker
+ */
+public final class SequenceNode extends TemplateNode {
+  private final TemplateNode[] nodes_;
+
+  private SequenceNode(TemplateNode[] nodes) {
+    this.nodes_ = nodes;
+  }
+
+  public static SequenceNode create(List<TemplateNode> nodes) {
+    return new SequenceNode(nodes.toArray(new TemplateNode[nodes.size()]));
+  }
+
+  /**
+   * Returns the nodes in this sequence, in evaluation order.
+   */
+  public List<TemplateNode> getNodes() {
+    return Collections.unmodifiableList(Arrays.asList(nodes_));
+  }
+
+  @Override
+  public void evaluate(TemplateDictionary dict, RenderContext context,
+                       TemplateOutput collector) throws TemplateException {
+    for (TemplateNode node : nodes_) {
+      node.evaluate(dict, context, collector);
+    }
+  }
+}
@@ -0,0 +1,142 @@
+package com.xfltr.hapax.parser;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Turns the flat list of tokens produced by a {@link TemplateParser} into a
+ * tree of nodes.  Every {{#SECTION}}, [if-any], [is] and [define] is paired
+ * with its close tag (and [else], if any) exactly once, here, so that
+ * rendering is a straight walk over the tree.
+ *
+ * Mismatched, missing and stray close tags are reported as {@link
+ * TemplateParserException}s.
+ *
+ * @author dcoker
+ */
+public final class TemplateCompiler {
+
+  private TemplateCompiler() {
+  }
+
+  /**
+   * An open block whose close tag has not been seen yet.
+   */
+  private static final class Frame {
+    private final TemplateNode opener;
+    private final List<TemplateNode> body = new ArrayList<TemplateNode>();
+    private List<TemplateNode> elseBody = null;
+
+    private Frame(TemplateNode opener) {
+      this.opener = opener;
+    }
+
+    private List<TemplateNode> current() {
+      return elseBody == null ? body : elseBody;
+    }
+  }
+
+  /**
+   * Links the tokens into a tree.
+   *
+   * @param tokens The output of {@link TemplateParser#parse(String)}.
+   *
+   * @return The root of the compiled tree.
+   */
+  public static SequenceNode compile(List<TemplateNode> tokens)
+      throws TemplateParserException {
+    final List<TemplateNode> root = new ArrayList<TemplateNode>();
+    final LinkedList<Frame> open = new LinkedList<Frame>();
+
+    for (TemplateNode token : tokens) {
+      TemplateNode block = null;
+      if (token instanceof SectionNode) {
+        SectionNode sn = (SectionNode) token;
+        if (sn.isOpenSectionTag()) {
+          open.push(new Frame(sn));
+        } else {
+          block = closeSection(open, sn);
+        }
+      } else if (token instanceof EztConditionalNode
+          || token instanceof EztDefineNode) {
+        open.push(new Frame(token));
+      } else if (token instanceof EztElseNode) {
+        handleElse(open);
+      } else if (token instanceof EztEndNode) {
+        block = closeEzt(open);
+      } else {
+        block = token;
+      }
+
+      if (block != null) {
+        (open.isEmpty() ? root : open.peek().current()).add(block);
+      }
+    }
+
+    if (!open.isEmpty()) {
+      TemplateNode opener = open.peek().opener;
+      if (opener instanceof SectionNode) {
+        throw new TemplateParserException(
+            "missing close tag for " + ((SectionNode) opener).getSectionName());
+      }
+      throw new TemplateParserException("Unable to find matching [end] node.");
+    }
+
+    return SequenceNode.create(root);
+  }
+
+  private static TemplateNode closeSection(LinkedList<Frame> open,
+                                           SectionNode close)
+      throws TemplateParserException {
+    if (open.isEmpty() || !(open.peek().opener instanceof SectionNode)) {
+      throw new TemplateParserException(
+          "unexpected close tag for " + close.getSectionName());
+    }
+    SectionNode opener = (SectionNode) open.peek().opener;
+    if (!opener.getSectionName().equals(close.getSectionName())) {
+      throw new TemplateParserException(MessageFormat.format(
+          "mismatched close tag: expecting a close tag for {0}, " +
+              "but got close tag for {1}",
+          opener.getSectionName(),
+          close.getSectionName()));
+    }
+    Frame frame = open.pop();
+    return SectionBlockNode.create(opener.getSectionName(),
+        SequenceNode.create(frame.body));
+  }
+
+  private static void handleElse(LinkedList<Frame> open)
+      throws TemplateParserException {
+    if (open.isEmpty() || !(open.peek().opener instanceof EztConditionalNode)) {
+      throw new TemplateParserException(
+          "[else] without a matching [if-any] or [is].");
+    }
+    Frame frame = open.peek();
+    if (frame.elseBody != null) {
+      throw new TemplateParserException("Duplicate [else] in conditional.");
+    }
+    frame.elseBody = new ArrayList<TemplateNode>();
+  }
+
+  private static TemplateNode closeEzt(LinkedList<Frame> open)
+      throws TemplateParserException {
+    if (open.isEmpty() || open.peek().opener instanceof SectionNode) {
+      throw new TemplateParserException(
+          "[end] without a matching [if-any], [is] or [define].");
+    }
+    Frame frame = open.pop();
+    if (frame.opener instanceof EztDefineNode) {
+      return EztDefineBlockNode.create(
+          ((EztDefineNode) frame.opener).getVariableName(),
+          SequenceNode.create(frame.body));
+    }
+    List<TemplateNode> else_body = frame.elseBody == null
+        ? new ArrayList<TemplateNode>() : frame.elseBody;
+    return EztConditionalBlockNode.create(
+        (EztConditionalNode) frame.opener,
+        SequenceNode.create(frame.body),
+        SequenceNode.create(else_body));
+  }
+}
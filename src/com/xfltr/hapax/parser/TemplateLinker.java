@@ -0,0 +1,141 @@
+package com.xfltr.hapax.parser;
+
+import com.xfltr.hapax.TemplateException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replaces the [include] tags of a tree built by {@link TemplateCompiler}
+ * that name a quoted filename, which always refer to the same template, with
+ * nodes chosen by a {@link Resolver}: typically a {@link LinkedIncludeNode},
+ * or the included template's own tree.  Includes of a filename held by a
+ * variable are left alone, since they can only be resolved while rendering.
+ *
+ * The tree is rebuilt the way {@link com.xfltr.hapax.codegen.BytecodeCompiler}
+ * rebuilds it, so a linked tree can still be compiled to bytecode.
+ *
+ * @author dcoker
+ */
+public final class TemplateLinker {
+
+  /**
+   * Chooses what to render in place of an include.
+   */
+  public interface Resolver {
+    /**
+     * Returns the node to render in place of include, or null to leave it
+     * to be resolved while rendering.  A returned {@link SequenceNode} is
+     * spliced into the sequence that held include.
+     */
+    TemplateNode resolve(EztIncludeNode include) throws TemplateException;
+  }
+
+  private TemplateLinker() {
+  }
+
+  /**
+   * Returns node with every include of a quoted filename beneath it replaced
+   * as chosen by resolver.
+   */
+  public static TemplateNode link(TemplateNode node, Resolver resolver)
+      throws TemplateException {
+    if (node instanceof SequenceNode) {
+      List<TemplateNode> nodes = new ArrayList<TemplateNode>();
+      for (TemplateNode child : ((SequenceNode) node).getNodes()) {
+        TemplateNode linked = link(child, resolver);
+        if (linked != child && linked instanceof SequenceNode) {
+          nodes.addAll(((SequenceNode) linked).getNodes());
+        } else {
+          nodes.add(linked);
+        }
+      }
+      return SequenceNode.create(nodes);
+    } else if (node instanceof SectionBlockNode) {
+      SectionBlockNode section = (SectionBlockNode) node;
+      return section.withBody(link(section.getBody(), resolver));
+    } else if (node instanceof EztConditionalBlockNode) {
+      EztConditionalBlockNode block = (EztConditionalBlockNode) node;
+      return block.withBranches(link(block.getTrueBranch(), resolver),
+          link(block.getFalseBranch(), resolver));
+    } else if (node instanceof EztDefineBlockNode) {
+      EztDefineBlockNode block = (EztDefineBlockNode) node;
+      return block.withBody(link(block.getBody(), resolver));
+    } else if (node instanceof EztIncludeNode
+        && ((EztIncludeNode) node).getPath() != null) {
+      TemplateNode linked = resolver.resolve((EztIncludeNode) node);
+      return linked != null ? linked : node;
+    }
+    return node;
+  }
+
+  /**
+   * Adds to paths the quoted filename of every include beneath node, in
+   * order, without rebuilding the tree.
+   */
+  public static void collectIncludes(TemplateNode node, List<String> paths) {
+    if (node instanceof SequenceNode) {
+      for (TemplateNode child : ((SequenceNode) node).getNodes()) {
+        collectIncludes(child, paths);
+      }
+    } else if (node instanceof SectionBlockNode) {
+      collectIncludes(((SectionBlockNode) node).getBody(), paths);
+    } else if (node instanceof EztConditionalBlockNode) {
+      EztConditionalBlockNode block = (EztConditionalBlockNode) node;
+      collectIncludes(block.getTrueBranch(), paths);
+      collectIncludes(block.getFalseBranch(), paths);
+    } else if (node instanceof EztDefineBlockNode) {
+      collectIncludes(((EztDefineBlockNode) node).getBody(), paths);
+    } else if (node instanceof EztIncludeNode
+        && ((EztIncludeNode) node).getPath() != null) {
+      paths.add(((EztIncludeNode) node).getPath());
+    }
+  }
+
+  /**
+   * Returns the number of nodes in the tree rooted at node, which is how
+   * large a template must be before it is no longer inlined.
+   */
+  public static int size(TemplateNode node) {
+    if (node instanceof SequenceNode) {
+      int size = 1;
+      for (TemplateNode child : ((SequenceNode) node).getNodes()) {
+        size += size(child);
+      }
+      return size;
+    } else if (node instanceof SectionBlockNode) {
+      return 1 + size(((SectionBlockNode) node).getBody());
+    } else if (node instanceof EztConditionalBlockNode) {
+      EztConditionalBlockNode block = (EztConditionalBlockNode) node;
+      return 1 + size(block.getTrueBranch()) + size(block.getFalseBranch());
+    } else if (node instanceof EztDefineBlockNode) {
+      return 1 + size(((EztDefineBlockNode) node).getBody());
+    }
+    return 1;
+  }
+
+  /**
+   * Returns true if nothing beneath node is resolved against the directory of
+   * the template it came from while rendering, so that the tree renders the
+   * same when it is inlined into a template in another directory.
+   */
+  public static boolean isSelfContained(TemplateNode node) {
+    if (node instanceof SequenceNode) {
+      for (TemplateNode child : ((SequenceNode) node).getNodes()) {
+        if (!isSelfContained(child)) {
+          return false;
+        }
+      }
+      return true;
+    } else if (node instanceof SectionBlockNode) {
+      return isSelfContained(((SectionBlockNode) node).getBody());
+    } else if (node instanceof EztConditionalBlockNode) {
+      EztConditionalBlockNode block = (EztConditionalBlockNode) node;
+      return isSelfContained(block.getTrueBranch())
+          && isSelfContained(block.getFalseBranch());
+    } else if (node instanceof EztDefineBlockNode) {
+      return isSelfContained(((EztDefineBlockNode) node).getBody());
+    }
+    return !(node instanceof EztIncludeNode || node instanceof IncludeNode);
+  }
+}
@@ -1,10 +1,9 @@
 package com.xfltr.hapax.parser;
 
+import com.xfltr.hapax.RenderContext;
 import com.xfltr.hapax.TemplateDictionary;
 import com.xfltr.hapax.TemplateException;
-import com.xfltr.hapax.TemplateLoaderContext;
-
-import java.io.PrintWriter;
+import com.xfltr.hapax.TemplateOutput;
 
 /**
  * All tokens in the template language are represented by instances of a
@@ -12,6 +11,6 @@ import java.io.PrintWriter;
  */
 public abstract class TemplateNode {
   public abstract void evaluate(TemplateDictionary dict,
-                                TemplateLoaderContext context,
-                                PrintWriter collector) throws TemplateException;
-}
\ No newline at end of file
+                                RenderContext context,
+                                TemplateOutput collector) throws TemplateException;
+}
\ No newline at end of file
@@ -0,0 +1,184 @@
+package com.xfltr.hapax.parser;
+
+import com.xfltr.hapax.Modifiers;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the tree built by {@link TemplateCompiler} as bytes, and reads it
+ * back, so that a template can be loaded without being parsed again.  See
+ * {@link com.xfltr.hapax.TemplateSnapshot}.
+ *
+ * Each node is a tag byte followed by its fields; blocks are followed by
+ * their bodies.  Strings are an int length followed by UTF-8.  Nodes are
+ * rebuilt through the same factories the parsers use, so a tree that is read
+ * back renders exactly like the one that was written.
+ *
+ * @author dcoker
+ */
+public final class TemplateNodeCodec {
+  private static final int SEQUENCE = 0;
+  private static final int TEXT = 1;
+  private static final int VARIABLE = 2;
+  private static final int SECTION = 3;
+  private static final int IF_ANY = 4;
+  private static final int IS = 5;
+  private static final int DEFINE = 6;
+  private static final int INCLUDE = 7;
+  private static final int EZT_INCLUDE = 8;
+
+  private TemplateNodeCodec() {
+  }
+
+  /**
+   * Writes the tree rooted at node to out.
+   *
+   * @throws IllegalArgumentException if the tree contains a node that is not
+   * produced by TemplateCompiler, such as one compiled to bytecode.
+   */
+  public static void write(TemplateNode node, DataOutputStream out)
+      throws IOException {
+    if (node instanceof SequenceNode) {
+      List<TemplateNode> nodes = ((SequenceNode) node).getNodes();
+      out.writeByte(SEQUENCE);
+      out.writeInt(nodes.size());
+      for (TemplateNode child : nodes) {
+        write(child, out);
+      }
+    } else if (node instanceof TextNode) {
+      out.writeByte(TEXT);
+      writeString(((TextNode) node).getText(), out);
+    } else if (node instanceof VariableNode) {
+      VariableNode variable = (VariableNode) node;
+      out.writeByte(VARIABLE);
+      writeString(spec(variable.getVariableName(), variable.getModifiers()),
+          out);
+    } else if (node instanceof SectionBlockNode) {
+      SectionBlockNode section = (SectionBlockNode) node;
+      out.writeByte(SECTION);
+      writeString(section.getSectionName(), out);
+      write(section.getBody(), out);
+    } else if (node instanceof EztConditionalBlockNode) {
+      EztConditionalBlockNode block = (EztConditionalBlockNode) node;
+      EztConditionalNode condition = block.getCondition();
+      if (condition.getExpected() == null) {
+        out.writeByte(IF_ANY);
+        writeString(condition.getSymbol().getName(), out);
+      } else {
+        out.writeByte(IS);
+        writeString(condition.getSymbol().getName(), out);
+        writeString(condition.getExpected(), out);
+      }
+      write(block.getTrueBranch(), out);
+      write(block.getFalseBranch(), out);
+    } else if (node instanceof EztDefineBlockNode) {
+      EztDefineBlockNode block = (EztDefineBlockNode) node;
+      out.writeByte(DEFINE);
+      writeString(block.getVariableName(), out);
+      write(block.getBody(), out);
+    } else if (node instanceof IncludeNode) {
+      IncludeNode include = (IncludeNode) node;
+      out.writeByte(INCLUDE);
+      writeString(spec(include.getIncludeName(), include.getModifiers()),
+          out);
+    } else if (node instanceof EztIncludeNode) {
+      EztIncludeNode include = (EztIncludeNode) node;
+      out.writeByte(EZT_INCLUDE);
+      writeString(include.getSymbol() == null
+          ? "\"" + include.getPath() + "\""
+          : include.getSymbol().getName(), out);
+    } else {
+      throw new IllegalArgumentException(
+          "Cannot write " + node.getClass().getName());
+    }
+  }
+
+  /**
+   * Reads a tree written by {@link #write} from in, starting at its position.
+   *
+   * @throws IllegalArgumentException if the bytes are not such a tree.
+   */
+  public static TemplateNode read(ByteBuffer in) {
+    int tag = in.get();
+    switch (tag) {
+      case SEQUENCE:
+        int count = in.getInt();
+        List<TemplateNode> nodes = new ArrayList<TemplateNode>(count);
+        for (int i = 0; i < count; i++) {
+          nodes.add(read(in));
+        }
+        return SequenceNode.create(nodes);
+      case TEXT:
+        return TextNode.create(readString(in));
+      case VARIABLE:
+        return VariableNode.parse(readString(in));
+      case SECTION:
+        String section = readString(in);
+        return SectionBlockNode.create(section, read(in));
+      case IF_ANY:
+        EztConditionalNode if_any = EztConditionalNode.ifAny(readString(in));
+        return EztConditionalBlockNode.create(if_any, read(in), read(in));
+      case IS:
+        String name = readString(in);
+        EztConditionalNode is = EztConditionalNode.is(name, readString(in));
+        return EztConditionalBlockNode.create(is, read(in), read(in));
+      case DEFINE:
+        String variable = readString(in);
+        return EztDefineBlockNode.create(variable, read(in));
+      case INCLUDE:
+        return IncludeNode.parse(readString(in));
+      case EZT_INCLUDE:
+        return EztIncludeNode.parse(readString(in));
+      default:
+        throw new IllegalArgumentException("Unknown node tag " + tag);
+    }
+  }
+
+  /**
+   * Returns the {{NAME:m}} form of a name and its modifiers, as parsed by
+   * {@link VariableNode#parse} and {@link IncludeNode#parse}.
+   */
+  private static String spec(String name, List<Modifiers.FLAGS> modifiers) {
+    StringBuilder sb = new StringBuilder(name);
+    for (Modifiers.FLAGS flag : modifiers) {
+      sb.append(':').append(flag.name());
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Writes s as an int length followed by UTF-8.
+   */
+  public static void writeString(String s, DataOutputStream out)
+      throws IOException {
+    byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(utf8.length);
+    out.write(utf8);
+  }
+
+  /**
+   * Reads a string written by {@link #writeString}.
+   */
+  public static String readString(ByteBuffer in) {
+    int length = in.getInt();
+    if (length < 0 || length > in.remaining()) {
+      throw new IllegalArgumentException("Bad string length " + length);
+    }
+    String s;
+    if (in.hasArray()) {
+      s = new String(in.array(), in.arrayOffset() + in.position(), length,
+          StandardCharsets.UTF_8);
+    } else {
+      byte[] utf8 = new byte[length];
+      in.duplicate().get(utf8);
+      s = new String(utf8, StandardCharsets.UTF_8);
+    }
+    in.position(in.position() + length);
+    return s;
+  }
+}
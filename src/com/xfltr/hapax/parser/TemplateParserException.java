@@ -8,7 +8,36 @@ import com.xfltr.hapax.TemplateException;
  * @author dcoker
  */
 public class TemplateParserException extends TemplateException {
+  private final int line_;
+  private final int column_;
+
   public TemplateParserException(String details) {
     super(details);
+    this.line_ = 0;
+    this.column_ = 0;
+  }
+
+  /**
+   * Creates an exception for an error at the given position in the template.
+   * The position is appended to the message.
+   */
+  public TemplateParserException(String details, int line, int column) {
+    super(details + " (line " + line + ", column " + column + ")");
+    this.line_ = line;
+    this.column_ = column;
+  }
+
+  /**
+   * Returns the 1-based line of the error, or 0 if it is not known.
+   */
+  public int getLine() {
+    return line_;
+  }
+
+  /**
+   * Returns the 1-based column of the error, or 0 if it is not known.
+   */
+  public int getColumn() {
+    return column_;
   }
 }
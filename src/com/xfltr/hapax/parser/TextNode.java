@@ -1,18 +1,22 @@
 package com.xfltr.hapax.parser;
 
+import com.xfltr.hapax.RenderContext;
 import com.xfltr.hapax.TemplateDictionary;
-import com.xfltr.hapax.TemplateLoaderContext;
+import com.xfltr.hapax.TemplateException;
+import com.xfltr.hapax.TemplateOutput;
 
-import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 
 /**
- * Represents a literal string.
+ * Represents a literal string.  The text is encoded as UTF-8 once, when the
+ * node is created, so that rendering to bytes only has to copy it.
  *
  * @author dcoker
  */
 public class TextNode extends TemplateNode {
 
   private final String text;
+  private final byte[] utf8;
 
   public static TextNode create(String t) {
     return new TextNode(t);
@@ -20,11 +24,16 @@ public class TextNode extends TemplateNode {
 
   private TextNode(String text) {
     this.text = text;
+    this.utf8 = text.getBytes(StandardCharsets.UTF_8);
+  }
+
+  public String getText() {
+    return text;
   }
 
   @Override
-  public void evaluate(TemplateDictionary dict, TemplateLoaderContext context,
-                       PrintWriter collector) {
-    collector.write(text);
+  public void evaluate(TemplateDictionary dict, RenderContext context,
+                       TemplateOutput collector) throws TemplateException {
+    collector.writeText(text, utf8);
   }
 }
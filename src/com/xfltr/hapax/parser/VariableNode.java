@@ -1,10 +1,12 @@
 package com.xfltr.hapax.parser;
 
 import com.xfltr.hapax.Modifiers;
+import com.xfltr.hapax.RenderContext;
+import com.xfltr.hapax.Symbol;
 import com.xfltr.hapax.TemplateDictionary;
-import com.xfltr.hapax.TemplateLoaderContext;
+import com.xfltr.hapax.TemplateException;
+import com.xfltr.hapax.TemplateOutput;
 
-import java.io.PrintWriter;
 import java.util.List;
 
 /**
@@ -19,24 +21,37 @@ import java.util.List;
 public class VariableNode extends TemplateNode {
   private final String variable;
 
+  private final Symbol symbol;
+
   private final List<Modifiers.FLAGS> modifiers;
 
   private VariableNode(String variable, List<Modifiers.FLAGS> modifiers) {
     this.variable = variable;
+    this.symbol = Symbol.of(variable);
     this.modifiers = modifiers;
   }
 
+  public String getVariableName() {
+    return variable;
+  }
+
+  public Symbol getSymbol() {
+    return symbol;
+  }
+
+  public List<Modifiers.FLAGS> getModifiers() {
+    return modifiers;
+  }
+
   @Override
-  public void evaluate(TemplateDictionary dict, TemplateLoaderContext context,
-                       PrintWriter collector) {
-    String t = dict.get(variable);
-    if (!dict.contains(variable)) {
+  public void evaluate(TemplateDictionary dict, RenderContext context,
+                       TemplateOutput collector) throws TemplateException {
+    Object value = context.lookupValue(dict, symbol);
+    if (value == null) {
       // Variable is not in the dictionary; default to empty string.
-      t = "";
-    } else {
-      t = Modifiers.applyModifiers(t, modifiers);
+      return;
     }
-    collector.write(t);
+    Modifiers.writeValue(value, modifiers, collector);
   }
 
   public static VariableNode parse(String spec) {
@@ -3,6 +3,20 @@ package com.xfltr.hapax;
 import com.xfltr.hapax.parser.TemplateParserException;
 import junit.framework.TestCase;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
 /**
  * Unit test for the {@link Template} class when used with the {@link
  * com.xfltr.hapax.parser.CTemplateParser}.
@@ -111,7 +125,7 @@ public class CTemplateTest extends TestCase {
     mock.put("variable.xtm", "Hello {{WORLD}}");
 
     Template t = Template.parse("{{>TEXT}}");
-    t.setLoader(mock);
+    t = t.withLoader(mock);
     TemplateDictionary td = TemplateDictionary.create();
     td.put("TEXT", "text.xtm");
     assertEquals("Plain Text", t.renderToString(td));
@@ -129,7 +143,7 @@ public class CTemplateTest extends TestCase {
     MockTemplateLoader mock = new MockTemplateLoader();
     mock.put("test/b.xtm", "b");
     Template t = Template.parse("a{{>B}}cdefg");
-    t.setLoader(mock);
+    t = t.withLoader(mock);
     TemplateDictionary td = TemplateDictionary.create();
     td.put("B", "test/b.xtm");
     assertEquals("abcdefg", t.renderToString(td));
@@ -150,7 +164,7 @@ public class CTemplateTest extends TestCase {
     mock.put("nested.xtm", "w00t");
     mock.put("incl.xtm", "Hello {{WORLD}} {{>NESTED}}");
     Template t = Template.parse("{{>INCL}}");
-    t.setLoader(mock);
+    t = t.withLoader(mock);
     TemplateDictionary td = TemplateDictionary.create();
     td.put("INCL", "incl.xtm");
     td.put("WORLD", "mars");
@@ -175,7 +189,7 @@ public class CTemplateTest extends TestCase {
     TemplateDictionary td = TemplateDictionary.create();
     td.put("INCL", "incl.xtm");
     Template t = Template.parse("{{>INCL:h}}");
-    t.setLoader(loader);
+    t = t.withLoader(loader);
     assertEquals("&amp; on &amp; on", t.renderToString(td));
   }
 
@@ -185,17 +199,216 @@ public class CTemplateTest extends TestCase {
     TemplateDictionary td = TemplateDictionary.create();
     td.put("INCL", "incl.xtm");
     Template t = Template.parse("{{>INCL:h:b}}");
-    t.setLoader(loader);
+    t = t.withLoader(loader);
     assertEquals("&amp; on<br/>&amp; on", t.renderToString(td));
   }
 
   public void testMissingCloseTagThrowsException() {
-    assertRenderingThrowsException("{{#X}}");
+    assertParsingThrowsException("{{#X}}");
   }
 
   public void testMismatchedTagThrowsException() {
-    assertRenderingThrowsException("{{#X}}{{/Y}}");
-    assertRenderingThrowsException("{{#X}}{{#P}}{{/P}}{{/Y}}");
+    assertParsingThrowsException("{{#X}}{{/Y}}");
+    assertParsingThrowsException("{{#X}}{{#P}}{{/P}}{{/Y}}");
+    assertParsingThrowsException("{{#X}}{{#P}}{{/X}}{{/P}}");
+  }
+
+  public void testStrayCloseTagThrowsException() {
+    assertParsingThrowsException("{{/X}}");
+    assertParsingThrowsException("{{#X}}{{/X}}{{/X}}");
+  }
+
+  public void testNestedSectionsRenderTheirOwnBodies()
+      throws TemplateException {
+    Template tmpl = Template.parse("{{#A}}a{{#B}}b{{/B}}{{#C}}c{{/C}}{{/A}}");
+    td.showSection("A");
+    assertEquals("a", tmpl.renderToString(td));
+    TemplateDictionary a = td.addChildDict("A");
+    a.showSection("B");
+    a.showSection("C");
+    assertEquals("abc", tmpl.renderToString(td));
+  }
+
+  public void testTypedValuesAreFormattedWhenRendered()
+      throws TemplateException {
+    StringBuilder fragment = new StringBuilder("<b>");
+    td.put("LONG", -9007199254740993L);
+    td.put("DOUBLE", 0.25);
+    td.put("FRAGMENT", fragment);
+    td.putLazy("LAZY", new Supplier<Object>() {
+      public Object get() {
+        return 42;
+      }
+    });
+    fragment.append("bold</b>");
+    Template tmpl = Template.parse(
+        "{{LONG}} {{LONG:h}} {{DOUBLE}} {{FRAGMENT}} {{FRAGMENT:h}} {{LAZY}}");
+    assertEquals("-9007199254740993 &#45;9007199254740993 0.25 <b>bold</b> "
+        + "&#60;b&#62;bold&#60;&#47;b&#62; 42", tmpl.renderToString(td));
+    assertEquals("0.25", td.get("DOUBLE"));
+    assertEquals("42", td.get("LAZY"));
+  }
+
+  public void testLazyValuesInHiddenSectionsAreNeverComputed()
+      throws TemplateException {
+    final int[] calls = new int[1];
+    Supplier<String> expensive = new Supplier<String>() {
+      public String get() {
+        calls[0]++;
+        return "computed";
+      }
+    };
+    td.addChildDict("HIDDEN").putLazy("V", expensive);
+    td.addChildDictAndShowSection("SHOWN").putLazy("V", expensive);
+    Template tmpl = Template.parse("{{#HIDDEN}}{{V}}{{/HIDDEN}}"
+        + "{{#SHOWN}}{{V}}{{/SHOWN}}");
+    assertEquals("computed", tmpl.renderToString(td));
+    assertEquals(1, calls[0]);
+  }
+
+  public void testSectionRowsStreamFromIterator() throws TemplateException {
+    final int rows = 100000;
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final int[] written_before_last_row = new int[1];
+    td.put("UNIT", "kg");
+    td.showSectionForEach("ROW", new Iterator<Map<String, Object>>() {
+      private int next_ = 0;
+
+      public boolean hasNext() {
+        return next_ < rows;
+      }
+
+      public Map<String, Object> next() {
+        if (next_ == rows - 1) {
+          written_before_last_row[0] = out.size();
+        }
+        return Collections.<String, Object>singletonMap("WEIGHT", next_++);
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    });
+    Template tmpl = Template.parse("{{#ROW}}{{WEIGHT}}{{UNIT}}\n{{/ROW}}");
+    tmpl.render(td, out);
+
+    String output = new String(out.toByteArray(), StandardCharsets.UTF_8);
+    assertTrue(output.startsWith("0kg\n1kg\n"));
+    assertTrue(output.endsWith("\n99999kg\n"));
+    // Earlier rows had already been written out before the last was read.
+    assertTrue(written_before_last_row[0] > output.length() / 2);
+
+    try {
+      tmpl.render(td, new ByteArrayOutputStream());
+      fail("rows from an Iterator should only render once");
+    } catch (IllegalStateException e) {
+      // pass
+    }
+  }
+
+  public void testSectionRowsFromIterable() throws TemplateException {
+    td.showSectionForEach("NAME", Arrays.asList("a", "b", "c"));
+    Template tmpl = Template.parse("{{#NAME}}<{{NAME}}>{{/NAME}}");
+    assertEquals("<a><b><c>", tmpl.renderToString(td));
+    assertEquals("<a><b><c>", tmpl.renderToString(td));
+  }
+
+  public void testSectionsOverNoRowsRenderNothing() throws TemplateException {
+    Template tmpl = Template.parse("[{{#ROWS}}<{{NAME}}>{{/ROWS}}]");
+    td.showSectionForEach("ROWS", Collections.emptyIterator());
+    assertEquals("[]", tmpl.renderToString(td));
+    td.showSectionForEach("ROWS", new CountingIterable());
+    assertEquals("[]", tmpl.renderToString(td));
+    td.showSectionForEach("ROWS", Collections.emptyList());
+    assertEquals("[]", tmpl.renderToString(td));
+  }
+
+  public void testIterableRowsAreIteratedOncePerRender()
+      throws TemplateException {
+    CountingIterable rows = new CountingIterable("a", "b");
+    td.showSectionForEach("NAME", rows);
+    Template tmpl = Template.parse("{{#NAME}}<{{NAME}}>{{/NAME}}");
+    assertEquals("<a><b>", tmpl.renderToString(td));
+    assertEquals(1, rows.iterators);
+    assertEquals("<a><b>", tmpl.renderToString(td));
+    assertEquals(2, rows.iterators);
+
+    CountingIterable property = new CountingIterable("c");
+    TemplateDictionary dict = TemplateDictionary.forObject(
+        Collections.<String, Object>singletonMap("NAME", property));
+    assertEquals("<c>", tmpl.renderToString(dict));
+    assertEquals(1, property.iterators);
+  }
+
+  public void testRowsAreReadWhenRenderedNotWhenChecked()
+      throws TemplateException {
+    final List<String> rows = new ArrayList<String>(Arrays.asList("a"));
+    td.showSectionForEach("NAME", new Iterable<String>() {
+      public Iterator<String> iterator() {
+        return new ArrayList<String>(rows).iterator();
+      }
+    });
+    assertFalse(td.getChildDicts("NAME").isEmpty());
+    rows.add("b");
+    assertEquals(2, td.getChildDicts("NAME").size());
+    Template tmpl = Template.parse("{{#NAME}}<{{NAME}}>{{/NAME}}");
+    assertEquals("<a><b>", tmpl.renderToString(td));
+  }
+
+  public void testConcurrentRendersOpenIterableRowsForThemselves()
+      throws Exception {
+    String[] rows = new String[100];
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < rows.length; i++) {
+      rows[i] = Integer.toString(i);
+      expected.append('<').append(i).append('>');
+    }
+    td.showSectionForEach("NAME", new CountingIterable(rows));
+    assertFalse(td.getChildDicts("NAME").isEmpty());
+    final Template tmpl = Template.parse("{{#NAME}}<{{NAME}}>{{/NAME}}");
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<String>> renders = new ArrayList<Future<String>>();
+      for (int i = 0; i < 200; i++) {
+        renders.add(executor.submit(new Callable<String>() {
+          public String call() throws TemplateException {
+            return tmpl.renderToString(td);
+          }
+        }));
+      }
+      for (Future<String> render : renders) {
+        assertEquals(expected.toString(), render.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * An Iterable that is not a Collection, like the results of a query, and
+   * counts how often it is iterated.
+   */
+  private static final class CountingIterable implements Iterable<String> {
+    private final String[] rows_;
+    private int iterators = 0;
+
+    private CountingIterable(String... rows) {
+      this.rows_ = rows;
+    }
+
+    public Iterator<String> iterator() {
+      iterators++;
+      return Arrays.asList(rows_).iterator();
+    }
+  }
+
+  private void assertParsingThrowsException(String t) {
+    try {
+      Template.parse(t);
+      fail("Parsing invalid template did not throw an exception: " + t);
+    } catch (TemplateParserException e) {
+      // pass
+    }
   }
 
   private void assertRenderingThrowsException(String t) {
@@ -0,0 +1,149 @@
+package com.xfltr.hapax;
+
+import com.xfltr.hapax.parser.CTemplateParser;
+import com.xfltr.hapax.parser.EztParser;
+import com.xfltr.hapax.parser.TemplateNode;
+import com.xfltr.hapax.parser.TemplateParser;
+import com.xfltr.hapax.parser.TemplateParserException;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Unit test for {@link ClasspathTemplateLoader}.
+ *
+ * @author dcoker
+ */
+public class ClasspathTemplateLoaderTest extends TestCase {
+  private File jar;
+
+  @Override
+  protected void setUp() throws Exception {
+    jar = File.createTempFile("hapax", ".jar");
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+    try {
+      out.putNextEntry(new ZipEntry("templates/"));
+      add(out, "templates/page.tpl", "<{{>ROW}}>");
+      add(out, "templates/row.tpl", "[{{N}}]");
+      add(out, "templates/mail/row.tpl", "({{N}})");
+      add(out, "templates/mail/page.tpl", "<{{>ROW}}>");
+      add(out, "templates/mail/page.ezt",
+          "[include \"mail/row.ezt\"][include \"/top.ezt\"]");
+      add(out, "templates/mail/row.ezt", "row ");
+      add(out, "templates/top.ezt", "top");
+      add(out, "other/page.tpl", "other");
+    } finally {
+      out.close();
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    jar.delete();
+  }
+
+  private static void add(ZipOutputStream out, String name, String contents)
+      throws IOException {
+    out.putNextEntry(new ZipEntry(name));
+    out.write(contents.getBytes(StandardCharsets.UTF_8));
+    out.closeEntry();
+  }
+
+  private static TemplateDictionary rows() {
+    TemplateDictionary dict = TemplateDictionary.create();
+    dict.put("ROW", "row.tpl");
+    dict.put("N", 1);
+    return dict;
+  }
+
+  public void testArchive() throws Exception {
+    CountingParser parser = new CountingParser();
+    ClasspathTemplateLoader loader = ClasspathTemplateLoader
+        .forArchive(jar.toPath(), "templates").parser(parser).build();
+    try {
+      assertEquals(Arrays.asList("mail/page.ezt", "mail/page.tpl",
+          "mail/row.ezt", "mail/row.tpl", "page.tpl", "row.tpl", "top.ezt"),
+          Arrays.asList(loader.getTemplateNames().toArray()));
+      assertEquals("<[1]>", loader.getTemplate("page.tpl")
+          .renderToString(rows()));
+      // Includes are resolved against the root, as TemplateCache does.
+      assertEquals("<[1]>", loader.getTemplate("/mail/page.tpl")
+          .renderToString(rows()));
+      assertSame(loader.getTemplate("page.tpl"),
+          loader.getTemplate("page.tpl"));
+      assertEquals(3, parser.parses.get());
+      try {
+        loader.getTemplate("missing.tpl");
+        fail("loading a missing template should throw");
+      } catch (TemplateException e) {
+        // pass
+      }
+    } finally {
+      loader.close();
+    }
+  }
+
+  public void testClasspathJar() throws Exception {
+    URLClassLoader class_loader = new URLClassLoader(
+        new URL[] {jar.toURI().toURL()}, null);
+    ClasspathTemplateLoader loader = ClasspathTemplateLoader
+        .forClasspath(class_loader, "templates").parser(EztParser.create())
+        .compileToBytecode(true).build();
+    try {
+      assertEquals("row top", loader.getTemplate("mail/page.ezt")
+          .renderToString(TemplateDictionary.create()));
+    } finally {
+      loader.close();
+      class_loader.close();
+    }
+  }
+
+  public void testClasspathDirectory() throws Exception {
+    File dir = File.createTempFile("hapax", "");
+    assertTrue(dir.delete());
+    File templates = new File(dir, "templates");
+    assertTrue(templates.mkdirs());
+    FileOutputStream out = new FileOutputStream(new File(templates, "a.tpl"));
+    try {
+      out.write("a{{N}}".getBytes(StandardCharsets.UTF_8));
+    } finally {
+      out.close();
+    }
+    URLClassLoader class_loader = new URLClassLoader(
+        new URL[] {dir.toURI().toURL()}, null);
+    try {
+      ClasspathTemplateLoader loader = ClasspathTemplateLoader
+          .forClasspath(class_loader, "/templates/").build();
+      assertEquals("a1", loader.getTemplate("a.tpl").renderToString(rows()));
+    } finally {
+      class_loader.close();
+      new File(templates, "a.tpl").delete();
+      templates.delete();
+      dir.delete();
+    }
+  }
+
+  /**
+   * A CTemplateParser that counts how often it is used.
+   */
+  private static final class CountingParser implements TemplateParser {
+    private final TemplateParser delegate = CTemplateParser.create();
+    private final AtomicInteger parses = new AtomicInteger();
+
+    public List<TemplateNode> parse(String template)
+        throws TemplateParserException {
+      parses.incrementAndGet();
+      return delegate.parse(template);
+    }
+  }
+}
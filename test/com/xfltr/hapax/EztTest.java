@@ -23,6 +23,7 @@ public class EztTest extends TestCase {
       {"[is title \"Default\"]Issue[end]", "Issue"},
       {"[define title][end][is title \"No title\"]Issue[end]", ""},
       {"[define title]Issue[end][is title \"Issue\"]Issue[end]", "Issue"},
+      {"[define title]No title[end][is title \"No title\"]Issue[end]", "Issue"},
       {"[if-any title]Issue[end]", "Issue"},
       {"[if-any title]Issue[else]No issue[end]", "Issue"},
       {"[define title][end][if-any title]Issue[end]", ""},
@@ -36,14 +37,15 @@ public class EztTest extends TestCase {
        "x"},
   };
 
-  // The next two static variables are lists of templates that should throw
-  // exceptions during parse or eval time.  Both sets should be caught during
-  // parsing stage, but we are using a regex parser so it is more work to do
-  // that.
-
-  private static String[] EVAL_FAILURES = {
+  // Templates with unbalanced blocks.  These are caught when the template is
+  // compiled, before it is ever rendered.
+  private static String[] COMPILE_FAILURES = {
       "[define X]",
       "[if-any X]",
+      "[end]",
+      "[else]",
+      "[define X][else][end]",
+      "[if-any X]a[else]b[else]c[end]",
   };
 
   @Override
@@ -62,15 +64,13 @@ public class EztTest extends TestCase {
     }
   }
 
-  public void testEvalFailures() throws TemplateParserException {
-    for (String template : EVAL_FAILURES) {
-      TemplateDictionary dict = TemplateDictionary.create();
-      Template t = parseEzt(template);
+  public void testCompileFailures() {
+    for (String template : COMPILE_FAILURES) {
       try {
-        t.renderToString(dict);
+        parseEzt(template);
         fail("Template '" + template +
-             "' should have thrown TemplateException.");
-      } catch (TemplateException e) {
+             "' should have thrown TemplateParserException.");
+      } catch (TemplateParserException e) {
         // pass
       }
     }
@@ -93,13 +93,11 @@ public class EztTest extends TestCase {
                  parse(EztParser.create(), template).renderToString(td));
   }
 
-  public void testIfAnyMissingEndThrowsException()
-      throws TemplateParserException {
-    Template t = parseEzt("[if-any x]X");
+  public void testIfAnyMissingEndThrowsException() {
     try {
-      t.renderToString(dict_);
+      parseEzt("[if-any x]X");
       fail("should have thrown exception");
-    } catch (TemplateException e) {
+    } catch (TemplateParserException e) {
       // pass
     }
   }
@@ -114,16 +112,22 @@ public class EztTest extends TestCase {
     }
   }
 
-  public void testDefineMissingEndThrowsException() throws TemplateException {
-    Template tmpl = parseEzt("[define x]X");
+  public void testDefineMissingEndThrowsException() {
     try {
-      tmpl.renderToString(dict_);
+      parseEzt("[define x]X");
       fail("should have thrown exception");
-    } catch (TemplateException e) {
+    } catch (TemplateParserException e) {
       // pass
     }
   }
 
+  public void testDefineNestedInConditional() throws TemplateException {
+    dict_.put("x", "1");
+    assertEquals("in",
+                 parseEzt("[if-any x][define y]in[end][y][else]out[end]")
+                     .renderToString(dict_));
+  }
+
   public void testIncludesWithLiteralFilename() throws TemplateException {
     MockTemplateLoader loader = new MockTemplateLoader(EztParser.create());
     loader.put("x.ezt", "hello");
@@ -181,7 +185,24 @@ public class EztTest extends TestCase {
     assertEquals("Y", t2.renderToString(TemplateDictionary.create()));
   }
 
+  public void testDefinesDoNotLeakIntoDictionary() throws TemplateException {
+    Template t = parseEzt("[define x]X[end][x]");
+    assertEquals("X", t.renderToString(dict_));
+    assertFalse(dict_.contains("x"));
+    assertEquals("[x]", parseEzt("[if-any x]fail[else][[]x][end]")
+        .renderToString(dict_));
+  }
+
+  public void testSameIncludeTwiceIsNotCyclic() throws TemplateException {
+    MockTemplateLoader loader = new MockTemplateLoader(EztParser.create());
+    loader.put("x.ezt", "x");
+    loader.put("parent.ezt", "[include \"x.ezt\"][include \"x.ezt\"]");
+    Template parent = loader.getTemplate("parent.ezt");
+    assertEquals("xx", parent.renderToString(dict_));
+    assertEquals("xx", parent.renderToString(dict_));
+  }
+
   private Template parseEzt(String template) throws TemplateParserException {
     return Template.parse(EztParser.create(), template);
   }
-}
\ No newline at end of file
+}
\ No newline at end of file
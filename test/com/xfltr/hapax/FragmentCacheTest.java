@@ -0,0 +1,255 @@
+package com.xfltr.hapax;
+
+import com.xfltr.hapax.parser.EztParser;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit test for {@link FragmentCache}.
+ *
+ * @author dcoker
+ */
+public class FragmentCacheTest extends TestCase {
+
+  /**
+   * Returns the same Template for a name every time, as TemplateCache does.
+   */
+  private static final class FixedLoader implements TemplateLoader {
+    private final Map<String, Template> templates_ =
+        new HashMap<String, Template>();
+
+    void put(String name, Template template) {
+      templates_.put(name, template.withLoader(this));
+    }
+
+    public Template getTemplate(String filename) {
+      return templates_.get(filename);
+    }
+
+    public Template getTemplate(String filename, String templateDirectory) {
+      return getTemplate(filename);
+    }
+  }
+
+  private static TemplateDictionary rows(String... titles) {
+    TemplateDictionary dict = TemplateDictionary.create();
+    dict.put("HEADER", "header");
+    dict.showSection("ROW");
+    for (String title : titles) {
+      dict.addChildDict("ROW").put("TITLE", title);
+    }
+    return dict;
+  }
+
+  public void testIncludesWithTheSameValuesAreCopied()
+      throws TemplateException {
+    FixedLoader loader = new FixedLoader();
+    loader.put("header", Template.parse("<h1>{{TITLE:h}}</h1>"));
+    Template page = Template.parse("{{#ROW}}{{>HEADER}}{{/ROW}}")
+        .withLoader(loader);
+    FragmentCache fragments = FragmentCache.create();
+    TemplateDictionary dict = rows("a", "b&c", "a", "a", "b&c");
+
+    String expected = "<h1>a</h1><h1>b&amp;c</h1><h1>a</h1><h1>a</h1>"
+        + "<h1>b&amp;c</h1>";
+    assertEquals(expected, page.renderToString(dict));
+    assertEquals(expected,
+        page.withFragmentCache(fragments).renderToString(dict));
+    FragmentCacheStats stats = fragments.stats();
+    assertEquals(3, stats.getHitCount());
+    assertEquals(2, stats.getMissCount());
+    assertEquals(0.6, stats.getHitRate(), 1e-9);
+    assertEquals(2, stats.getSize());
+
+    fragments.invalidate(loader.getTemplate("header"));
+    assertEquals(0, fragments.stats().getSize());
+  }
+
+  public void testEztConditionsArePartOfTheKey() throws TemplateException {
+    FixedLoader loader = new FixedLoader();
+    loader.put("nav", Template.parse(EztParser.create(),
+        "[if-any user]Hi [user][else]Log in[end]|[is page \"home\"]*[end]"));
+    Template page = Template.parse(EztParser.create(), "[include \"nav\"]")
+        .withLoader(loader).withFragmentCache(FragmentCache.create());
+
+    TemplateDictionary dict = TemplateDictionary.create();
+    assertEquals("Log in|", page.renderToString(dict));
+    dict.put("PAGE", "home");
+    assertEquals("Log in|*", page.renderToString(dict));
+    dict.put("USER", "ada");
+    assertEquals("Hi ada|*", page.renderToString(dict));
+    assertEquals("Hi ada|*", page.renderToString(dict));
+  }
+
+  public void testSectionsArePartOfTheKey() throws TemplateException {
+    FixedLoader loader = new FixedLoader();
+    loader.put("nav", Template.parse(
+        "{{TITLE}}:{{#S}}{{TITLE}}{{/S}}{{#ITEM}}[{{NAME}}]{{/ITEM}}"));
+    FragmentCache fragments = FragmentCache.create();
+    Template page = Template.parse("{{#ROW}}{{>HEADER}}|{{/ROW}}")
+        .withLoader(loader).withFragmentCache(fragments);
+    TemplateDictionary dict = rows("a", "a", "a", "a", "a", "a");
+    List<TemplateDictionary> rows = dict.getChildDicts("ROW");
+    for (TemplateDictionary row : rows) {
+      row.put("HEADER", "nav");
+    }
+    rows.get(1).showSection("S");
+    rows.get(2).addChildDictAndShowSection("ITEM").put("NAME", "x");
+    rows.get(3).addChildDictAndShowSection("ITEM").put("NAME", "x");
+    rows.get(3).addChildDictAndShowSection("ITEM").put("NAME", "y");
+    rows.get(4).addChildDictAndShowSection("ITEM").put("NAME", "x");
+    rows.get(4).addChildDictAndShowSection("ITEM").put("NAME", "y");
+    rows.get(5).addChildDictAndShowSection("ITEM").put("NAME", "xy");
+
+    String expected = "a:|a:a|a:[x]|a:[x][y]|a:[x][y]|a:[xy]|";
+    assertEquals(expected, page.renderToString(dict));
+    assertEquals(1, fragments.stats().getHitCount());
+    assertEquals(5, fragments.stats().getMissCount());
+    assertEquals(expected, page.renderToString(dict));
+    assertEquals(7, fragments.stats().getHitCount());
+  }
+
+  public void testTemplatesWithIncludesAreNotCached()
+      throws TemplateException {
+    FixedLoader loader = new FixedLoader();
+    loader.put("title", Template.parse("{{TITLE}}"));
+    loader.put("header", Template.parse("<h1>{{>INNER}}</h1>"));
+    FragmentCache fragments = FragmentCache.create();
+    Template page = Template.parse("{{#ROW}}{{>HEADER}}{{/ROW}}")
+        .withLoader(loader).withFragmentCache(fragments);
+    TemplateDictionary dict = rows("a", "a");
+    for (TemplateDictionary row : dict.getChildDicts("ROW")) {
+      row.put("INNER", "title");
+    }
+    assertEquals("<h1>a</h1><h1>a</h1>", page.renderToString(dict));
+    assertEquals(2, fragments.stats().getUncacheableCount());
+    assertEquals(1, fragments.stats().getHitCount());
+    assertEquals(1, fragments.stats().getSize());
+  }
+
+  public void testSectionsOverRowsAreNotCached() throws TemplateException {
+    FixedLoader loader = new FixedLoader();
+    loader.put("list", Template.parse("{{#ITEM}}{{NAME}}{{/ITEM}}"));
+    FragmentCache fragments = FragmentCache.create();
+    Template page = Template.parse("{{>LIST}}{{>LIST}}")
+        .withLoader(loader).withFragmentCache(fragments);
+    TemplateDictionary dict = TemplateDictionary.create();
+    dict.put("LIST", "list");
+    List<Map<String, String>> items = new ArrayList<Map<String, String>>();
+    items.add(Collections.singletonMap("NAME", "x"));
+    items.add(Collections.singletonMap("NAME", "y"));
+    dict.showSectionForEach("ITEM", items);
+    assertEquals("xyxy", page.renderToString(dict));
+    assertEquals(2, fragments.stats().getUncacheableCount());
+    assertEquals(0, fragments.stats().getSize());
+  }
+
+  public void testLeastRecentlyUsedFragmentsAreEvicted()
+      throws TemplateException {
+    FixedLoader loader = new FixedLoader();
+    loader.put("header", Template.parse("{{TITLE}}"));
+    FragmentCache fragments = FragmentCache.builder().maximumSize(10).build();
+    Template page = Template.parse("{{#ROW}}{{>HEADER}}{{/ROW}}")
+        .withLoader(loader).withFragmentCache(fragments);
+    String[] titles = new String[100];
+    for (int i = 0; i < titles.length; i++) {
+      titles[i] = Integer.toString(i);
+    }
+    page.renderToString(rows(titles));
+    assertTrue(fragments.stats().getSize() <= 10);
+    assertTrue(fragments.stats().getEvictionCount() >= 90);
+    assertEquals("99", page.renderToString(rows("99")));
+    assertEquals(1, fragments.stats().getHitCount());
+  }
+
+  public void testFragmentsExpire() throws Exception {
+    FixedLoader loader = new FixedLoader();
+    loader.put("header", Template.parse("{{TITLE}}"));
+    FragmentCache fragments =
+        FragmentCache.builder().expireAfterWrite(1).build();
+    Template page = Template.parse("{{#ROW}}{{>HEADER}}{{/ROW}}")
+        .withLoader(loader).withFragmentCache(fragments);
+    page.renderToString(rows("a"));
+    Thread.sleep(10);
+    assertEquals("a", page.renderToString(rows("a")));
+    assertEquals(0, fragments.stats().getHitCount());
+    assertEquals(1, fragments.stats().getExpirationCount());
+  }
+
+  public void testReloadedTemplatesAreRenderedAgain() throws Exception {
+    File dir = File.createTempFile("hapax", "");
+    assertTrue(dir.delete());
+    assertTrue(dir.mkdir());
+    File file = new File(dir, "header.tpl");
+    try {
+      write(file, "one {{TITLE}}");
+      TemplateCache cache = TemplateCache.builder(dir.getPath())
+          .compileToBytecode(true).build();
+      FragmentCache fragments = FragmentCache.create();
+      Template page = Template.parse("{{>INC}}").withLoader(cache)
+          .withFragmentCache(fragments);
+      TemplateDictionary dict = TemplateDictionary.create();
+      dict.put("INC", "header.tpl");
+      dict.put("TITLE", "x");
+      assertEquals("one x", page.renderToString(dict));
+      assertEquals("one x", page.renderToString(dict));
+      assertEquals(1, fragments.stats().getHitCount());
+
+      write(file, "two {{TITLE}}");
+      assertTrue(file.setLastModified(file.lastModified() + 10000));
+      assertEquals("two x", page.renderToString(dict));
+    } finally {
+      file.delete();
+      dir.delete();
+    }
+  }
+
+  public void testTemplateCacheDropsFragmentsOfReloadedTemplates()
+      throws Exception {
+    File dir = File.createTempFile("hapax", "");
+    assertTrue(dir.delete());
+    assertTrue(dir.mkdir());
+    File page = new File(dir, "page.tpl");
+    File file = new File(dir, "header.tpl");
+    try {
+      write(page, "{{>INC}}");
+      write(file, "one {{TITLE}}");
+      FragmentCache fragments = FragmentCache.create();
+      TemplateCache cache = TemplateCache.builder(dir.getPath())
+          .fragmentCache(fragments).build();
+      TemplateDictionary dict = TemplateDictionary.create();
+      dict.put("INC", "header.tpl");
+      dict.put("TITLE", "x");
+      assertEquals("one x", cache.getTemplate("page.tpl").renderToString(dict));
+      assertEquals("one x", cache.getTemplate("page.tpl").renderToString(dict));
+      assertEquals(1, fragments.stats().getHitCount());
+      assertEquals(1, fragments.stats().getSize());
+
+      write(file, "two {{TITLE}}");
+      assertTrue(file.setLastModified(file.lastModified() + 10000));
+      assertEquals("two x", cache.getTemplate("page.tpl").renderToString(dict));
+      assertEquals(1, fragments.stats().getSize());
+    } finally {
+      page.delete();
+      file.delete();
+      dir.delete();
+    }
+  }
+
+  private static void write(File file, String contents) throws IOException {
+    FileWriter writer = new FileWriter(file);
+    try {
+      writer.write(contents);
+    } finally {
+      writer.close();
+    }
+  }
+}
@@ -3,6 +3,15 @@ package com.xfltr.hapax;
 import junit.framework.Assert;
 import junit.framework.TestCase;
 
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
 /**
  * Unit test for the {@link Modifiers} class.
  *
@@ -27,4 +36,111 @@ public class ModifiersTest extends TestCase {
     assertEquals("", Modifiers.newlinesToBreaks(""));
     assertEquals("hello<br/>world", Modifiers.newlinesToBreaks("hello\nworld"));
   }
+
+  public void testUnescapedValueIsWrittenInOneCall() throws TemplateException {
+    final List<String> writes = new ArrayList<String>();
+    TemplateOutput out = new TemplateOutput() {
+      @Override
+      public void write(String s) {
+        writes.add(s);
+      }
+
+      @Override
+      public void write(CharSequence s, int start, int end) {
+        writes.add(s.subSequence(start, end).toString());
+      }
+    };
+    Modifiers.writeModified("plain text 123",
+        Arrays.asList(Modifiers.FLAGS.H, Modifiers.FLAGS.J), out);
+    assertEquals(Arrays.asList("plain text 123"), writes);
+  }
+
+  public void testChainsMatchStringAtATimeEscaping() throws Exception {
+    char[] alphabet = {'a', 'Z', '7', ' ', '_', '&', '"', '<', '\n', '\r',
+        '\t', '%', '+', '.', '\\', '\u00e9', '\u00a0', '\u0300', '\u20ac',
+        '\u4e2d', '\ud83d', '\ude00', '\uffff'};
+    Modifiers.FLAGS[] flags = Modifiers.FLAGS.values();
+    Random random = new Random(42);
+    for (int n = 0; n < 5000; n++) {
+      StringBuilder value = new StringBuilder();
+      int length = random.nextInt(12);
+      for (int i = 0; i < length; i++) {
+        value.append(alphabet[random.nextInt(alphabet.length)]);
+      }
+      List<Modifiers.FLAGS> modifiers = new ArrayList<Modifiers.FLAGS>();
+      int chain = random.nextInt(4);
+      for (int i = 0; i < chain; i++) {
+        modifiers.add(flags[random.nextInt(flags.length)]);
+      }
+
+      String expected = legacyApplyModifiers(value.toString(), modifiers);
+      String message = modifiers + " " + value;
+      assertEquals(message, expected,
+          Modifiers.applyModifiers(value.toString(), modifiers));
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      TemplateOutput out = TemplateOutput.forStream(bytes);
+      Modifiers.writeModified(value.toString(), modifiers, out);
+      out.flush();
+      assertTrue(message, Arrays.equals(
+          expected.getBytes(StandardCharsets.UTF_8), bytes.toByteArray()));
+    }
+  }
+
+  /**
+   * The escapers as they were before they were rewritten to stream.
+   */
+  private static String legacyApplyModifiers(String input,
+                                             List<Modifiers.FLAGS> modifiers)
+      throws UnsupportedEncodingException {
+    for (Modifiers.FLAGS modifier : modifiers) {
+      StringBuilder escaped = new StringBuilder();
+      switch (modifier) {
+        case H:
+          for (char ch : input.toCharArray()) {
+            if (Character.isLetterOrDigit(ch) || ch == ' ') {
+              escaped.append(ch);
+            } else if (ch == '&') {
+              escaped.append("&amp;");
+            } else if (ch == '"') {
+              escaped.append("&quot;");
+            } else if (ch == '\r' || ch == '\n' || ch == '\t') {
+              escaped.append(ch);
+            } else {
+              escaped.append("&#").append((int) ch).append(";");
+            }
+          }
+          input = escaped.toString();
+          break;
+        case X:
+          for (char ch : input.toCharArray()) {
+            if (Character.isLetterOrDigit(ch) || ch == ' ') {
+              escaped.append(ch);
+            } else {
+              escaped.append("&#").append((int) ch).append(";");
+            }
+          }
+          input = escaped.toString();
+          break;
+        case J:
+          for (char ch : input.toCharArray()) {
+            if (Character.isLetterOrDigit(ch) || "_ ".indexOf(ch) != -1) {
+              escaped.append(ch);
+            } else if (ch < 256) {
+              escaped.append("\\x").append(Integer.toHexString(ch));
+            } else {
+              escaped.append("\\u").append(String.format("%04x", (int) ch));
+            }
+          }
+          input = escaped.toString();
+          break;
+        case U:
+          input = URLEncoder.encode(input, "UTF-8");
+          break;
+        case B:
+          input = input.replaceAll("\n", "<br/>");
+      }
+    }
+    return input;
+  }
 }
@@ -0,0 +1,120 @@
+package com.xfltr.hapax;
+
+import com.xfltr.hapax.codegen.BytecodeCompiler;
+import com.xfltr.hapax.parser.CTemplateParser;
+import com.xfltr.hapax.parser.EztParser;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit test for rendering from objects with {@link
+ * TemplateDictionary#forObject(Object)}.
+ *
+ * @author dcoker
+ */
+public class ObjectDictionaryTest extends TestCase {
+
+  record Row(String name, int count, List<String> tags) {
+  }
+
+  public static class Page {
+    public final String heading = "Rows & more";
+    private final List<Row> rows;
+
+    Page(List<Row> rows) {
+      this.rows = rows;
+    }
+
+    public String getTitle() {
+      return "Report";
+    }
+
+    public boolean isEmpty() {
+      return rows.isEmpty();
+    }
+
+    public List<Row> getRows() {
+      return rows;
+    }
+  }
+
+  private static final String PAGE_TEMPLATE =
+      "<h1>{{TITLE}}: {{HEADING:h}}</h1>{{#EMPTY}}none{{/EMPTY}}"
+          + "{{#ROWS}}<p>{{NAME}}={{COUNT}} in {{TITLE}}"
+          + "{{#TAGS}} #{{TAGS}}{{/TAGS}}</p>{{/ROWS}}";
+
+  public void testRendersRecordsBeansAndFields() throws TemplateException {
+    Page page = new Page(Arrays.asList(
+        new Row("a", 1, Arrays.asList("x", "y")),
+        new Row("b", 2, Collections.<String>emptyList())));
+    String expected = "<h1>Report: Rows &amp; more</h1>"
+        + "<p>a=1 in Report #x #y</p><p>b=2 in Report</p>";
+    assertEquals(expected, Template.parse(PAGE_TEMPLATE)
+        .renderToString(TemplateDictionary.forObject(page)));
+    assertEquals(expected, Template.parse(CTemplateParser.create(),
+        PAGE_TEMPLATE, BytecodeCompiler.create())
+        .renderToString(TemplateDictionary.forObject(page)));
+  }
+
+  public void testFalseAndEmptyValuesHideSections() throws TemplateException {
+    Page page = new Page(new ArrayList<Row>());
+    assertEquals("<h1>Report: Rows &amp; more</h1>none",
+        Template.parse(PAGE_TEMPLATE)
+            .renderToString(TemplateDictionary.forObject(page)));
+  }
+
+  public void testMapsAreMatchedIgnoringCase() throws TemplateException {
+    Map<String, Object> model = new LinkedHashMap<String, Object>();
+    model.put("first_name", "Ada");
+    Map<String, Object> address = new LinkedHashMap<String, Object>();
+    address.put("city", "London");
+    model.put("address", address);
+    model.put("counts", Collections.singletonMap("x", 3).entrySet());
+    assertEquals("Ada London x=3 Ada",
+        Template.parse("{{FIRST_NAME}} {{#ADDRESS}}{{CITY}}{{/ADDRESS}} "
+            + "{{#COUNTS}}{{KEY}}={{VALUE}}{{/COUNTS}} "
+            + "{{#MISSING}}?{{/MISSING}}{{first_name}}")
+            .renderToString(TemplateDictionary.forObject(model)));
+  }
+
+  public void testMapsAreReadOnEveryRender() throws TemplateException {
+    Map<String, Object> model = new LinkedHashMap<String, Object>();
+    model.put("name", "a");
+    TemplateDictionary dict = TemplateDictionary.forObject(model);
+    Template t = Template.parse("{{NAME}}{{#EXTRA}}+{{EXTRA}}{{/EXTRA}}");
+    assertEquals("a", t.renderToString(dict));
+    model.put("name", "b");
+    assertEquals("b", t.renderToString(dict));
+    model.put("extra", "c");
+    assertEquals("b+c", t.renderToString(dict));
+    model.remove("extra");
+    model.put("name", null);
+    assertEquals("", t.renderToString(dict));
+  }
+
+  public void testPutValuesTakePrecedence() throws TemplateException {
+    TemplateDictionary dict = TemplateDictionary.forObject(
+        new Row("from object", 1, Collections.<String>emptyList()));
+    dict.put("COUNT", "from put");
+    assertEquals("from object from put",
+        Template.parse("{{NAME}} {{COUNT}}").renderToString(dict));
+    assertEquals("from object", dict.get("NAME"));
+    assertTrue(dict.contains("TAGS"));
+    assertFalse(dict.contains("NOT_A_PROPERTY"));
+  }
+
+  public void testEztTemplatesReadObjects() throws TemplateException {
+    Template t = Template.parse(EztParser.create(),
+        "[if-any name][name][else]anonymous[end]");
+    assertEquals("a", t.renderToString(TemplateDictionary.forObject(
+        new Row("a", 0, null))));
+    assertEquals("anonymous", t.renderToString(TemplateDictionary.forObject(
+        new Row(null, 0, null))));
+  }
+}
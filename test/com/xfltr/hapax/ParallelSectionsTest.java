@@ -0,0 +1,175 @@
+package com.xfltr.hapax;
+
+import com.xfltr.hapax.codegen.BytecodeCompiler;
+import com.xfltr.hapax.parser.CTemplateParser;
+import com.xfltr.hapax.parser.EztParser;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+
+/**
+ * Unit test for {@link ParallelSections}.
+ *
+ * @author dcoker
+ */
+public class ParallelSectionsTest extends TestCase {
+  private static final String TEMPLATE =
+      "<table>{{#ROW}}<tr><td>{{N}}</td><td>{{NAME:h}}</td>"
+          + "{{#CELL}}<td>{{V}}</td>{{/CELL}}</tr>\n{{/ROW}}</table>";
+
+  private ForkJoinPool pool_;
+
+  @Override
+  protected void setUp() {
+    pool_ = new ForkJoinPool(4);
+  }
+
+  @Override
+  protected void tearDown() {
+    pool_.shutdown();
+  }
+
+  private static TemplateDictionary rows(int count) {
+    TemplateDictionary dict = TemplateDictionary.create();
+    dict.showSection("ROW");
+    for (int i = 0; i < count; i++) {
+      TemplateDictionary row = dict.addChildDict("ROW");
+      row.put("N", i);
+      // Characters outside the BMP, so that surrogate pairs meet at the ends
+      // of chunks.
+      row.put("NAME", "<\uD83D\uDE00 " + i + ">");
+      for (int j = 0; j < i % 3; j++) {
+        row.showSection("CELL");
+        row.addChildDict("CELL").put("V", j * 0.5);
+      }
+    }
+    return dict;
+  }
+
+  public void testOutputMatchesSequentialRender() throws TemplateException {
+    TemplateDictionary dict = rows(5000);
+    ParallelSections parallel = ParallelSections.create(pool_, 16);
+    Template interpreted = Template.parse(TEMPLATE);
+    Template compiled = Template.parse(CTemplateParser.create(), TEMPLATE,
+        BytecodeCompiler.create());
+    String expected = interpreted.renderToString(dict);
+
+    assertEquals(expected, interpreted.withParallelSections(parallel)
+        .renderToString(dict));
+    assertEquals(expected, compiled.withParallelSections(parallel)
+        .renderToString(dict));
+
+    ByteArrayOutputStream sequential = new ByteArrayOutputStream();
+    compiled.render(dict, sequential);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    compiled.withParallelSections(parallel).render(dict, bytes);
+    assertTrue(Arrays.equals(sequential.toByteArray(),
+        bytes.toByteArray()));
+  }
+
+  public void testRowsAreRenderedOnThePool() throws TemplateException {
+    final Set<Thread> threads =
+        Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+    TemplateDictionary dict = TemplateDictionary.create();
+    dict.showSection("ROW");
+    for (int i = 0; i < 1000; i++) {
+      dict.addChildDict("ROW").putLazy("N", new Supplier<Object>() {
+        public Object get() {
+          threads.add(Thread.currentThread());
+          return "x";
+        }
+      });
+    }
+    Template t = Template.parse("{{#ROW}}{{N}}{{/ROW}}");
+
+    t.withParallelSections(ParallelSections.create(pool_, 1001))
+        .renderToString(dict);
+    assertEquals(Collections.singleton(Thread.currentThread()), threads);
+
+    threads.clear();
+    t.withParallelSections(ParallelSections.create(pool_, 1000))
+        .renderToString(dict);
+    threads.remove(Thread.currentThread());
+    assertFalse(threads.isEmpty());
+  }
+
+  public void testObjectListsAreRenderedInParallel() throws TemplateException {
+    List<Integer> numbers = new ArrayList<Integer>();
+    for (int i = 0; i < 2000; i++) {
+      numbers.add(i);
+    }
+    TemplateDictionary dict = TemplateDictionary.create();
+    dict.showSectionForEach("N", numbers);
+    Template t = Template.parse("{{#N}}{{N}},{{/N}}");
+    assertEquals(t.renderToString(dict), t.withParallelSections(
+        ParallelSections.create(pool_, 2)).renderToString(dict));
+  }
+
+  public void testDefinesInRowsAreSeenByLaterRows() throws TemplateException {
+    MockTemplateLoader loader = new MockTemplateLoader(EztParser.create());
+    // Each row prints the name defined by the row before it.
+    loader.put("row.ezt", "[previous] [define previous][name][end]");
+    TemplateDictionary dict = TemplateDictionary.create();
+    dict.put("INC", "row.ezt");
+    dict.showSection("ROW");
+    for (int i = 0; i < 500; i++) {
+      dict.addChildDict("ROW").put("NAME", "r" + i);
+    }
+    Template t = Template.parse("{{#ROW}}{{>INC}};{{/ROW}}[{{PREVIOUS}}]")
+        .withLoader(loader);
+    String expected = t.renderToString(dict);
+    assertTrue(expected.startsWith(" ;r0 ;r1 ;"));
+    assertEquals(expected, t.withParallelSections(
+        ParallelSections.create(pool_, 2)).renderToString(dict));
+  }
+
+  public void testErrorsKeepTheOutputOfEarlierRows()
+      throws TemplateException {
+    TemplateDictionary dict = TemplateDictionary.create();
+    dict.showSection("ROW");
+    dict.put("INC", "empty");
+    for (int i = 0; i < 100; i++) {
+      TemplateDictionary row = dict.addChildDict("ROW");
+      row.put("N", i);
+      if (i == 60) {
+        row.put("INC", "missing");
+      }
+    }
+    Template t = Template.parse("{{#ROW}}{{N}},{{>INC}}{{/ROW}}")
+        .withLoader(new MockTemplateLoader() {
+          @Override
+          public Template getTemplate(String filename)
+              throws TemplateException {
+            if (filename.equals("missing")) {
+              throw new TemplateException("Not found: " + filename);
+            }
+            return Template.parse("");
+          }
+        });
+    StringBuilder sequential = new StringBuilder();
+    StringBuilder parallel = new StringBuilder();
+    try {
+      t.render(dict, TemplateOutput.forStringBuilder(sequential));
+      fail();
+    } catch (TemplateException e) {
+      // expected
+    }
+    try {
+      t.withParallelSections(ParallelSections.create(pool_, 2))
+          .render(dict, TemplateOutput.forStringBuilder(parallel));
+      fail();
+    } catch (TemplateException e) {
+      // expected
+    }
+    assertTrue(sequential.toString().endsWith("59,60,"));
+    assertEquals(sequential.toString(), parallel.toString());
+  }
+}
@@ -0,0 +1,501 @@
+package com.xfltr.hapax;
+
+import com.xfltr.hapax.parser.CTemplateParser;
+import com.xfltr.hapax.parser.CyclicIncludeException;
+import com.xfltr.hapax.parser.EztParser;
+import com.xfltr.hapax.parser.LinkedIncludeNode;
+import com.xfltr.hapax.parser.SequenceNode;
+import com.xfltr.hapax.parser.TemplateNode;
+import com.xfltr.hapax.parser.TemplateParser;
+import com.xfltr.hapax.parser.TemplateParserException;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit test for {@link TemplateCache}.
+ *
+ * @author dcoker
+ */
+public class TemplateCacheTest extends TestCase {
+  private File dir;
+  private CountingParser parser;
+
+  @Override
+  protected void setUp() throws Exception {
+    dir = File.createTempFile("hapax", "");
+    assertTrue(dir.delete());
+    assertTrue(dir.mkdir());
+    parser = new CountingParser();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  public void testLoadsAndCachesTemplates() throws Exception {
+    write("a.tpl", "Hello {{WORLD}}");
+    TemplateLoader cache = TemplateCache.createForParser(dir.getPath(), parser);
+    TemplateDictionary td = TemplateDictionary.create();
+    td.put("WORLD", "mars");
+    Template first = cache.getTemplate("a.tpl");
+    assertEquals("Hello mars", first.renderToString(td));
+    assertSame(first, cache.getTemplate("a.tpl"));
+    assertEquals(1, parser.parses.get());
+  }
+
+  public void testReloadsChangedTemplates() throws Exception {
+    File file = write("a.tpl", "one");
+    TemplateLoader cache = TemplateCache.createForParser(dir.getPath(), parser);
+    assertEquals("one", cache.getTemplate("a.tpl")
+        .renderToString(TemplateDictionary.create()));
+    write("a.tpl", "two");
+    assertTrue(file.setLastModified(file.lastModified() + 10000));
+    assertEquals("two", cache.getTemplate("a.tpl")
+        .renderToString(TemplateDictionary.create()));
+    assertEquals(2, parser.parses.get());
+  }
+
+  public void testFailedLoadsAreRetried() throws Exception {
+    TemplateLoader cache = TemplateCache.createForParser(dir.getPath(), parser);
+    try {
+      cache.getTemplate("missing.tpl");
+      fail("loading a missing template should throw");
+    } catch (TemplateException e) {
+      // pass
+    }
+    write("missing.tpl", "found");
+    assertEquals("found", cache.getTemplate("missing.tpl")
+        .renderToString(TemplateDictionary.create()));
+  }
+
+  public void testConcurrentMissesParseEachTemplateOnce() throws Exception {
+    final int templates = 8;
+    final int threads = 16;
+    final int lookups_per_thread = 200;
+    for (int i = 0; i < templates; i++) {
+      write("t" + i + ".tpl", "template " + i);
+    }
+    parser.delayMillis = 20;
+    final TemplateLoader cache =
+        TemplateCache.createForParser(dir.getPath(), parser);
+    final ConcurrentMap<String, Template> seen =
+        new ConcurrentHashMap<String, Template>();
+    final CountDownLatch start = new CountDownLatch(1);
+
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+      for (int t = 0; t < threads; t++) {
+        results.add(pool.submit(new Callable<Integer>() {
+          public Integer call() throws Exception {
+            start.await();
+            int rendered = 0;
+            for (int i = 0; i < lookups_per_thread; i++) {
+              String name = "t" + (i % templates) + ".tpl";
+              Template template = cache.getTemplate(name);
+              Template previous = seen.putIfAbsent(name, template);
+              assertTrue(previous == null || previous == template);
+              assertEquals("template " + (i % templates),
+                  template.renderToString(TemplateDictionary.create()));
+              rendered++;
+            }
+            return rendered;
+          }
+        }));
+      }
+      start.countDown();
+      for (Future<Integer> result : results) {
+        assertEquals(lookups_per_thread, result.get().intValue());
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+
+    assertEquals(templates, seen.size());
+    assertEquals(templates, parser.parses.get());
+  }
+
+  public void testMaximumSizeEvictsLeastRecentlyUsed() throws Exception {
+    write("a.tpl", "a");
+    write("b.tpl", "b");
+    write("c.tpl", "c");
+    TemplateCache cache = TemplateCache.builder(dir.getPath())
+        .parser(parser).maximumSize(2).build();
+    cache.getTemplate("a.tpl");
+    cache.getTemplate("b.tpl");
+    cache.getTemplate("a.tpl");
+    cache.getTemplate("c.tpl");
+    assertEquals(3, parser.parses.get());
+
+    cache.getTemplate("a.tpl");
+    assertEquals(3, parser.parses.get());
+    cache.getTemplate("b.tpl");
+    assertEquals(4, parser.parses.get());
+
+    TemplateCacheStats stats = cache.stats();
+    assertEquals(2, stats.getSize());
+    assertEquals(2, stats.getHitCount());
+    assertEquals(4, stats.getMissCount());
+    assertEquals(2, stats.getEvictionCount());
+    assertTrue(stats.getTotalLoadNanos() > 0);
+  }
+
+  public void testMaximumWeightBoundsRetainedSize() throws Exception {
+    StringBuilder contents = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      contents.append('x');
+    }
+    for (int i = 0; i < 50; i++) {
+      write("t" + i + ".tpl", contents.toString());
+    }
+    TemplateCache cache = TemplateCache.builder(dir.getPath())
+        .parser(parser).maximumWeight(10000).build();
+    for (int i = 0; i < 50; i++) {
+      assertEquals(contents.toString(), cache.getTemplate("t" + i + ".tpl")
+          .renderToString(TemplateDictionary.create()));
+      assertTrue(cache.stats().getWeight() <= 10000);
+    }
+    TemplateCacheStats stats = cache.stats();
+    assertTrue(stats.getWeight() > 0);
+    assertTrue(stats.getSize() < 50);
+    assertEquals(50 - stats.getSize(), stats.getEvictionCount());
+  }
+
+  public void testCheckIntervalSkipsModificationChecks() throws Exception {
+    File file = write("a.tpl", "one");
+    TemplateCache cache = TemplateCache.builder(dir.getPath())
+        .parser(parser).checkInterval(3600 * 1000).build();
+    assertEquals("one", cache.getTemplate("a.tpl")
+        .renderToString(TemplateDictionary.create()));
+    write("a.tpl", "two");
+    assertTrue(file.setLastModified(file.lastModified() + 10000));
+    assertEquals("one", cache.getTemplate("a.tpl")
+        .renderToString(TemplateDictionary.create()));
+    assertEquals(1, parser.parses.get());
+  }
+
+  public void testWatchForChangesReloadsChangedTemplates() throws Exception {
+    write("a.tpl", "one");
+    File sub = new File(dir, "sub");
+    assertTrue(sub.mkdir());
+    write("sub/b.tpl", "");
+    TemplateCache cache = TemplateCache.builder(dir.getPath())
+        .parser(parser).watchForChanges(true).build();
+    try {
+      assertEquals("one", cache.getTemplate("a.tpl")
+          .renderToString(TemplateDictionary.create()));
+      assertEquals("", cache.getTemplate("sub/b.tpl")
+          .renderToString(TemplateDictionary.create()));
+
+      write("a.tpl", "two");
+      write("sub/b.tpl", "three");
+      assertEventuallyRenders(cache, "a.tpl", "two");
+      assertEventuallyRenders(cache, "sub/b.tpl", "three");
+    } finally {
+      cache.close();
+      new File(sub, "b.tpl").delete();
+      sub.delete();
+    }
+  }
+
+  public void testTemplatesAreDecodedWithConfiguredCharset() throws Exception {
+    String text = "caf\u00e9 \u20ac";
+    writeBytes("utf8.tpl", text.getBytes(StandardCharsets.UTF_8));
+    writeBytes("latin1.tpl", "caf\u00e9".getBytes(StandardCharsets.ISO_8859_1));
+    assertEquals(text, TemplateCache.create(dir.getPath())
+        .getTemplate("utf8.tpl").renderToString(TemplateDictionary.create()));
+    assertEquals("caf\u00e9", TemplateCache.builder(dir.getPath())
+        .charset(StandardCharsets.ISO_8859_1).build()
+        .getTemplate("latin1.tpl")
+        .renderToString(TemplateDictionary.create()));
+  }
+
+  public void testReadsLargeFiles() throws Exception {
+    StringBuilder contents = new StringBuilder();
+    while (contents.length() < 3 * 1024 * 1024) {
+      contents.append("line \u00e9\n");
+    }
+    File file = writeBytes("large.tpl",
+        contents.toString().getBytes(StandardCharsets.UTF_8));
+    assertEquals(contents.toString(),
+        TemplateCache.readFile(file.toPath(), StandardCharsets.UTF_8));
+  }
+
+  public void testLoadFailuresAreCounted() throws Exception {
+    TemplateCache cache = TemplateCache.builder(dir.getPath())
+        .parser(parser).build();
+    try {
+      cache.getTemplate("missing.tpl");
+      fail("loading a missing template should throw");
+    } catch (TemplateException e) {
+      // pass
+    }
+    assertEquals(1, cache.stats().getMissCount());
+    assertEquals(1, cache.stats().getLoadFailureCount());
+    assertEquals(0, cache.stats().getSize());
+  }
+
+  public void testPreloadLoadsEveryTemplate() throws Exception {
+    write("a.tpl", "{{#ROW}}{{N}}{{/ROW}}{{>INC}}");
+    write("b.tpl", "{{#UNCLOSED}}");
+    write("README", "{{#UNCLOSED}}");
+    write("a.tpl~", "{{#UNCLOSED}}");
+    TemplateCache cache = TemplateCache.builder(dir.getPath())
+        .parser(parser).build();
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    PreloadReport report;
+    try {
+      report = cache.preload(executor, 3);
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(2, report.getResults().size());
+    assertEquals(1, report.getFailureCount());
+    assertFalse(report.isComplete());
+    PreloadReport.Result a = report.getResults().get(0);
+    assertEquals("a.tpl", a.getName());
+    assertNull(a.getError());
+    assertTrue(a.getParseNanos() > 0);
+    assertTrue(a.getWarmUpNanos() > 0);
+    assertEquals(0, a.getWarmUpFailures());
+    PreloadReport.Result b = report.getResults().get(1);
+    assertEquals("b.tpl", b.getName());
+    assertNotNull(b.getError());
+
+    assertEquals(2, parser.parses.get());
+    cache.getTemplate("a.tpl");
+    assertEquals(2, parser.parses.get());
+    assertEquals(1, cache.stats().getSize());
+  }
+
+  public void testPreloadCountsFailedWarmUps() throws Exception {
+    write("a.ezt", "[include inc]");
+    write("b.ezt", "[include \"missing.ezt\"]");
+    write("c.ezt", "[include \"a.ezt\"]");
+    TemplateCache cache = TemplateCache.builder(dir.getPath())
+        .parser(EztParser.create()).build();
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    PreloadReport report;
+    try {
+      report = cache.preload(executor, 3);
+    } finally {
+      executor.shutdown();
+    }
+    assertTrue(report.isComplete());
+    assertEquals(0, report.getResults().get(0).getWarmUpFailures());
+    assertEquals(3, report.getResults().get(1).getWarmUpFailures());
+    assertEquals(0, report.getResults().get(2).getWarmUpFailures());
+    assertEquals(3, report.getWarmUpFailureCount());
+    assertEquals("{a.ezt=[], b.ezt=[missing.ezt], c.ezt=[a.ezt]}",
+        cache.getDependencyGraph().toString());
+  }
+
+  public void testLinkedIncludesAreRelinkedWhenTheyChange() throws Exception {
+    write("page.ezt", "<[include \"nav.ezt\"]>");
+    File nav = write("nav.ezt", "[who]");
+    TemplateCache cache = TemplateCache.builder(dir.getPath())
+        .parser(EztParser.create()).linkIncludes(true).build();
+    TemplateDictionary dict = TemplateDictionary.create();
+    dict.put("WHO", "root");
+    Template page = cache.getTemplate("page.ezt");
+    assertEquals("<root>", page.renderToString(dict));
+    assertTrue(((SequenceNode) page.getRoot()).getNodes().get(1)
+        instanceof LinkedIncludeNode);
+    assertSame(page, cache.getTemplate("page.ezt"));
+    // Checking that nav.ezt is current is not a request for it.
+    assertEquals(1, cache.stats().getHitCount());
+
+    write("nav.ezt", "nav");
+    assertTrue(nav.setLastModified(nav.lastModified() + 10000));
+    assertEquals("<nav>", cache.getTemplate("page.ezt").renderToString(dict));
+  }
+
+  public void testSmallIncludesAreInlined() throws Exception {
+    write("page.ezt", "<[include \"nav.ezt\"]>");
+    File nav = write("nav.ezt", "[who]");
+    TemplateLoader cache = TemplateCache.builder(dir.getPath())
+        .parser(EztParser.create()).inlineIncludes(10).build();
+    TemplateDictionary dict = TemplateDictionary.create();
+    dict.put("WHO", "root");
+    Template page = cache.getTemplate("page.ezt");
+    assertEquals("<root>", page.renderToString(dict));
+    assertEquals(3, ((SequenceNode) page.getRoot()).getNodes().size());
+
+    write("nav.ezt", "nav");
+    assertTrue(nav.setLastModified(nav.lastModified() + 10000));
+    assertEquals("<nav>", cache.getTemplate("page.ezt").renderToString(dict));
+  }
+
+  public void testStaticIncludeCyclesAreFoundWhenLoading() throws Exception {
+    write("a.ezt", "[if-any never][include \"b.ezt\"][end]");
+    write("b.ezt", "[include \"a.ezt\"]");
+    TemplateLoader cache = TemplateCache.builder(dir.getPath())
+        .parser(EztParser.create()).linkIncludes(true)
+        .compileToBytecode(true).build();
+    try {
+      cache.getTemplate("a.ezt");
+      fail("a cyclic include should throw");
+    } catch (CyclicIncludeException e) {
+      // pass
+    }
+  }
+
+  public void testDependencyGraphRecordsIncludes() throws Exception {
+    write("page.ezt", "[include \"nav.ezt\"][include footer]");
+    write("nav.ezt", "[include \"menu.ezt\"]");
+    write("menu.ezt", "menu");
+    write("footer.ezt", "footer");
+    write("other.ezt", "other");
+    TemplateCache cache = TemplateCache.builder(dir.getPath())
+        .parser(EztParser.create()).build();
+    Template page = cache.getTemplate("page.ezt");
+    cache.getTemplate("other.ezt");
+    assertEquals("{other.ezt=[], page.ezt=[nav.ezt]}",
+        cache.getDependencyGraph().toString());
+
+    TemplateDictionary dict = TemplateDictionary.create();
+    dict.put("FOOTER", "footer.ezt");
+    assertEquals("menufooter", page.renderToString(dict));
+    assertEquals("{footer.ezt=[], menu.ezt=[], nav.ezt=[menu.ezt], "
+        + "other.ezt=[], page.ezt=[footer.ezt, nav.ezt]}",
+        cache.getDependencyGraph().toString());
+  }
+
+  public void testNestedIncludesAreRecordedOnTheirIncluder()
+      throws Exception {
+    write("page.tpl", "{{>NAV}}");
+    write("nav.tpl", "{{>MENU}}");
+    write("menu.tpl", "menu");
+    TemplateCache cache = TemplateCache.builder(dir.getPath()).build();
+    TemplateDictionary dict = TemplateDictionary.create();
+    dict.put("NAV", "nav.tpl");
+    dict.put("MENU", "menu.tpl");
+    assertEquals("menu", cache.getTemplate("page.tpl").renderToString(dict));
+    assertEquals("{menu.tpl=[], nav.tpl=[menu.tpl], page.tpl=[nav.tpl]}",
+        cache.getDependencyGraph().toString());
+  }
+
+  public void testWatchedChangesRelinkDependents() throws Exception {
+    write("page.ezt", "<[include \"nav.ezt\"]>");
+    write("nav.ezt", "nav");
+    TemplateCache cache = TemplateCache.builder(dir.getPath())
+        .parser(EztParser.create()).linkIncludes(true).watchForChanges(true)
+        .build();
+    try {
+      assertEquals("<nav>", cache.getTemplate("page.ezt")
+          .renderToString(TemplateDictionary.create()));
+      // Only the change events tell the page that nav.ezt has changed.
+      cache.getTemplate("page.ezt");
+      assertEquals(1, cache.stats().getHitCount());
+
+      write("nav.ezt", "NAV");
+      assertEventuallyRenders(cache, "page.ezt", "<NAV>");
+    } finally {
+      cache.close();
+    }
+  }
+
+  public void testChangesRelinkOnlyDependents() throws Exception {
+    write("page.ezt", "<[include \"nav.ezt\"]>");
+    write("nav.ezt", "[include \"menu.ezt\"]");
+    write("menu.ezt", "menu");
+    write("other.ezt", "other");
+    TemplateCache cache = TemplateCache.builder(dir.getPath())
+        .parser(EztParser.create()).inlineIncludes(10).watchForChanges(true)
+        .build();
+    try {
+      Template other = cache.getTemplate("other.ezt");
+      assertEquals("<menu>", cache.getTemplate("page.ezt")
+          .renderToString(TemplateDictionary.create()));
+
+      write("menu.ezt", "MENU");
+      assertEventuallyRenders(cache, "page.ezt", "<MENU>");
+      assertSame(other, cache.getTemplate("other.ezt"));
+    } finally {
+      cache.close();
+    }
+  }
+
+  private static void assertEventuallyRenders(TemplateLoader cache,
+                                              String name, String expected)
+      throws Exception {
+    long deadline = System.currentTimeMillis() + 10000;
+    String actual;
+    do {
+      actual = cache.getTemplate(name)
+          .renderToString(TemplateDictionary.create());
+      if (expected.equals(actual)) {
+        return;
+      }
+      Thread.sleep(10);
+    } while (System.currentTimeMillis() < deadline);
+    assertEquals(expected, actual);
+  }
+
+  private File writeBytes(String name, byte[] contents) throws IOException {
+    File file = new File(dir, name);
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(contents);
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  private File write(String name, String contents) throws IOException {
+    File file = new File(dir, name);
+    FileWriter writer = new FileWriter(file);
+    try {
+      writer.write(contents);
+    } finally {
+      writer.close();
+    }
+    return file;
+  }
+
+  /**
+   * A CTemplateParser that counts how often it is used, and can be slowed
+   * down to widen race windows.
+   */
+  private static final class CountingParser implements TemplateParser {
+    private final TemplateParser delegate = CTemplateParser.create();
+    private final AtomicInteger parses = new AtomicInteger();
+    private volatile long delayMillis = 0;
+
+    public List<TemplateNode> parse(String template)
+        throws TemplateParserException {
+      parses.incrementAndGet();
+      if (delayMillis > 0) {
+        try {
+          Thread.sleep(delayMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      return delegate.parse(template);
+    }
+  }
+}
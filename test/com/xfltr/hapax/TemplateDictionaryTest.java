@@ -96,4 +96,77 @@ public class TemplateDictionaryTest extends TestCase {
     assertFalse(td.isHiddenSection("X"));
   }
 
+  public void testSymbolsAreCaseFoldedAndInterned() {
+    assertSame(Symbol.of("Title"), Symbol.of("TITLE"));
+    assertSame(Symbol.of("title"), Symbol.of("tItLe"));
+    assertEquals("TITLE", Symbol.of("title").getName());
+    assertNotSame(Symbol.of("TITLE"), Symbol.of("TITLES"));
+  }
+
+  public void testSymbolAndStringKeysAreInterchangeable() {
+    TemplateDictionary td = TemplateDictionary.create();
+    td.put("name", "V");
+    assertEquals("V", td.get(Symbol.of("NAME")));
+    assertTrue(td.contains(Symbol.of("Name")));
+    td.put(Symbol.of("other"), "W");
+    TemplateDictionary child = td.addChildDict("kids");
+    assertEquals("W", child.get("OTHER"));
+    assertSame(child, td.getChildDicts(Symbol.of("KIDS")).get(0));
+    assertFalse(child.contains(Symbol.of("MISSING")));
+  }
+
+  public void testInheritedValuesFollowLaterPuts() {
+    TemplateDictionary root = TemplateDictionary.create();
+    TemplateDictionary middle = root.addChildDict("MIDDLE");
+    TemplateDictionary leaf = middle.addChildDict("LEAF");
+    assertFalse(leaf.contains("X"));
+    root.put("X", "root");
+    assertEquals("root", leaf.get("X"));
+    root.put("X", "again");
+    assertEquals("again", leaf.get("X"));
+    middle.put("X", "middle");
+    assertEquals("middle", leaf.get("X"));
+    assertEquals("again", root.get("X"));
+    leaf.addChildDict("MORE").put("X", "below");
+    assertEquals("middle", leaf.get("X"));
+  }
+
+  public void testDeeplyNestedLookupsFromManyThreads() throws Exception {
+    final TemplateDictionary root = TemplateDictionary.create();
+    root.put("ROOT", "r");
+    TemplateDictionary level = root;
+    for (int i = 0; i < 500; i++) {
+      level.put("LEVEL", i);
+      level = level.addChildDict("CHILD");
+    }
+    final TemplateDictionary leaf = level;
+    final Throwable[] failure = new Throwable[1];
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 1000; i++) {
+              assertEquals("r", leaf.get("ROOT"));
+              assertEquals("499", leaf.get("LEVEL"));
+              assertFalse(leaf.contains("MISSING"));
+            }
+          } catch (Throwable e) {
+            synchronized (failure) {
+              failure[0] = e;
+            }
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (failure[0] != null) {
+      throw new AssertionError(failure[0]);
+    }
+  }
+
 }
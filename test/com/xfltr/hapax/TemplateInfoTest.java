@@ -0,0 +1,98 @@
+package com.xfltr.hapax;
+
+import com.xfltr.hapax.codegen.BytecodeCompiler;
+import com.xfltr.hapax.parser.CTemplateParser;
+import com.xfltr.hapax.parser.EztParser;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Unit test for {@link Template#analyze()}.
+ *
+ * @author dcoker
+ */
+public class TemplateInfoTest extends TestCase {
+
+  /**
+   * Parses EZT templates from memory, and fails for unknown names.
+   */
+  private static final class EztLoader implements TemplateLoader {
+    private final Map<String, String> templates_ =
+        new HashMap<String, String>();
+
+    public Template getTemplate(String filename) throws TemplateException {
+      String source = templates_.get(filename);
+      if (source == null) {
+        throw new TemplateException("No such template: " + filename);
+      }
+      return Template.parse(EztParser.create(), source).withLoader(this);
+    }
+
+    public Template getTemplate(String filename, String templateDirectory)
+        throws TemplateException {
+      return getTemplate(filename);
+    }
+  }
+
+  private static List<String> list(String... names) {
+    return Arrays.asList(names);
+  }
+
+  private static List<String> list(Set<String> names) {
+    return Arrays.asList(names.toArray(new String[names.size()]));
+  }
+
+  public void testCTemplate() throws TemplateException {
+    String source = "{{title:h}}{{#ROWS}}{{NAME:h:u}}{{>ROW}}{{/ROWS}}"
+        + "{{TITLE:j}}";
+    TemplateInfo compiled = Template.parse(CTemplateParser.create(), source,
+        BytecodeCompiler.create()).analyze();
+    for (TemplateInfo info
+        : new TemplateInfo[] {Template.parse(source).analyze(), compiled}) {
+      assertEquals(list("TITLE", "NAME", "ROW"), list(info.getVariables()));
+      assertEquals(list("ROWS"), list(info.getSections()));
+      assertEquals(list("ROW"), list(info.getIncludeVariables()));
+      assertTrue(info.getIncludes().isEmpty());
+      assertEquals(EnumSet.of(Modifiers.FLAGS.H, Modifiers.FLAGS.J),
+          info.getModifiers().get("TITLE"));
+      assertEquals(EnumSet.of(Modifiers.FLAGS.H, Modifiers.FLAGS.U),
+          info.getModifiers().get("NAME"));
+      assertNull(info.getModifiers().get("ROW"));
+    }
+  }
+
+  public void testLiteralIncludesAreFollowed() throws TemplateException {
+    EztLoader loader = new EztLoader();
+    loader.templates_.put("page.ezt",
+        "[if-any user][include \"nav.ezt\"][end][include \"missing.ezt\"]"
+            + "[include footer][define title][page][end][title]");
+    loader.templates_.put("nav.ezt",
+        "[is user \"root\"]#[end][include \"page.ezt\"][include \"menu.ezt\"]"
+            + "[include \"menu.ezt\"]");
+    loader.templates_.put("menu.ezt", "[item]");
+
+    TemplateInfo info = loader.getTemplate("page.ezt").analyze();
+    assertEquals(list("USER", "FOOTER", "PAGE", "TITLE", "ITEM"),
+        list(info.getVariables()));
+    assertEquals(list("nav.ezt", "page.ezt", "menu.ezt"),
+        list(info.getIncludes()));
+    assertEquals(list("missing.ezt"), list(info.getUnresolvedIncludes()));
+    assertEquals(list("FOOTER"), list(info.getIncludeVariables()));
+    assertEquals(list("TITLE"), list(info.getDefines()));
+    assertTrue(info.getSections().isEmpty());
+  }
+
+  public void testTemplatesWithoutALoaderReportIncludesAsUnresolved()
+      throws TemplateException {
+    TemplateInfo info = Template.parse(EztParser.create(),
+        "[include \"a.ezt\"]").analyze();
+    assertTrue(info.getIncludes().isEmpty());
+    assertEquals(list("a.ezt"), list(info.getUnresolvedIncludes()));
+  }
+}
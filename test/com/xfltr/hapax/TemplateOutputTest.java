@@ -0,0 +1,150 @@
+package com.xfltr.hapax;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Unit test for {@link TemplateOutput} and the byte-oriented render methods of
+ * {@link Template}.
+ *
+ * @author dcoker
+ */
+public class TemplateOutputTest extends TestCase {
+  private TemplateDictionary td;
+
+  @Override
+  protected void setUp() throws Exception {
+    td = TemplateDictionary.create();
+  }
+
+  public void testAsciiAndMultibyteText() throws TemplateException {
+    td.put("V", "caf\u00e9 \u20ac \ud83d\ude00");
+    assertSameBytes("text \u00e9\u20ac\ud83d\ude00 {{V}} done");
+  }
+
+  public void testUnpairedSurrogatesMatchStringEncoding()
+      throws TemplateException {
+    td.put("A", "x\ud83dy");
+    td.put("B", "\ude00z");
+    td.put("C", "\ud83d");
+    assertSameBytes("{{A}}|{{B}}|{{C}}");
+  }
+
+  public void testSurrogatePairSplitAcrossWrites() throws TemplateException {
+    td.put("HIGH", "\ud83d");
+    td.put("LOW", "\ude00");
+    assertEquals("\ud83d\ude00", new String(renderToStream("{{HIGH}}{{LOW}}"),
+        StandardCharsets.UTF_8));
+  }
+
+  public void testOutputLargerThanBuffer() throws TemplateException {
+    StringBuilder text = new StringBuilder();
+    StringBuilder value = new StringBuilder();
+    for (int i = 0; i < 3 * TemplateOutput.BUFFER_SIZE; i++) {
+      text.append((char) ('a' + i % 26));
+      value.append(i % 3 == 0 ? '\u20ac' : 'v');
+    }
+    td.put("V", value.toString());
+    assertSameBytes(text + "{{V}}" + text + "{{V}}");
+    assertSameBytes("{{#S}}" + text + "{{V}}{{/S}}");
+  }
+
+  public void testRenderToChannel() throws TemplateException {
+    td.put("V", "\u00e9");
+    Template t = Template.parse("a{{V}}b");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    t.render(td, Channels.newChannel(out));
+    assertEquals("a\u00e9b", new String(out.toByteArray(),
+        StandardCharsets.UTF_8));
+  }
+
+  public void testOutputBeforeAnErrorIsWritten() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      Template.parse("before {{>INC}} after").render(td, out);
+      fail("expected TemplateException");
+    } catch (TemplateException e) {
+      // the include's filename is not set
+    }
+    assertEquals("before ", new String(out.toByteArray(),
+        StandardCharsets.UTF_8));
+
+    out = new ByteArrayOutputStream();
+    try {
+      Template.parse("before {{>INC}} after").render(td,
+          Channels.newChannel(out));
+      fail("expected TemplateException");
+    } catch (TemplateException e) {
+      // the include's filename is not set
+    }
+    assertEquals("before ", new String(out.toByteArray(),
+        StandardCharsets.UTF_8));
+  }
+
+  public void testNonBlockingChannelIsRejected()
+      throws IOException, TemplateException {
+    Pipe pipe = Pipe.open();
+    try {
+      pipe.sink().configureBlocking(false);
+      try {
+        Template.parse("text").render(td, pipe.sink());
+        fail("expected IllegalArgumentException");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+      try {
+        TemplateOutput.forChannel(pipe.sink());
+        fail("expected IllegalArgumentException");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    } finally {
+      pipe.sink().close();
+      pipe.source().close();
+    }
+    // The rejected render gave back nothing it borrowed.
+    assertEquals("short", new String(renderToStream("short"),
+        StandardCharsets.UTF_8));
+  }
+
+  public void testReusedBufferHoldsNoStaleOutput() throws TemplateException {
+    td.put("V", "a long value that fills part of the buffer");
+    assertEquals("a long value that fills part of the buffer",
+        new String(renderToStream("{{V}}"), StandardCharsets.UTF_8));
+    assertEquals("short", new String(renderToStream("short"),
+        StandardCharsets.UTF_8));
+  }
+
+  public void testNumbersAcrossBufferBoundary() throws TemplateException {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < TemplateOutput.BUFFER_SIZE - 10; i++) {
+      text.append('t');
+    }
+    td.put("MIN", Long.MIN_VALUE);
+    td.put("MAX", Long.MAX_VALUE);
+    td.put("NEG", -12);
+    td.put("ZERO", 0);
+    assertSameBytes(text + "{{MAX}}{{MIN}}|{{NEG}}|{{ZERO}}{{MAX}}");
+    assertEquals(text + "9223372036854775807-9223372036854775808|-12|0",
+        new String(renderToStream(text + "{{MAX}}{{MIN}}|{{NEG}}|{{ZERO}}"),
+            StandardCharsets.UTF_8));
+  }
+
+  private void assertSameBytes(String template) throws TemplateException {
+    String expected = Template.parse(template).renderToString(td);
+    assertTrue(Arrays.equals(expected.getBytes(StandardCharsets.UTF_8),
+        renderToStream(template)));
+  }
+
+  private byte[] renderToStream(String template) throws TemplateException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Template.parse(template).render(td, out);
+    return out.toByteArray();
+  }
+}
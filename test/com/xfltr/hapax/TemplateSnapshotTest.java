@@ -0,0 +1,164 @@
+package com.xfltr.hapax;
+
+import com.xfltr.hapax.parser.CTemplateParser;
+import com.xfltr.hapax.parser.EztParser;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * Unit test for {@link TemplateSnapshot}.
+ *
+ * @author dcoker
+ */
+public class TemplateSnapshotTest extends TestCase {
+  private File dir;
+  private Path snapshotFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    dir = File.createTempFile("hapax", "");
+    assertTrue(dir.delete());
+    assertTrue(dir.mkdir());
+    snapshotFile = File.createTempFile("hapax", ".snapshot").toPath();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    delete(dir);
+    snapshotFile.toFile().delete();
+  }
+
+  private static void delete(File file) {
+    File[] files = file.listFiles();
+    if (files != null) {
+      for (File child : files) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  private static TemplateDictionary page() {
+    TemplateDictionary dict = TemplateDictionary.create();
+    dict.put("TITLE", "<Rows>");
+    dict.put("INC", "sub/row.tpl");
+    dict.put("WHO", "root");
+    dict.showSection("ROW");
+    for (int i = 0; i < 3; i++) {
+      dict.addChildDict("ROW").put("N", i);
+    }
+    return dict;
+  }
+
+  public void testTemplatesAreReadFromTheSnapshot() throws Exception {
+    write("page.tpl", "{{TITLE:h}}\n{{#ROW}}{{>INC}}{{/ROW}}\u00e9");
+    write("sub/row.tpl", "[{{N}}]");
+    write("broken.tpl", "{{#UNCLOSED}}");
+    assertEquals(2, TemplateSnapshot.write(dir.getPath(),
+        CTemplateParser.create(), StandardCharsets.UTF_8, snapshotFile));
+
+    TemplateSnapshot snapshot = TemplateSnapshot.open(snapshotFile);
+    assertEquals(2, snapshot.size());
+    TemplateLoader cache = TemplateCache.builder(dir.getPath())
+        .snapshot(snapshot).compileToBytecode(true).build();
+    String expected = TemplateCache.create(dir.getPath())
+        .getTemplate("page.tpl").renderToString(page());
+    assertEquals("&#60;Rows&#62;\n[0][1][2]\u00e9", expected);
+    assertEquals(expected,
+        cache.getTemplate("page.tpl").renderToString(page()));
+    assertEquals(2, snapshot.getHitCount());
+    assertEquals(0, snapshot.getStaleCount());
+  }
+
+  public void testEztTemplatesRoundTrip() throws Exception {
+    String source = "[if-any who][is who \"root\"]#[else]$[end][end]"
+        + "[define title]T [who][end][title] [include \"inc.ezt\"]"
+        + "[include inc]";
+    write("page.ezt", source);
+    write("inc.ezt", "({{who}}[who])");
+    TemplateSnapshot.write(dir.getPath(), EztParser.create(),
+        StandardCharsets.UTF_8, snapshotFile);
+    TemplateSnapshot snapshot = TemplateSnapshot.open(snapshotFile);
+    TemplateDictionary dict = page();
+    dict.put("INC", "inc.ezt");
+    TemplateLoader cache = TemplateCache.builder(dir.getPath())
+        .parser(EztParser.create()).snapshot(snapshot).build();
+    assertEquals("#T root ({{who}}root)({{who}}root)",
+        cache.getTemplate("page.ezt").renderToString(dict));
+    assertEquals(2, snapshot.getHitCount());
+  }
+
+  public void testChangedTemplatesAreParsed() throws Exception {
+    File file = write("a.tpl", "one");
+    TemplateSnapshot.write(dir.getPath(), CTemplateParser.create(),
+        StandardCharsets.UTF_8, snapshotFile);
+    write("a.tpl", "two");
+    TemplateSnapshot snapshot = TemplateSnapshot.open(snapshotFile);
+    TemplateLoader cache =
+        TemplateCache.builder(dir.getPath()).snapshot(snapshot).build();
+    assertEquals("two", cache.getTemplate("a.tpl")
+        .renderToString(TemplateDictionary.create()));
+    assertEquals(0, snapshot.getHitCount());
+    assertEquals(1, snapshot.getStaleCount());
+    assertTrue(file.exists());
+  }
+
+  public void testSnapshotsMustMatchTheParser() throws Exception {
+    write("a.tpl", "one");
+    TemplateSnapshot.write(dir.getPath(), CTemplateParser.create(),
+        StandardCharsets.UTF_8, snapshotFile);
+    try {
+      TemplateCache.builder(dir.getPath()).parser(EztParser.create())
+          .snapshot(TemplateSnapshot.open(snapshotFile)).build();
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  public void testTruncatedSnapshotsAreRejected() throws Exception {
+    write("a.tpl", "one");
+    TemplateSnapshot.write(dir.getPath(), CTemplateParser.create(),
+        StandardCharsets.UTF_8, snapshotFile);
+    RandomAccessFile file = new RandomAccessFile(snapshotFile.toFile(), "rw");
+    try {
+      file.setLength(file.length() - 1);
+    } finally {
+      file.close();
+    }
+    try {
+      TemplateSnapshot.open(snapshotFile);
+      fail();
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  public void testOtherFilesAreRejected() throws Exception {
+    write("a.tpl", "one");
+    try {
+      TemplateSnapshot.open(new File(dir, "a.tpl").toPath());
+      fail();
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  private File write(String name, String contents) throws IOException {
+    File file = new File(dir, name);
+    file.getParentFile().mkdirs();
+    FileWriter writer = new FileWriter(file, StandardCharsets.UTF_8);
+    try {
+      writer.write(contents);
+    } finally {
+      writer.close();
+    }
+    return file;
+  }
+}
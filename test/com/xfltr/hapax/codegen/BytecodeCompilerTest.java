@@ -0,0 +1,92 @@
+package com.xfltr.hapax.codegen;
+
+import com.xfltr.hapax.Template;
+import com.xfltr.hapax.TemplateDictionary;
+import com.xfltr.hapax.TemplateException;
+import com.xfltr.hapax.parser.CTemplateParser;
+import com.xfltr.hapax.parser.EztParser;
+import com.xfltr.hapax.parser.TemplateParser;
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link BytecodeCompiler}.  Every template is rendered both
+ * interpreted and compiled, and the two outputs must be identical.
+ *
+ * @author dcoker
+ */
+public class BytecodeCompilerTest extends TestCase {
+  private TemplateDictionary td;
+
+  @Override
+  protected void setUp() throws Exception {
+    td = TemplateDictionary.create();
+  }
+
+  public void testPlainText() throws TemplateException {
+    assertSameOutput(CTemplateParser.create(), "");
+    assertSameOutput(CTemplateParser.create(), "Hello");
+  }
+
+  public void testVariables() throws TemplateException {
+    td.put("WORLD", "<Iapetus>");
+    assertSameOutput(CTemplateParser.create(), "Hello, {{WORLD}}!");
+    assertSameOutput(CTemplateParser.create(), "Hello, {{WORLD:h}}!");
+    assertSameOutput(CTemplateParser.create(), "Hello, {{MISSING}}!");
+  }
+
+  public void testRepeatedAndHiddenSections() throws TemplateException {
+    String t = "-{{#X}}{{V}}{{#Y}}y{{/Y}}{{/X}}{{#Z}}z{{/Z}}-";
+    assertSameOutput(CTemplateParser.create(), t);
+    td.addChildDict("X").put("V", 1);
+    td.addChildDict("X").put("V", 2);
+    assertSameOutput(CTemplateParser.create(), t);
+    td.showSection("X");
+    td.showSection("Z");
+    assertSameOutput(CTemplateParser.create(), t);
+    td.getChildDicts("X").get(1).showSection("Y");
+    assertEquals("-12yz-", assertSameOutput(CTemplateParser.create(), t));
+  }
+
+  public void testEztConditionalsAndDefines() throws TemplateException {
+    td.put("title", "Default");
+    String[] templates = {
+        "[if-any title]Issue[else]No issue[end]",
+        "[if-any nope]Issue[else]No issue[end]",
+        "[is title \"Default\"]yes[end][is title \"x\"]no[end]",
+        "[define title][end][if-any title]Issue[else]No issue[end]",
+        "[define x][if-any title][title][end][end][x][x]",
+    };
+    for (String template : templates) {
+      assertSameOutput(EztParser.create(), template);
+    }
+  }
+
+  public void testLongText() throws TemplateException {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 100000; i++) {
+      sb.append((char) ('a' + i % 26));
+    }
+    sb.append('\u20ac');
+    assertSameOutput(CTemplateParser.create(), sb.toString());
+  }
+
+  public void testLongSequencesAreSplitAcrossClasses()
+      throws TemplateException {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 3000; i++) {
+      sb.append("{{V}}.");
+    }
+    td.put("V", "v");
+    assertSameOutput(CTemplateParser.create(), sb.toString());
+  }
+
+  private String assertSameOutput(TemplateParser parser, String template)
+      throws TemplateException {
+    Template interpreted = Template.parse(parser, template);
+    Template compiled =
+        Template.parse(parser, template, BytecodeCompiler.create());
+    String expected = interpreted.renderToString(td);
+    assertEquals(template, expected, compiled.renderToString(td));
+    return expected;
+  }
+}
@@ -39,6 +39,22 @@ public class CTemplateParserTest extends TestCase {
     }
   }
 
+  public void testErrorsReportLineAndColumn() {
+    assertErrorAt("{{#R0F}}", 1, 5);
+    assertErrorAt("line one\nline {{two}} {{VAR:}}", 2, 20);
+    assertErrorAt("a\nb\n\n  {{", 4, 5);
+    assertErrorAt("{{VAR:h:j", 1, 10);
+  }
+
+  public void testLargeTemplate() throws TemplateException {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 20000; i++) {
+      sb.append("<td>{{NAME:h}}</td>{{#S}}x{{/S}}\n");
+    }
+    // Each newline joins the text before and after it into a single node.
+    assertExpectedNodeListLength(sb.toString(), 20000 * 6 + 1);
+  }
+
   public void testParsesIncludes() throws TemplateException {
     assertExpectedNodeListLength("{{>INCL}}", 1);
   }
@@ -54,6 +70,16 @@ public class CTemplateParserTest extends TestCase {
     assertExpectedNodeListLength("{{VAR}}{{#SECTION}}{{/SECTION}}end", 4);
   }
 
+  private void assertErrorAt(String input, int line, int column) {
+    try {
+      CTemplateParser.create().parse(input);
+      fail("malformed template should throw an exception: '" + input + "'");
+    } catch (TemplateParserException e) {
+      assertEquals(input, line, e.getLine());
+      assertEquals(input, column, e.getColumn());
+    }
+  }
+
   /**
    * Helper method for comparing the length of the parsed template to the number
    * of expected nodes.
@@ -91,4 +91,47 @@ public class EztParserTest extends TestCase {
                  EztParser.create().parse("[insertfile var]")
                      .get(0).getClass());
   }
+
+  public void testStrayBracketsAreDropped() throws TemplateParserException {
+    List<TemplateNode> list = EztParser.create().parse("a[b [] c[[d");
+    assertEquals(4, list.size());
+    assertEquals("a", ((TextNode) list.get(0)).getText());
+    assertEquals("b ", ((TextNode) list.get(1)).getText());
+    assertEquals("] c", ((TextNode) list.get(2)).getText());
+    assertEquals("d", ((TextNode) list.get(3)).getText());
+  }
+
+  public void testTagsMaySpanLines() throws TemplateParserException {
+    List<TemplateNode> list = EztParser.create()
+        .parse("[# a\ncomment][if-any\n  x\n][include\t\"a.ezt\" ]");
+    assertEquals(2, list.size());
+    assertEquals(EztConditionalNode.class, list.get(0).getClass());
+    assertEquals(EztIncludeNode.class, list.get(1).getClass());
+  }
+
+  public void testErrorsReportLineAndColumn() {
+    assertErrorAt("[is x]", 1, 1);
+    assertErrorAt("one\ntwo [if-any \"x\"]", 2, 5);
+    assertErrorAt("a\n\n  [define]", 3, 3);
+  }
+
+  public void testLargeTemplate() throws TemplateParserException {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 20000; i++) {
+      sb.append("<td>[name]</td>[if-any x]y[else]z[end]\n");
+    }
+    // Each newline joins the text before and after it into a single node.
+    assertEquals(20000 * 8 + 1,
+                 EztParser.create().parse(sb.toString()).size());
+  }
+
+  private static void assertErrorAt(String template, int line, int column) {
+    try {
+      EztParser.create().parse(template);
+      fail("'" + template + "' should have thrown TemplateParserException.");
+    } catch (TemplateParserException e) {
+      assertEquals(template, line, e.getLine());
+      assertEquals(template, column, e.getColumn());
+    }
+  }
 }